@@ -1755,6 +1755,26 @@ static void gattServerSendNotificationNative (JNIEnv *env, jobject object,
     env->ReleaseByteArrayElements(val, array, JNI_ABORT);
 }
 
+static void gattServerSendNotificationsNative (JNIEnv *env, jobject object,
+        jint server_if, jint attr_handle, jintArray conn_ids, jboolean confirm,
+        jbyteArray val)
+{
+    if (!sGattIf) return;
+
+    jbyte* array = env->GetByteArrayElements(val, 0);
+    int val_len = env->GetArrayLength(val);
+    jint* ids = env->GetIntArrayElements(conn_ids, 0);
+    int num_ids = env->GetArrayLength(conn_ids);
+
+    for (int i = 0; i != num_ids; ++i)
+    {
+        sGattIf->server->send_indication(server_if, attr_handle, ids[i], val_len,
+                                         confirm ? 1 : 0, (char*)array);
+    }
+    env->ReleaseIntArrayElements(conn_ids, ids, JNI_ABORT);
+    env->ReleaseByteArrayElements(val, array, JNI_ABORT);
+}
+
 static void gattServerSendResponseNative (JNIEnv *env, jobject object,
         jint server_if, jint conn_id, jint trans_id, jint status,
         jint handle, jint offset, jbyteArray val, jint auth_req)
@@ -1874,6 +1894,7 @@ static JNINativeMethod sMethods[] = {
     {"gattServerDeleteServiceNative", "(II)V", (void *) gattServerDeleteServiceNative},
     {"gattServerSendIndicationNative", "(III[B)V", (void *) gattServerSendIndicationNative},
     {"gattServerSendNotificationNative", "(III[B)V", (void *) gattServerSendNotificationNative},
+    {"gattServerSendNotificationsNative", "(II[IZ[B)V", (void *) gattServerSendNotificationsNative},
     {"gattServerSendResponseNative", "(IIIIII[BI)V", (void *) gattServerSendResponseNative},
 
     {"gattTestNative", "(IJJLjava/lang/String;IIIII)V", (void *) gattTestNative},
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable 48 bit Bluetooth device address packed into a long.
+ *
+ * Instances are interned in a small cache that forgets the least recently used
+ * address when full, so the string form of an address coming up in every native
+ * callback is only formatted once.
+ *
+ * @hide
+ */
+public final class BluetoothAddress {
+    public static final int LENGTH = 6; // bytes
+
+    private static final int CACHE_SIZE = 256;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    // Access ordered, so the eldest entry is the least recently used one.
+    private static final LinkedHashMap<Long, BluetoothAddress> sCache =
+            new LinkedHashMap<Long, BluetoothAddress>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, BluetoothAddress> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final long mValue;
+    // Formatted on first use. Racy but benign, like String.hashCode().
+    private String mString;
+    // BluetoothDevice only holds the address, so one instance can be shared.
+    private BluetoothDevice mDevice;
+
+    private BluetoothAddress(long value) {
+        mValue = value;
+    }
+
+    /**
+     * Returns the address with the given packed value.
+     */
+    public static BluetoothAddress valueOf(long value) {
+        value &= 0xFFFFFFFFFFFFL;
+        synchronized (sCache) {
+            BluetoothAddress address = sCache.get(value);
+            if (address == null) {
+                address = new BluetoothAddress(value);
+                sCache.put(value, address);
+            }
+            return address;
+        }
+    }
+
+    /**
+     * Returns the address of the six bytes, most significant first, as used at the
+     * JNI boundary, or null if {@code address} does not have six bytes.
+     */
+    public static BluetoothAddress valueOf(byte[] address) {
+        if (address == null || address.length != LENGTH) return null;
+        return valueOf(pack(address));
+    }
+
+    /**
+     * Parses an address of the form "00:11:22:AA:BB:CC".
+     *
+     * @throws IllegalArgumentException if {@code address} is not of that form.
+     */
+    public static BluetoothAddress valueOf(String address) {
+        BluetoothAddress parsed = parse(address);
+        if (parsed == null) {
+            throw new IllegalArgumentException("invalid address: " + address);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses an address of the form "00:11:22:AA:BB:CC", or returns null if
+     * {@code address} is not of that form.
+     */
+    public static BluetoothAddress parse(String address) {
+        if (address == null || address.length() != LENGTH * 3 - 1) return null;
+        long value = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            int hi = Character.digit(address.charAt(i * 3), 16);
+            int lo = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (hi < 0 || lo < 0 || (i < LENGTH - 1 && address.charAt(i * 3 + 2) != ':')) {
+                return null;
+            }
+            value = (value << 8) | (hi << 4) | lo;
+        }
+        return valueOf(value);
+    }
+
+    /**
+     * Packs six address bytes, most significant first, into a long. Use this for
+     * primitive keyed lookups that do not need an instance.
+     */
+    public static long pack(byte[] address) {
+        long value = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            value = (value << 8) | (address[i] & 0xFF);
+        }
+        return value;
+    }
+
+    public long toLong() {
+        return mValue;
+    }
+
+    /**
+     * Returns a new array with the six address bytes, most significant first.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[LENGTH];
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            bytes[i] = (byte) (mValue >> ((LENGTH - 1 - i) * 8));
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the remote device with this address, created on first use.
+     */
+    public BluetoothDevice getRemoteDevice(BluetoothAdapter adapter) {
+        BluetoothDevice device = mDevice;
+        if (device == null) {
+            device = adapter.getRemoteDevice(toString());
+            mDevice = device;
+        }
+        return device;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof BluetoothAddress && ((BluetoothAddress) obj).mValue == mValue;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mValue ^ (mValue >>> 32));
+    }
+
+    /**
+     * Returns the address as "00:11:22:AA:BB:CC".
+     */
+    @Override
+    public String toString() {
+        String string = mString;
+        if (string == null) {
+            char[] chars = new char[LENGTH * 3 - 1];
+            for (int i = 0; i < LENGTH; i++) {
+                int b = (int) (mValue >> ((LENGTH - 1 - i) * 8)) & 0xFF;
+                chars[i * 3] = HEX_DIGITS[b >> 4];
+                chars[i * 3 + 1] = HEX_DIGITS[b & 0x0F];
+                if (i < LENGTH - 1) chars[i * 3 + 2] = ':';
+            }
+            string = new String(chars);
+            mString = string;
+        }
+        return string;
+    }
+}
@@ -54,13 +54,8 @@ final public class Utils {
     static final int BD_UUID_LEN = 16; // bytes
 
     public static String getAddressStringFromByte(byte[] address) {
-        if (address == null || address.length != BD_ADDR_LEN) {
-            return null;
-        }
-
-        return String.format("%02X:%02X:%02X:%02X:%02X:%02X",
-                address[0], address[1], address[2], address[3], address[4],
-                address[5]);
+        BluetoothAddress bdAddr = BluetoothAddress.valueOf(address);
+        return bdAddr == null ? null : bdAddr.toString();
     }
 
     public static byte[] getByteAddress(BluetoothDevice device) {
@@ -68,6 +63,11 @@ final public class Utils {
     }
 
     public static byte[] getBytesFromAddress(String address) {
+        BluetoothAddress parsed = BluetoothAddress.parse(address);
+        if (parsed != null) return parsed.toBytes();
+
+        // Not in the canonical form, parse it the lenient way callers have relied on:
+        // every pair of characters other than ':' is one hex byte.
         int i, j = 0;
         byte[] output = new byte[BD_ADDR_LEN];
 
@@ -59,6 +59,7 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.ParcelUuid;
 import android.util.Log;
+import com.android.bluetooth.BluetoothAddress;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
@@ -1044,7 +1045,8 @@ final class A2dpSinkStateMachine extends StateMachine {
     }
 
     private BluetoothDevice getDevice(byte[] address) {
-        return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
+        BluetoothAddress bdAddr = BluetoothAddress.valueOf(address);
+        return bdAddr == null ? null : bdAddr.getRemoteDevice(mAdapter);
     }
 
     private class StackEvent {
@@ -55,6 +55,7 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.ParcelUuid;
 import android.util.Log;
+import com.android.bluetooth.BluetoothAddress;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
@@ -1723,7 +1724,8 @@ final class A2dpStateMachine extends StateMachine {
     }
 
     private BluetoothDevice getDevice(byte[] address) {
-        return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
+        BluetoothAddress bdAddr = BluetoothAddress.valueOf(address);
+        return bdAddr == null ? null : bdAddr.getRemoteDevice(mAdapter);
     }
 
     private class StackEvent {
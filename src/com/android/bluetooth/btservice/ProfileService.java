@@ -18,7 +18,7 @@ package com.android.bluetooth.btservice;
 
 import java.util.HashMap;
 
-import com.android.bluetooth.Utils;
+import com.android.bluetooth.BluetoothAddress;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
@@ -244,8 +244,9 @@ public abstract class ProfileService extends Service {
     }
 
     protected BluetoothDevice getDevice(byte[] address) {
-        if(mAdapter != null){
-            return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
+        BluetoothAddress bdAddr = BluetoothAddress.valueOf(address);
+        if(mAdapter != null && bdAddr != null){
+            return bdAddr.getRemoteDevice(mAdapter);
         }
         return null;
     }
@@ -23,13 +23,17 @@ import android.content.Intent;
 import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LongSparseArray;
 
+import com.android.bluetooth.BluetoothAddress;
 import com.android.bluetooth.Utils;
 
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 
@@ -41,14 +45,24 @@ final class RemoteDevices {
 
     private static BluetoothAdapter mAdapter;
     private static AdapterService mAdapterService;
+    // Devices waiting for SDP results, guarded by mDevices.
     private static ArrayList<BluetoothDevice> mSdpTracker;
     private Object mObject = new Object();
 
     private static final int UUID_INTENT_DELAY = 6000;
     private static final int MESSAGE_UUID_INTENT = 1;
 
+    // Once more devices are known, the least recently seen unbonded and
+    // disconnected device is forgotten.
+    private static final int MAX_DEVICES = 1024;
+
     private HashMap<BluetoothDevice, DeviceProperties> mDevices;
+    // Same devices keyed by their packed 48 bit address, guarded by mDevices. A lookup is
+    // a binary search over the keys, O(log n).
+    private final LongSparseArray<BluetoothDevice> mDevicesByAddress =
+            new LongSparseArray<BluetoothDevice>();
 
+    // Guarded by mDevices.
     private Set<BluetoothDevice> mBleOnDevices;
 
     RemoteDevices(AdapterService service) {
@@ -61,14 +75,16 @@ final class RemoteDevices {
 
 
     void cleanup() {
-        if (mSdpTracker !=null)
-            mSdpTracker.clear();
-
-        if (mDevices != null)
-            mDevices.clear();
-
-        if (mBleOnDevices != null)
-            mBleOnDevices.clear();
+        if (mDevices != null) {
+            synchronized (mDevices) {
+                if (mSdpTracker != null)
+                    mSdpTracker.clear();
+                mDevices.clear();
+                mDevicesByAddress.clear();
+                if (mBleOnDevices != null)
+                    mBleOnDevices.clear();
+            }
+        }
     }
 
     @Override
@@ -83,14 +99,12 @@ final class RemoteDevices {
     }
 
     BluetoothDevice getDevice(byte[] address) {
+        if (address == null || address.length != BluetoothAddress.LENGTH) {
+            return null;
+        }
         synchronized (mDevices) {
-            for (BluetoothDevice dev : mDevices.keySet()) {
-                if (dev.getAddress().equals(Utils.getAddressStringFromByte(address))) {
-                    return dev;
-                }
-            }
+            return mDevicesByAddress.get(BluetoothAddress.pack(address));
         }
-        return null;
     }
 
     DeviceProperties addDeviceProperties(byte[] address) {
@@ -99,11 +113,43 @@ final class RemoteDevices {
             BluetoothDevice device =
                     mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
             prop.mAddress = address;
+            prop.mLastSeenMillis = SystemClock.elapsedRealtime();
             mDevices.put(device, prop);
+            mDevicesByAddress.put(BluetoothAddress.pack(address), device);
+            if (mDevices.size() > MAX_DEVICES) {
+                evictStaleDevice(device);
+            }
             return prop;
         }
     }
 
+    // Forgets the least recently seen device that is not bonded, connected or waiting
+    // for SDP results. Must be called with mDevices held, which also guards mSdpTracker and
+    // mBleOnDevices. The bond state is read without mObject, which is taken before mDevices
+    // elsewhere.
+    private void evictStaleDevice(BluetoothDevice keep) {
+        BluetoothDevice stale = null;
+        long staleSeenMillis = Long.MAX_VALUE;
+        for (Map.Entry<BluetoothDevice, DeviceProperties> entry : mDevices.entrySet()) {
+            BluetoothDevice device = entry.getKey();
+            DeviceProperties prop = entry.getValue();
+            if (device.equals(keep) || prop.mBondState != BluetoothDevice.BOND_NONE
+                    || prop.mAclConnected || mSdpTracker.contains(device)
+                    || mBleOnDevices.contains(device)) {
+                continue;
+            }
+            if (prop.mLastSeenMillis < staleSeenMillis) {
+                stale = device;
+                staleSeenMillis = prop.mLastSeenMillis;
+            }
+        }
+        if (stale != null) {
+            debugLog("evicting stale device " + stale);
+            mDevices.remove(stale);
+            mDevicesByAddress.remove(BluetoothAddress.valueOf(stale.getAddress()).toLong());
+        }
+    }
+
     class DeviceProperties {
         private String mName;
         private byte[] mAddress;
@@ -113,6 +159,9 @@ final class RemoteDevices {
         private int mDeviceType;
         private String mAlias;
         private int mBondState;
+        // Used to pick the device to evict, guarded by mDevices.
+        private long mLastSeenMillis;
+        private boolean mAclConnected;
 
         DeviceProperties() {
             mBondState = BluetoothDevice.BOND_NONE;
@@ -232,7 +281,9 @@ final class RemoteDevices {
         mAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_ADMIN_PERM);
 
         //Remove the outstanding UUID request
-        mSdpTracker.remove(device);
+        synchronized (mDevices) {
+            mSdpTracker.remove(device);
+        }
     }
 
 
@@ -248,6 +299,11 @@ final class RemoteDevices {
         } else {
             device = getDeviceProperties(bdDevice);
         }
+        if (device != null) {
+            synchronized (mDevices) {
+                device.mLastSeenMillis = SystemClock.elapsedRealtime();
+            }
+        }
 
         for (int j = 0; j < types.length && device != null; j++) {
             type = types[j];
@@ -345,6 +401,11 @@ final class RemoteDevices {
         DeviceProperties prop = getDeviceProperties(device);
         if (prop == null) {
  //         errorLog("aclStateChangeCallback reported unknown device " + Arrays.toString(address));
+        } else {
+            synchronized (mDevices) {
+                prop.mAclConnected = newState == AbstractionLayer.BT_ACL_STATE_CONNECTED;
+                prop.mLastSeenMillis = SystemClock.elapsedRealtime();
+            }
         }
         Intent intent = null;
         if (newState == AbstractionLayer.BT_ACL_STATE_CONNECTED) {
@@ -354,15 +415,21 @@ final class RemoteDevices {
                 intent = new Intent(BluetoothAdapter.ACTION_BLE_ACL_CONNECTED);
                 /* also save the device into LE always on device list */
                 debugLog("aclStateChangeCallback: added device to Ble ON list");
-                mBleOnDevices.add(device);
+                synchronized (mDevices) {
+                    mBleOnDevices.add(device);
+                }
             }
             debugLog("aclStateChangeCallback: State:Connected to Device:" + device);
         } else {
-            if ((state == BluetoothAdapter.STATE_BLE_ON || state == BluetoothAdapter.STATE_BLE_TURNING_OFF) &&
-                (mBleOnDevices.contains(device))) {
+            boolean bleOn;
+            synchronized (mDevices) {
+                bleOn = (state == BluetoothAdapter.STATE_BLE_ON
+                        || state == BluetoothAdapter.STATE_BLE_TURNING_OFF)
+                        && mBleOnDevices.remove(device);
+            }
+            if (bleOn) {
                 intent = new Intent(BluetoothAdapter.ACTION_BLE_ACL_DISCONNECTED);
                 debugLog("aclStateChangeCallback: removing device from Ble Always On List");
-                mBleOnDevices.remove(device);
             } else {
                 intent = new Intent(BluetoothDevice.ACTION_ACL_DISCONNECTED);
                 debugLog("aclStateChangeCallback: sending ACL disconnected intent");
@@ -377,8 +444,10 @@ final class RemoteDevices {
 
 
     void fetchUuids(BluetoothDevice device) {
-        if (mSdpTracker.contains(device)) return;
-        mSdpTracker.add(device);
+        synchronized (mDevices) {
+            if (mSdpTracker.contains(device)) return;
+            mSdpTracker.add(device);
+        }
 
         Message message = mHandler.obtainMessage(MESSAGE_UUID_INTENT);
         message.obj = device;
@@ -35,6 +35,9 @@ class AdvertiseClient {
     AdvertiseData advertiseData;
     @Nullable
     AdvertiseData scanResponse;
+    // Data last sent to the stack, null until the instance is started.
+    AdvertisePayload advertisePayload;
+    AdvertisePayload scanResponsePayload;
 
     /**
      * @param clientIf - Identifier of the client.
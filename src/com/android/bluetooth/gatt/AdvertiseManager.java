@@ -16,7 +16,7 @@
 
 package com.android.bluetooth.gatt;
 
-import android.bluetooth.BluetoothUuid;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
@@ -24,19 +24,19 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -50,10 +50,20 @@ class AdvertiseManager {
 
     // Timeout for each controller operation.
     private static final int OPERATION_TIME_OUT_MILLIS = 500;
+    // How long the callback of a timed out operation is still expected.
+    private static final int STALE_CALLBACK_MILLIS = 10 * OPERATION_TIME_OUT_MILLIS;
 
     // Message for advertising operations.
     private static final int MSG_START_ADVERTISING = 0;
     private static final int MSG_STOP_ADVERTISING = 1;
+    private static final int MSG_CALLBACK_DONE = 2;
+    private static final int MSG_OPERATION_TIMEOUT = 3;
+
+    // Steps of starting an advertising instance, each one waits for its stack callback.
+    private static final int STEP_ENABLE = 0;
+    private static final int STEP_SET_DATA = 1;
+    private static final int STEP_SET_SCAN_RESPONSE = 2;
+    private static final int STEP_DONE = 3;
 
     private final GattService mService;
     private final AdapterService mAdapterService;
@@ -63,8 +73,39 @@ class AdvertiseManager {
     // Handles advertise operations.
     private ClientHandler mHandler;
 
-    // CountDownLatch for blocking advertise operations.
-    private CountDownLatch mLatch;
+    // Instances being started, keyed by clientIf. Only accessed on the handler thread.
+    private final Map<Integer, PendingStart> mPendingStarts =
+            new HashMap<Integer, PendingStart>();
+
+    // Native operations waiting for their callback, by clientIf in the order they were
+    // issued. The stack calls back in that order but without saying which operation a
+    // callback is for, so operations that timed out or were stopped stay queued until
+    // their late callback arrives. Only accessed on the handler thread.
+    private final Map<Integer, Deque<Operation>> mIssuedOperations =
+            new HashMap<Integer, Deque<Operation>>();
+    private int mNextOperationSeq;
+
+    // An advertising instance waiting for the callback of its current step.
+    private static class PendingStart {
+        final AdvertiseClient client;
+        int step = STEP_ENABLE;
+        // Sequence number of the operation of the current step.
+        int seq;
+
+        PendingStart(AdvertiseClient client) {
+            this.client = client;
+        }
+    }
+
+    private static class Operation {
+        final int seq;
+        final long issuedMillis;
+
+        Operation(int seq, long issuedMillis) {
+            this.seq = seq;
+            this.issuedMillis = issuedMillis;
+        }
+    }
 
     /**
      * Constructor of {@link AdvertiseManager}.
@@ -89,6 +130,11 @@ class AdvertiseManager {
     void cleanup() {
         logd("advertise clients cleared");
         mAdvertiseClients.clear();
+        if (mHandler != null) {
+            mHandler.removeCallbacksAndMessages(null);
+        }
+        mPendingStarts.clear();
+        mIssuedOperations.clear();
     }
 
     /**
@@ -120,19 +166,15 @@ class AdvertiseManager {
     }
 
     /**
-     * Signals the callback is received.
+     * Signals the callback is received. The start of the client's instance moves on
+     * to its next step on the handler thread.
      *
      * @param clientIf Identifier for the client.
      * @param status Status of the callback.
      */
     void callbackDone(int clientIf, int status) {
-        if (status == AdvertiseCallback.ADVERTISE_SUCCESS) {
-            mLatch.countDown();
-        } else {
-            // Note in failure case we'll wait for the latch to timeout(which takes 100ms) and
-            // the mClientHandler thread will be blocked till timeout.
-            postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
-        }
+        Message message = mHandler.obtainMessage(MSG_CALLBACK_DONE, clientIf, status);
+        mHandler.sendMessage(message);
     }
 
     // Post callback status to app process.
@@ -166,7 +208,8 @@ class AdvertiseManager {
         @Override
         public void handleMessage(Message msg) {
             logd("message : " + msg.what);
-            AdvertiseClient client = (AdvertiseClient) msg.obj;
+            AdvertiseClient client = msg.obj instanceof AdvertiseClient
+                    ? (AdvertiseClient) msg.obj : null;
             switch (msg.what) {
                 case MSG_START_ADVERTISING:
                     handleStartAdvertising(client);
@@ -174,6 +217,12 @@ class AdvertiseManager {
                 case MSG_STOP_ADVERTISING:
                     handleStopAdvertising(client);
                     break;
+                case MSG_CALLBACK_DONE:
+                    handleCallbackDone(msg.arg1, msg.arg2);
+                    break;
+                case MSG_OPERATION_TIMEOUT:
+                    handleOperationTimeout((PendingStart) msg.obj, msg.arg1);
+                    break;
                 default:
                     // Shouldn't happen.
                     Log.e(TAG, "recieve an unknown message : " + msg.what);
@@ -184,22 +233,116 @@ class AdvertiseManager {
         private void handleStartAdvertising(AdvertiseClient client) {
             Utils.enforceAdminPermission(mService);
             int clientIf = client.clientIf;
-            if (mAdvertiseClients.contains(clientIf)) {
+            if (mAdvertiseClients.contains(client) || mPendingStarts.containsKey(clientIf)) {
                 postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_ALREADY_STARTED);
                 return;
             }
+            if (!isDataLengthValid(client)) {
+                postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_DATA_TOO_LARGE);
+                return;
+            }
 
-            if (mAdvertiseClients.size() >= maxAdvertiseInstances()) {
+            if (mAdvertiseClients.size() + mPendingStarts.size() >= maxAdvertiseInstances()) {
                 postCallback(clientIf,
                         AdvertiseCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS);
                 return;
             }
-            if (!mAdvertiseNative.startAdverising(client)) {
+            if (!mAdvertiseNative.isAdvertisingSupported()) {
                 postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
                 return;
             }
+            PendingStart pending = new PendingStart(client);
+            mPendingStarts.put(clientIf, pending);
+            runStep(pending);
+        }
+
+        // The framework checks the length before starting an advertiser, the stack does not.
+        private boolean isDataLengthValid(AdvertiseClient client) {
+            String deviceName = BluetoothAdapter.getDefaultAdapter().getName();
+            boolean isConnectable = client.settings != null && client.settings.isConnectable();
+            return AdvertisePayload.totalBytes(client.advertiseData, isConnectable, deviceName)
+                    <= AdvertisePayload.MAX_ADVERTISING_DATA_BYTES
+                    && AdvertisePayload.totalBytes(client.scanResponse, false, deviceName)
+                    <= AdvertisePayload.MAX_ADVERTISING_DATA_BYTES;
+        }
+
+        // Issues the native call of the current step and waits for its callback. Steps
+        // without a native call are skipped.
+        private void runStep(PendingStart pending) {
+            AdvertiseClient client = pending.client;
+            while (pending.step != STEP_DONE) {
+                boolean issued = mAdvertiseNative.startStep(pending);
+                if (issued && mAdvertiseNative.waitsForStep(pending.step)) {
+                    pending.seq = ++mNextOperationSeq;
+                    Deque<Operation> issuedOperations = mIssuedOperations.get(client.clientIf);
+                    if (issuedOperations == null) {
+                        issuedOperations = new ArrayDeque<Operation>();
+                        mIssuedOperations.put(client.clientIf, issuedOperations);
+                    }
+                    issuedOperations.add(
+                            new Operation(pending.seq, SystemClock.elapsedRealtime()));
+                    mHandler.sendMessageDelayed(
+                            mHandler.obtainMessage(MSG_OPERATION_TIMEOUT, pending.seq, 0,
+                                    pending),
+                            OPERATION_TIME_OUT_MILLIS);
+                    return;
+                }
+                pending.step++;
+            }
+            mPendingStarts.remove(client.clientIf);
             mAdvertiseClients.add(client);
-            postCallback(clientIf, AdvertiseCallback.ADVERTISE_SUCCESS);
+            postCallback(client.clientIf, AdvertiseCallback.ADVERTISE_SUCCESS);
+        }
+
+        private void handleCallbackDone(int clientIf, int status) {
+            Operation operation = pollIssuedOperation(clientIf);
+            if (operation == null) {
+                logd("no operation waiting for a callback for client " + clientIf);
+                return;
+            }
+            PendingStart pending = mPendingStarts.get(clientIf);
+            if (pending == null || pending.seq != operation.seq) {
+                logd("ignoring late callback of operation " + operation.seq
+                        + " for client " + clientIf);
+                return;
+            }
+            mHandler.removeMessages(MSG_OPERATION_TIMEOUT, pending);
+            if (status != AdvertiseCallback.ADVERTISE_SUCCESS) {
+                mPendingStarts.remove(clientIf);
+                postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+                return;
+            }
+            pending.step++;
+            runStep(pending);
+        }
+
+        // Returns the oldest operation of the client still waiting for its callback.
+        // Operations of a start that is gone are forgotten once their callback is too
+        // late to still come.
+        private Operation pollIssuedOperation(int clientIf) {
+            Deque<Operation> issuedOperations = mIssuedOperations.get(clientIf);
+            if (issuedOperations == null) return null;
+            PendingStart pending = mPendingStarts.get(clientIf);
+            long staleMillis = SystemClock.elapsedRealtime() - STALE_CALLBACK_MILLIS;
+            Operation operation = issuedOperations.poll();
+            while (operation != null && operation.issuedMillis < staleMillis
+                    && (pending == null || pending.seq != operation.seq)) {
+                operation = issuedOperations.poll();
+            }
+            if (issuedOperations.isEmpty()) mIssuedOperations.remove(clientIf);
+            return operation;
+        }
+
+        // The operation stays issued, its callback may still arrive and must not be taken
+        // for the one of a later start.
+        private void handleOperationTimeout(PendingStart pending, int seq) {
+            int clientIf = pending.client.clientIf;
+            if (mPendingStarts.get(clientIf) != pending || pending.seq != seq) {
+                return;
+            }
+            Log.w(TAG, "advertise step " + pending.step + " timed out for client " + clientIf);
+            mPendingStarts.remove(clientIf);
+            postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
         }
 
         // Handles stop advertising.
@@ -209,6 +352,10 @@ class AdvertiseManager {
                 return;
             }
             logd("stop advertise for client " + client.clientIf);
+            PendingStart pending = mPendingStarts.remove(client.clientIf);
+            if (pending != null) {
+                mHandler.removeMessages(MSG_OPERATION_TIMEOUT, pending);
+            }
             mAdvertiseNative.stopAdvertising(client);
             if (client.appDied) {
                 logd("app died - unregistering client : " + client.clientIf);
@@ -265,48 +412,39 @@ class AdvertiseManager {
         private static final int ADVERTISING_EVENT_TYPE_NON_CONNECTABLE = 3;
 
         // TODO: Extract advertising logic into interface as we have multiple implementations now.
-        boolean startAdverising(AdvertiseClient client) {
-            if (!mAdapterService.isMultiAdvertisementSupported() &&
-                    !mAdapterService.isPeripheralModeSupported()) {
-                return false;
-            }
-            if (mAdapterService.isMultiAdvertisementSupported()) {
-                return startMultiAdvertising(client);
-            }
-            return startSingleAdvertising(client);
+        boolean isAdvertisingSupported() {
+            return mAdapterService.isMultiAdvertisementSupported()
+                    || mAdapterService.isPeripheralModeSupported();
         }
 
-        boolean startMultiAdvertising(AdvertiseClient client) {
-            logd("starting multi advertising");
-            resetCountDownLatch();
-            enableAdvertising(client);
-            if (!waitForCallback()) {
-                return false;
-            }
-            resetCountDownLatch();
-            setAdvertisingData(client, client.advertiseData, false);
-            if (!waitForCallback()) {
-                return false;
-            }
-            if (client.scanResponse != null) {
-                resetCountDownLatch();
-                setAdvertisingData(client, client.scanResponse, true);
-                if (!waitForCallback()) {
+        /**
+         * Issues the native call of a start step. Returns false if the step has
+         * nothing to do for the client.
+         */
+        boolean startStep(PendingStart pending) {
+            AdvertiseClient client = pending.client;
+            boolean multi = mAdapterService.isMultiAdvertisementSupported();
+            switch (pending.step) {
+                case STEP_ENABLE:
+                    logd("starting " + (multi ? "multi" : "single") + " advertising");
+                    enableAdvertising(client);
+                    return true;
+                case STEP_SET_DATA:
+                    return setAdvertisingData(client, client.advertiseData, false);
+                case STEP_SET_SCAN_RESPONSE:
+                    // Scan response is only supported by multi advertising.
+                    return multi && setAdvertisingData(client, client.scanResponse, true);
+                default:
                     return false;
-                }
             }
-            return true;
         }
 
-        boolean startSingleAdvertising(AdvertiseClient client) {
-            logd("starting single advertising");
-            resetCountDownLatch();
-            enableAdvertising(client);
-            if (!waitForCallback()) {
-                return false;
-            }
-            setAdvertisingData(client, client.advertiseData, false);
-            return true;
+        /**
+         * Returns true if the start waits for the callback of the step. Single
+         * advertising does not wait for its data to be set.
+         */
+        boolean waitsForStep(int step) {
+            return step == STEP_ENABLE || mAdapterService.isMultiAdvertisementSupported();
         }
 
         void stopAdvertising(AdvertiseClient client) {
@@ -323,19 +461,6 @@ class AdvertiseManager {
             }
         }
 
-        private void resetCountDownLatch() {
-            mLatch = new CountDownLatch(1);
-        }
-
-        // Returns true if mLatch reaches 0, false if timeout or interrupted.
-        private boolean waitForCallback() {
-            try {
-                return mLatch.await(OPERATION_TIME_OUT_MILLIS, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                return false;
-            }
-        }
-
         private void enableAdvertising(AdvertiseClient client) {
             int clientIf = client.clientIf;
             int minAdvertiseUnit = (int) getAdvertisingIntervalUnit(client.settings);
@@ -357,82 +482,35 @@ class AdvertiseManager {
             }
         }
 
-        private void setAdvertisingData(AdvertiseClient client, AdvertiseData data,
+        // Returns false if there is no data to set.
+        private boolean setAdvertisingData(AdvertiseClient client, AdvertiseData data,
                 boolean isScanResponse) {
             if (data == null) {
-                return;
+                return false;
             }
-            boolean includeName = data.getIncludeDeviceName();
-            boolean includeTxPower = data.getIncludeTxPowerLevel();
-            int appearance = 0;
-            byte[] manufacturerData = getManufacturerData(data);
+            AdvertisePayload payload = AdvertisePayload.compile(data,
+                    isScanResponse ? client.scanResponsePayload : client.advertisePayload);
+            setAdvertisingPayload(client, payload, isScanResponse);
+            return true;
+        }
 
-            byte[] serviceData = getServiceData(data);
-            byte[] serviceUuids;
-            if (data.getServiceUuids() == null) {
-                serviceUuids = new byte[0];
+        private void setAdvertisingPayload(AdvertiseClient client, AdvertisePayload payload,
+                boolean isScanResponse) {
+            if (isScanResponse) {
+                client.scanResponsePayload = payload;
             } else {
-                ByteBuffer advertisingUuidBytes = ByteBuffer.allocate(
-                        data.getServiceUuids().size() * 16)
-                        .order(ByteOrder.LITTLE_ENDIAN);
-                for (ParcelUuid parcelUuid : data.getServiceUuids()) {
-                    UUID uuid = parcelUuid.getUuid();
-                    // Least significant bits first as the advertising UUID should be in
-                    // little-endian.
-                    advertisingUuidBytes.putLong(uuid.getLeastSignificantBits())
-                            .putLong(uuid.getMostSignificantBits());
-                }
-                serviceUuids = advertisingUuidBytes.array();
+                client.advertisePayload = payload;
             }
+            int appearance = 0;
             if (mAdapterService.isMultiAdvertisementSupported()) {
-                gattClientSetAdvDataNative(client.clientIf, isScanResponse, includeName,
-                        includeTxPower, appearance,
-                        manufacturerData, serviceData, serviceUuids);
+                gattClientSetAdvDataNative(client.clientIf, isScanResponse, payload.includeName,
+                        payload.includeTxPower, appearance,
+                        payload.manufacturerData, payload.serviceData, payload.serviceUuids);
             } else {
-                gattSetAdvDataNative(client.clientIf, isScanResponse, includeName,
-                        includeTxPower, 0, 0, appearance,
-                        manufacturerData, serviceData, serviceUuids);
-            }
-        }
-
-        // Combine manufacturer id and manufacturer data.
-        private byte[] getManufacturerData(AdvertiseData advertiseData) {
-            if (advertiseData.getManufacturerSpecificData().size() == 0) {
-                return new byte[0];
-            }
-            int manufacturerId = advertiseData.getManufacturerSpecificData().keyAt(0);
-            byte[] manufacturerData = advertiseData.getManufacturerSpecificData().get(
-                    manufacturerId);
-            int dataLen = 2 + (manufacturerData == null ? 0 : manufacturerData.length);
-            byte[] concated = new byte[dataLen];
-            // / First two bytes are manufacturer id in little-endian.
-            concated[0] = (byte) (manufacturerId & 0xFF);
-            concated[1] = (byte) ((manufacturerId >> 8) & 0xFF);
-            if (manufacturerData != null) {
-                System.arraycopy(manufacturerData, 0, concated, 2, manufacturerData.length);
-            }
-            return concated;
-        }
-
-        // Combine service UUID and service data.
-        private byte[] getServiceData(AdvertiseData advertiseData) {
-            if (advertiseData.getServiceData().isEmpty()) {
-                return new byte[0];
-            }
-            ParcelUuid uuid = advertiseData.getServiceData().keySet().iterator().next();
-            byte[] serviceData = advertiseData.getServiceData().get(uuid);
-            int dataLen = 2 + (serviceData == null ? 0 : serviceData.length);
-            byte[] concated = new byte[dataLen];
-            // Extract 16 bit UUID value.
-            int uuidValue = BluetoothUuid.getServiceIdentifierFromParcelUuid(
-                    uuid);
-            // First two bytes are service data UUID in little-endian.
-            concated[0] = (byte) (uuidValue & 0xFF);
-            concated[1] = (byte) ((uuidValue >> 8) & 0xFF);
-            if (serviceData != null) {
-                System.arraycopy(serviceData, 0, concated, 2, serviceData.length);
+                gattSetAdvDataNative(client.clientIf, isScanResponse, payload.includeName,
+                        payload.includeTxPower, 0, 0, appearance,
+                        payload.manufacturerData, payload.serviceData, payload.serviceUuids);
             }
-            return concated;
         }
 
         // Convert settings tx power level to stack tx power level.
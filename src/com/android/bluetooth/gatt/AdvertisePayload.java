@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothUuid;
+import android.bluetooth.le.AdvertiseData;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Advertising data encoded into the fields passed to the stack.
+ *
+ * A payload is compiled once per {@link AdvertiseData} and kept with the client.
+ * Compiling an update against the previous payload reuses the encoded fields
+ * whose input did not change, and {@link #sameAs} tells whether the stack needs
+ * to be called at all.
+ *
+ * @hide
+ */
+/* package */class AdvertisePayload {
+    // Maximum length of the advertise data or of the scan response.
+    static final int MAX_ADVERTISING_DATA_BYTES = 31;
+
+    // Length and type bytes of each AD structure.
+    private static final int OVERHEAD_BYTES_PER_FIELD = 2;
+    private static final int FLAGS_FIELD_BYTES = 3;
+    private static final int MANUFACTURER_SPECIFIC_DATA_LENGTH = 2;
+    private static final int SERVICE_DATA_UUID_LENGTH = 2;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    final boolean includeName;
+    final boolean includeTxPower;
+    final byte[] manufacturerData;
+    final byte[] serviceData;
+    final byte[] serviceUuids;
+
+    // Inputs of the encoded fields, compared on the next update.
+    private final List<ParcelUuid> mUuidList;
+    private final int mManufacturerId;
+    private final byte[] mManufacturerInput;
+    private final ParcelUuid mServiceDataUuid;
+    private final byte[] mServiceDataInput;
+
+    private AdvertisePayload(boolean includeName, boolean includeTxPower,
+            byte[] manufacturerData, byte[] serviceData, byte[] serviceUuids,
+            List<ParcelUuid> uuidList, int manufacturerId, byte[] manufacturerInput,
+            ParcelUuid serviceDataUuid, byte[] serviceDataInput) {
+        this.includeName = includeName;
+        this.includeTxPower = includeTxPower;
+        this.manufacturerData = manufacturerData;
+        this.serviceData = serviceData;
+        this.serviceUuids = serviceUuids;
+        mUuidList = uuidList;
+        mManufacturerId = manufacturerId;
+        mManufacturerInput = manufacturerInput;
+        mServiceDataUuid = serviceDataUuid;
+        mServiceDataInput = serviceDataInput;
+    }
+
+    /**
+     * Encodes {@code data}, reusing fields of {@code previous} whose input did not change.
+     * {@code previous} may be null.
+     */
+    static AdvertisePayload compile(AdvertiseData data, AdvertisePayload previous) {
+        List<ParcelUuid> uuidList = data.getServiceUuids();
+        byte[] serviceUuids;
+        if (previous != null && equalsOrNull(uuidList, previous.mUuidList)) {
+            serviceUuids = previous.serviceUuids;
+        } else {
+            serviceUuids = getServiceUuids(uuidList);
+            uuidList = uuidList == null ? null : new ArrayList<ParcelUuid>(uuidList);
+        }
+
+        // Only the first manufacturer and service data entries are advertised.
+        SparseArray<byte[]> specificData = data.getManufacturerSpecificData();
+        int manufacturerId = -1;
+        byte[] manufacturerInput = null;
+        if (specificData != null && specificData.size() != 0) {
+            manufacturerId = specificData.keyAt(0);
+            manufacturerInput = specificData.valueAt(0);
+        }
+        byte[] manufacturerData;
+        if (previous != null && manufacturerId == previous.mManufacturerId
+                && Arrays.equals(manufacturerInput, previous.mManufacturerInput)) {
+            manufacturerData = previous.manufacturerData;
+            manufacturerInput = previous.mManufacturerInput;
+        } else {
+            manufacturerData = getManufacturerData(manufacturerId, manufacturerInput);
+            manufacturerInput = manufacturerInput == null ? null : manufacturerInput.clone();
+        }
+
+        Map<ParcelUuid, byte[]> serviceDataMap = data.getServiceData();
+        ParcelUuid serviceDataUuid = null;
+        byte[] serviceDataInput = null;
+        if (serviceDataMap != null && !serviceDataMap.isEmpty()) {
+            serviceDataUuid = serviceDataMap.keySet().iterator().next();
+            serviceDataInput = serviceDataMap.get(serviceDataUuid);
+        }
+        byte[] serviceData;
+        if (previous != null && equalsOrNull(serviceDataUuid, previous.mServiceDataUuid)
+                && Arrays.equals(serviceDataInput, previous.mServiceDataInput)) {
+            serviceData = previous.serviceData;
+            serviceDataInput = previous.mServiceDataInput;
+        } else {
+            serviceData = getServiceData(serviceDataUuid, serviceDataInput);
+            serviceDataInput = serviceDataInput == null ? null : serviceDataInput.clone();
+        }
+
+        return new AdvertisePayload(data.getIncludeDeviceName(), data.getIncludeTxPowerLevel(),
+                manufacturerData, serviceData, serviceUuids, uuidList, manufacturerId,
+                manufacturerInput, serviceDataUuid, serviceDataInput);
+    }
+
+    /**
+     * Returns true if this payload would program the same data as {@code other}.
+     */
+    boolean sameAs(AdvertisePayload other) {
+        return other != null && includeName == other.includeName
+                && includeTxPower == other.includeTxPower
+                && Arrays.equals(manufacturerData, other.manufacturerData)
+                && Arrays.equals(serviceData, other.serviceData)
+                && Arrays.equals(serviceUuids, other.serviceUuids);
+    }
+
+    /**
+     * Returns the number of bytes {@code data} takes over the air, counted the same
+     * way as the framework does before starting an advertiser. {@code deviceName}
+     * may be null.
+     */
+    static int totalBytes(AdvertiseData data, boolean isFlagsIncluded, String deviceName) {
+        if (data == null) return 0;
+        int size = isFlagsIncluded ? FLAGS_FIELD_BYTES : 0;
+        if (data.getServiceUuids() != null) {
+            int num16BitUuids = 0;
+            int num32BitUuids = 0;
+            int num128BitUuids = 0;
+            for (ParcelUuid uuid : data.getServiceUuids()) {
+                if (BluetoothUuid.is16BitUuid(uuid)) {
+                    ++num16BitUuids;
+                } else if (BluetoothUuid.is32BitUuid(uuid)) {
+                    ++num32BitUuids;
+                } else {
+                    ++num128BitUuids;
+                }
+            }
+            if (num16BitUuids != 0) {
+                size += OVERHEAD_BYTES_PER_FIELD + num16BitUuids * BluetoothUuid.UUID_BYTES_16_BIT;
+            }
+            if (num32BitUuids != 0) {
+                size += OVERHEAD_BYTES_PER_FIELD + num32BitUuids * BluetoothUuid.UUID_BYTES_32_BIT;
+            }
+            if (num128BitUuids != 0) {
+                size += OVERHEAD_BYTES_PER_FIELD
+                        + num128BitUuids * BluetoothUuid.UUID_BYTES_128_BIT;
+            }
+        }
+        for (ParcelUuid uuid : data.getServiceData().keySet()) {
+            size += OVERHEAD_BYTES_PER_FIELD + SERVICE_DATA_UUID_LENGTH
+                    + byteLength(data.getServiceData().get(uuid));
+        }
+        SparseArray<byte[]> specificData = data.getManufacturerSpecificData();
+        for (int i = 0; i < specificData.size(); ++i) {
+            size += OVERHEAD_BYTES_PER_FIELD + MANUFACTURER_SPECIFIC_DATA_LENGTH
+                    + byteLength(specificData.valueAt(i));
+        }
+        if (data.getIncludeTxPowerLevel()) {
+            size += OVERHEAD_BYTES_PER_FIELD + 1;
+        }
+        if (data.getIncludeDeviceName() && deviceName != null) {
+            size += OVERHEAD_BYTES_PER_FIELD + deviceName.length();
+        }
+        return size;
+    }
+
+    private static int byteLength(byte[] array) {
+        return array == null ? 0 : array.length;
+    }
+
+    private static boolean equalsOrNull(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // Combine manufacturer id and manufacturer data.
+    private static byte[] getManufacturerData(int manufacturerId, byte[] manufacturerData) {
+        if (manufacturerId < 0) {
+            return EMPTY;
+        }
+        int dataLen = 2 + (manufacturerData == null ? 0 : manufacturerData.length);
+        byte[] concated = new byte[dataLen];
+        // First two bytes are manufacturer id in little-endian.
+        concated[0] = (byte) (manufacturerId & 0xFF);
+        concated[1] = (byte) ((manufacturerId >> 8) & 0xFF);
+        if (manufacturerData != null) {
+            System.arraycopy(manufacturerData, 0, concated, 2, manufacturerData.length);
+        }
+        return concated;
+    }
+
+    // Combine service UUID and service data.
+    private static byte[] getServiceData(ParcelUuid uuid, byte[] serviceData) {
+        if (uuid == null) {
+            return EMPTY;
+        }
+        int dataLen = 2 + (serviceData == null ? 0 : serviceData.length);
+        byte[] concated = new byte[dataLen];
+        // Extract 16 bit UUID value.
+        int uuidValue = BluetoothUuid.getServiceIdentifierFromParcelUuid(uuid);
+        // First two bytes are service data UUID in little-endian.
+        concated[0] = (byte) (uuidValue & 0xFF);
+        concated[1] = (byte) ((uuidValue >> 8) & 0xFF);
+        if (serviceData != null) {
+            System.arraycopy(serviceData, 0, concated, 2, serviceData.length);
+        }
+        return concated;
+    }
+
+    private static byte[] getServiceUuids(List<ParcelUuid> uuids) {
+        if (uuids == null) {
+            return EMPTY;
+        }
+        ByteBuffer advertisingUuidBytes = ByteBuffer.allocate(uuids.size() * 16)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (ParcelUuid parcelUuid : uuids) {
+            UUID uuid = parcelUuid.getUuid();
+            // Least significant bits first as the advertising UUID should be in
+            // little-endian.
+            advertisingUuidBytes.putLong(uuid.getLeastSignificantBits())
+                    .putLong(uuid.getMostSignificantBits());
+        }
+        return advertisingUuidBytes.array();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.util.Log;
+
+import com.android.bluetooth.util.NumberUtils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads {@link ScanResult}s out of a batch scan report delivered by the controller.
+ *
+ * The report is decoded in place with an offset cursor and results are produced a
+ * page at a time, so a large report never has to be materialized as a whole.
+ *
+ * @hide
+ */
+/* package */class BatchScanReportReader {
+    private static final boolean VDBG = GattServiceConfig.VDBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "BatchScanReportReader";
+
+    private static final int MAC_ADDRESS_LENGTH = 6;
+    private static final int TRUNCATED_RESULT_SIZE = 11;
+    private static final int TIME_STAMP_LENGTH = 2;
+    // Address, address type, tx power, rssi, timestamp and advertise packet length.
+    private static final int FULL_RESULT_HEADER_SIZE = MAC_ADDRESS_LENGTH + 3
+            + TIME_STAMP_LENGTH + 1;
+    // Rough parcel size of a ScanResult excluding its advertising data.
+    private static final int SCAN_RESULT_OVERHEAD_BYTES = 128;
+
+    private final BluetoothAdapter mAdapter;
+    private final int mReportType;
+    private final byte[] mRecord;
+    private final int mNumRecords;
+    private final long mNowNanos;
+    private final byte[] mAddress = new byte[MAC_ADDRESS_LENGTH];
+    private ScanRecord mEmptyRecord;
+    // Truncated results read so far, the controller can report the same one twice.
+    private final Set<ScanResult> mTruncatedResults = new HashSet<ScanResult>();
+    private int mPosition;
+    private int mRecordsRead;
+
+    BatchScanReportReader(BluetoothAdapter adapter, int reportType, int numRecords,
+            byte[] batchRecord, long nowNanos) {
+        mAdapter = adapter;
+        mReportType = reportType;
+        mRecord = batchRecord != null ? batchRecord : new byte[0];
+        mNumRecords = numRecords;
+        mNowNanos = nowNanos;
+        if (VDBG) Log.d(TAG, "batch record " + Arrays.toString(mRecord));
+    }
+
+    /**
+     * Returns true if another result can be read from the report.
+     */
+    boolean hasNext() {
+        if (mReportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
+            return mRecordsRead < mNumRecords
+                    && mPosition + TRUNCATED_RESULT_SIZE <= mRecord.length;
+        }
+        return mNumRecords > 0 && mPosition + FULL_RESULT_HEADER_SIZE <= mRecord.length;
+    }
+
+    /**
+     * Returns the next result, or null if the rest of the report is malformed.
+     */
+    ScanResult next() {
+        ScanResult result = mReportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED
+                ? nextTruncated() : nextFull();
+        if (result == null) {
+            Log.w(TAG, "truncated batch record at " + mPosition + " of " + mRecord.length);
+            mPosition = mRecord.length;
+        }
+        mRecordsRead++;
+        return result;
+    }
+
+    /**
+     * Appends results to {@code page} until the report is exhausted or the page
+     * holds {@code maxResults} results or about {@code maxBytes} bytes. A truncated
+     * result that was already read from this report is skipped.
+     *
+     * @return the number of results appended
+     */
+    int readPage(List<ScanResult> page, int maxResults, int maxBytes) {
+        int count = 0;
+        int bytes = 0;
+        while (count < maxResults && bytes < maxBytes && hasNext()) {
+            ScanResult result = next();
+            if (result == null) break;
+            if (mReportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED
+                    && !mTruncatedResults.add(result)) {
+                continue;
+            }
+            page.add(result);
+            bytes += estimateSize(result);
+            count++;
+        }
+        return count;
+    }
+
+    static int estimateSize(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        return SCAN_RESULT_OVERHEAD_BYTES + (record == null ? 0 : record.getBytes().length);
+    }
+
+    private ScanResult nextTruncated() {
+        int position = mPosition;
+        mPosition += TRUNCATED_RESULT_SIZE;
+        BluetoothDevice device = mAdapter.getRemoteDevice(readReversedAddress(position));
+        int rssi = mRecord[position + 8];
+        long timestampNanos = mNowNanos - parseTimestampNanos(mRecord, position + 9,
+                TIME_STAMP_LENGTH);
+        // Truncated records carry no advertising data, share a single empty record.
+        if (mEmptyRecord == null) {
+            mEmptyRecord = ScanRecord.parseFromBytes(new byte[0]);
+        }
+        return new ScanResult(device, mEmptyRecord, rssi, timestampNanos);
+    }
+
+    private ScanResult nextFull() {
+        int position = mPosition;
+        // The controller reports the address little endian.
+        BluetoothDevice device = mAdapter.getRemoteDevice(readReversedAddress(position));
+        position += MAC_ADDRESS_LENGTH;
+        // Skip address type.
+        position++;
+        // Skip tx power level.
+        position++;
+        int rssi = mRecord[position++];
+        long timestampNanos = mNowNanos - parseTimestampNanos(mRecord, position,
+                TIME_STAMP_LENGTH);
+        position += TIME_STAMP_LENGTH;
+
+        // Combine advertise packet and scan response packet.
+        int advertisePacketLen = mRecord[position++] & 0xFF;
+        int advertiseStart = position;
+        position += advertisePacketLen;
+        if (position >= mRecord.length) return null;
+        int scanResponsePacketLen = mRecord[position++] & 0xFF;
+        int scanResponseStart = position;
+        position += scanResponsePacketLen;
+        if (position > mRecord.length) return null;
+        mPosition = position;
+
+        // ScanRecord only parses whole arrays, so this is the one copy per record.
+        byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
+        System.arraycopy(mRecord, advertiseStart, scanRecord, 0, advertisePacketLen);
+        System.arraycopy(mRecord, scanResponseStart, scanRecord,
+                advertisePacketLen, scanResponsePacketLen);
+        if (VDBG) Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
+        return new ScanResult(device, ScanRecord.parseFromBytes(scanRecord),
+                rssi, timestampNanos);
+    }
+
+    // Copies the little endian address at offset into the scratch buffer in big endian order.
+    private byte[] readReversedAddress(int offset) {
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; ++i) {
+            mAddress[i] = mRecord[offset + MAC_ADDRESS_LENGTH - 1 - i];
+        }
+        return mAddress;
+    }
+
+    static long parseTimestampNanos(byte[] data, int offset, int length) {
+        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data, offset, length);
+        // Timestamp is in every 50 ms.
+        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.UUID;
+
+/**
+ * A write without response of a value larger than the MTU to one characteristic.
+ *
+ * The value is split into chunks that fit the connection's MTU. The GATT client
+ * stack runs one operation per connection at a time, so the next chunk is only
+ * handed to the stack once the write callback of the previous one arrived. The
+ * client is told about the whole transfer once, when the last chunk completed, a
+ * chunk failed or a chunk timed out.
+ *
+ * Write callbacks carry no tag, so the transfer keeps the order of the writes it
+ * and the client queued on the connection and claims only the callbacks of its
+ * own chunks.
+ *
+ * @hide
+ */
+/* package */class BulkWrite {
+    // ATT write command header: opcode and attribute handle.
+    static final int ATT_WRITE_HEADER_SIZE = 3;
+
+    final int clientIf;
+    final String address;
+    final int srvcType;
+    final int srvcInstId;
+    final UUID srvcUuid;
+    final int charInstId;
+    final UUID charUuid;
+    final int authReq;
+
+    private final byte[] mValue;
+    private final int mChunkSize;
+    // Writes queued with the stack, oldest first. True for a chunk of this transfer.
+    private final Deque<Boolean> mOutstanding = new ArrayDeque<Boolean>();
+    private int mOffset;
+    private boolean mChunkPending;
+    private boolean mReported;
+    private int mStatus;
+
+    BulkWrite(int clientIf, String address, int srvcType, int srvcInstId, UUID srvcUuid,
+            int charInstId, UUID charUuid, int authReq, byte[] value, int mtu) {
+        this.clientIf = clientIf;
+        this.address = address;
+        this.srvcType = srvcType;
+        this.srvcInstId = srvcInstId;
+        this.srvcUuid = srvcUuid;
+        this.charInstId = charInstId;
+        this.charUuid = charUuid;
+        this.authReq = authReq;
+        mValue = value;
+        mChunkSize = Math.max(1, mtu - ATT_WRITE_HEADER_SIZE);
+    }
+
+    /**
+     * Returns the next chunk to send, or null if a chunk is still pending, the value
+     * was sent completely or the transfer failed.
+     */
+    synchronized byte[] nextChunk() {
+        if (mReported || mStatus != 0 || mChunkPending || mOffset >= mValue.length) {
+            return null;
+        }
+        int end = Math.min(mValue.length, mOffset + mChunkSize);
+        byte[] chunk = Arrays.copyOfRange(mValue, mOffset, end);
+        mOffset = end;
+        mChunkPending = true;
+        mOutstanding.add(true);
+        return chunk;
+    }
+
+    /**
+     * Records a write the client queued on the connection while the transfer runs.
+     */
+    synchronized void onClientWrite() {
+        mOutstanding.add(false);
+    }
+
+    /**
+     * Takes the oldest outstanding write off the queue when its callback arrives.
+     *
+     * @return true if the callback belongs to a chunk of this transfer.
+     */
+    synchronized boolean claimWriteCallback() {
+        Boolean chunk = mOutstanding.poll();
+        return chunk != null && chunk;
+    }
+
+    /**
+     * Records the completion of the pending chunk.
+     *
+     * @return true if the transfer is finished and the client should be notified.
+     */
+    synchronized boolean onChunkWritten(int status) {
+        mChunkPending = false;
+        if (status != 0 && mStatus == 0) mStatus = status;
+        if (mReported || (mStatus == 0 && mOffset < mValue.length)) return false;
+        mReported = true;
+        return true;
+    }
+
+    /**
+     * Fails the transfer because the pending chunk took too long. The chunk stays
+     * outstanding so that its late callback is still claimed by this transfer.
+     *
+     * @return true if the client should be notified.
+     */
+    synchronized boolean onChunkTimeout(int status) {
+        if (!mChunkPending || mReported) return false;
+        if (mStatus == 0) mStatus = status;
+        mReported = true;
+        return true;
+    }
+
+    /**
+     * Returns true once the client was notified and no chunk is left with the stack.
+     */
+    synchronized boolean isFinished() {
+        return mReported && !mChunkPending;
+    }
+
+    synchronized int getStatus() {
+        return mStatus;
+    }
+
+    synchronized int getBytesWritten() {
+        return mOffset;
+    }
+}
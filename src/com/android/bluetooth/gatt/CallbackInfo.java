@@ -32,6 +32,8 @@ class CallbackInfo {
     UUID srvcUuid;
     int charInstId;
     UUID charUuid;
+    // Completion of a notification, which may be dropped while the link is congested.
+    boolean isNotification;
 
     CallbackInfo(String address, int status, int srvcType, int srvcInstId,
             UUID srvcUuid, int charInstId, UUID charUuid) {
@@ -48,5 +50,11 @@ class CallbackInfo {
         this.address = address;
         this.status = status;
     }
+
+    CallbackInfo(String address, int status, boolean isNotification) {
+        this.address = address;
+        this.status = status;
+        this.isNotification = isNotification;
+    }
 }
 
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+/**
+ * Bounded ring buffer holding the callbacks of one connection while it is congested.
+ *
+ * Once the buffer is full, notification sent completions are dropped to make room:
+ * a new one is dropped, and any other callback replaces the oldest queued one.
+ * Write responses and indication completions are never dropped. If the buffer is
+ * full of them, {@link #add} refuses the callback and the caller delivers it right
+ * away instead.
+ *
+ * @hide
+ */
+/* package */class CongestionQueue {
+    private final CallbackInfo[] mBuffer;
+    private int mHead;
+    private int mSize;
+
+    private long mQueued;
+    private long mDropped;
+    private int mMaxDepth;
+
+    CongestionQueue(int capacity) {
+        mBuffer = new CallbackInfo[Math.max(1, capacity)];
+    }
+
+    /**
+     * Queues {@code callbackInfo}. Returns false if the queue is full and no notification
+     * completion could be dropped for it, the caller then delivers it right away.
+     */
+    synchronized boolean add(CallbackInfo callbackInfo) {
+        if (mSize == mBuffer.length) {
+            if (callbackInfo.isNotification) {
+                mDropped++;
+                return true;
+            }
+            if (!dropOldestNotification()) return false;
+        }
+        mQueued++;
+        mBuffer[(mHead + mSize) % mBuffer.length] = callbackInfo;
+        mSize++;
+        mMaxDepth = Math.max(mMaxDepth, mSize);
+        return true;
+    }
+
+    /**
+     * Removes and returns the oldest callback, or null if the queue is empty.
+     */
+    synchronized CallbackInfo poll() {
+        if (mSize == 0) return null;
+        CallbackInfo callbackInfo = mBuffer[mHead];
+        mBuffer[mHead] = null;
+        mHead = (mHead + 1) % mBuffer.length;
+        mSize--;
+        return callbackInfo;
+    }
+
+    // Removes the oldest notification completion and closes the gap it leaves.
+    private boolean dropOldestNotification() {
+        for (int i = 0; i < mSize; ++i) {
+            if (!mBuffer[(mHead + i) % mBuffer.length].isNotification) continue;
+            for (int j = i; j < mSize - 1; ++j) {
+                mBuffer[(mHead + j) % mBuffer.length] = mBuffer[(mHead + j + 1) % mBuffer.length];
+            }
+            mSize--;
+            mBuffer[(mHead + mSize) % mBuffer.length] = null;
+            mDropped++;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized int capacity() {
+        return mBuffer.length;
+    }
+
+    synchronized long getQueuedCount() {
+        return mQueued;
+    }
+
+    synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "depth " + mSize + "/" + mBuffer.length + ", max " + mMaxDepth + ", queued "
+                + mQueued + ", dropped " + mDropped;
+    }
+}
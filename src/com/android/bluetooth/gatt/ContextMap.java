@@ -28,7 +28,10 @@ import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Helper class that keeps track of registered GATT applications.
@@ -38,6 +41,9 @@ import java.util.Map;
 /*package*/ class ContextMap<T> {
     private static final String TAG = GattServiceConfig.TAG_PREFIX + "ContextMap";
 
+    /** ATT MTU before an exchange */
+    static final int DEFAULT_MTU = 23;
+
     /**
      * Connection class helps map connection IDs to device addresses.
      */
@@ -45,6 +51,8 @@ import java.util.Map;
         int connId;
         String address;
         int appId;
+        /** ATT MTU negotiated on this connection */
+        volatile int mtu = DEFAULT_MTU;
 
         Connection(int connId, String address,int appId) {
             this.connId = connId;
@@ -72,8 +80,15 @@ import java.util.Map;
         /** Flag to signal that transport is congested */
         Boolean isCongested = false;
 
-        /** Internal callback info queue, waiting to be send on congestion clear */
-        private List<CallbackInfo> congestionQueue = new ArrayList<CallbackInfo>();
+        /**
+         * Internal callback info queues by device address, waiting to be send on
+         * congestion clear
+         */
+        private final Map<String, CongestionQueue> mCongestionQueues =
+                new LinkedHashMap<String, CongestionQueue>();
+
+        /** Callbacks dropped by the congestion queues of disconnected devices */
+        private long mDroppedCallbacks;
 
         /**
          * Creates a new app context.
@@ -110,28 +125,114 @@ import java.util.Map;
             }
         }
 
-        void queueCallback(CallbackInfo callbackInfo) {
-            congestionQueue.add(callbackInfo);
+        /**
+         * Queues a callback until congestion clears. Returns false if the queue of the
+         * device is full, the callback must then be delivered right away.
+         */
+        boolean queueCallback(CallbackInfo callbackInfo) {
+            synchronized (mCongestionQueues) {
+                CongestionQueue queue = mCongestionQueues.get(callbackInfo.address);
+                if (queue == null) {
+                    queue = new CongestionQueue(mCongestionQueueCapacity);
+                    mCongestionQueues.put(callbackInfo.address, queue);
+                }
+                return queue.add(callbackInfo);
+            }
         }
 
         CallbackInfo popQueuedCallback() {
-            if (congestionQueue.size() == 0) return null;
-            return congestionQueue.remove(0);
+            synchronized (mCongestionQueues) {
+                for (CongestionQueue queue : mCongestionQueues.values()) {
+                    CallbackInfo callbackInfo = queue.poll();
+                    if (callbackInfo != null) return callbackInfo;
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Drops the queued callbacks of a device that is no longer connected.
+         */
+        void removeQueuedCallbacks(String address) {
+            synchronized (mCongestionQueues) {
+                CongestionQueue queue = mCongestionQueues.remove(address);
+                if (queue != null) mDroppedCallbacks += queue.getDroppedCount();
+            }
+        }
+
+        /**
+         * Returns the number of notification completions dropped while congested.
+         */
+        long getDroppedCallbackCount() {
+            synchronized (mCongestionQueues) {
+                long dropped = mDroppedCallbacks;
+                for (CongestionQueue queue : mCongestionQueues.values()) {
+                    dropped += queue.getDroppedCount();
+                }
+                return dropped;
+            }
+        }
+
+        void dumpQueues(StringBuilder sb) {
+            sb.append("    Congestion callbacks dropped: " + getDroppedCallbackCount() + "\n");
+            synchronized (mCongestionQueues) {
+                for (Map.Entry<String, CongestionQueue> entry : mCongestionQueues.entrySet()) {
+                    sb.append("    Congestion queue " + entry.getKey() + ": "
+                            + entry.getValue() + "\n");
+                }
+            }
         }
     }
 
-    /** Our internal application list */
-    List<App> mApps = new ArrayList<App>();
+    /**
+     * Capacity of the per connection congestion queues, set from
+     * R.integer.gatt_congestion_queue_capacity when the service starts.
+     */
+    private volatile int mCongestionQueueCapacity;
 
-    /** Internal list of connected devices **/
-    Set<Connection> mConnections = new HashSet<Connection>();
+    /**
+     * Our internal application list. Apps are registered rarely and read on every
+     * callback, so the list and the indexes below are read without locking.
+     */
+    List<App> mApps = new CopyOnWriteArrayList<App>();
+
+    /** Registered applications by application ID and by UUID */
+    private final Map<Integer, App> mAppsById = new ConcurrentHashMap<Integer, App>();
+    private final Map<UUID, App> mAppsByUuid = new ConcurrentHashMap<UUID, App>();
+
+    /** Connected devices by connection ID **/
+    private final Map<Integer, Connection> mConnections =
+            new ConcurrentHashMap<Integer, Connection>();
+
+    /** Connected devices by application ID and device address **/
+    private final Map<Integer, Map<String, Connection>> mConnectionsByApp =
+            new ConcurrentHashMap<Integer, Map<String, Connection>>();
 
     /**
      * Add an entry to the application context list.
      */
     void add(UUID uuid, T callback) {
         synchronized (mApps) {
-            mApps.add(new App(uuid, callback));
+            App app = new App(uuid, callback);
+            mApps.add(app);
+            if (!mAppsByUuid.containsKey(uuid)) mAppsByUuid.put(uuid, app);
+        }
+    }
+
+    /**
+     * Configures congestion queues created from now on.
+     */
+    void setCongestionQueueConfig(int capacity) {
+        mCongestionQueueCapacity = capacity;
+    }
+
+    /**
+     * Assigns the application ID once the stack registered the application.
+     */
+    void setAppId(App app, int id) {
+        synchronized (mApps) {
+            app.id = id;
+            mAppsById.put(id, app);
         }
     }
 
@@ -140,14 +241,10 @@ import java.util.Map;
      */
     void remove(UUID uuid) {
         synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    entry.unlinkToDeath();
-                    i.remove();
-                    break;
-                }
+            App entry = mAppsByUuid.get(uuid);
+            if (entry != null) {
+                entry.unlinkToDeath();
+                removeApp(entry);
             }
         }
     }
@@ -157,18 +254,21 @@ import java.util.Map;
      */
     void remove(int id) {
         synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    entry.unlinkToDeath();
-                    i.remove();
-                    break;
-                }
+            App entry = mAppsById.get(id);
+            if (entry != null) {
+                entry.unlinkToDeath();
+                removeApp(entry);
             }
         }
         synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
+            Map<String, Connection> connections = mConnectionsByApp.remove(id);
+            if (connections != null) {
+                for (Connection connection : connections.values()) {
+                    mConnections.remove(connection.connId);
+                }
+            }
+            // Connections that were displaced from mConnectionsByApp by a newer one.
+            Iterator<Connection> i = mConnections.values().iterator();
             while(i.hasNext()) {
                 Connection connection = i.next();
                 if (connection.appId == id) {
@@ -178,6 +278,22 @@ import java.util.Map;
         }
     }
 
+    // Must be called with mApps held.
+    private void removeApp(App entry) {
+        mApps.remove(entry);
+        if (mAppsById.get(entry.id) == entry) mAppsById.remove(entry.id);
+        if (mAppsByUuid.get(entry.uuid) == entry) {
+            mAppsByUuid.remove(entry.uuid);
+            // Another app may have been registered with the same UUID.
+            for (App app : mApps) {
+                if (app.uuid.equals(entry.uuid)) {
+                    mAppsByUuid.put(app.uuid, app);
+                    break;
+                }
+            }
+        }
+    }
+
     /**
      * Add a new connection for a given application ID.
      */
@@ -185,7 +301,14 @@ import java.util.Map;
         synchronized (mConnections) {
             App entry = getById(id);
             if (entry != null){
-                mConnections.add(new Connection(connId, address, id));
+                Connection connection = new Connection(connId, address, id);
+                mConnections.put(connId, connection);
+                Map<String, Connection> connections = mConnectionsByApp.get(id);
+                if (connections == null) {
+                    connections = new ConcurrentHashMap<String, Connection>();
+                    mConnectionsByApp.put(id, connections);
+                }
+                connections.put(address, connection);
             }
         }
     }
@@ -195,12 +318,14 @@ import java.util.Map;
      */
     void removeConnection(int id, int connId) {
         synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while(i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                }
+            Connection connection = mConnections.remove(connId);
+            if (connection == null) return;
+            Map<String, Connection> connections = mConnectionsByApp.get(connection.appId);
+            if (connections != null && connections.get(connection.address) == connection) {
+                connections.remove(connection.address);
+                if (connections.isEmpty()) mConnectionsByApp.remove(connection.appId);
+                App app = mAppsById.get(connection.appId);
+                if (app != null) app.removeQueuedCallbacks(connection.address);
             }
         }
     }
@@ -209,26 +334,22 @@ import java.util.Map;
      * Get an application context by ID.
      */
     App getById(int id) {
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            if (entry.id == id) return entry;
+        App entry = mAppsById.get(id);
+        if (entry == null) {
+            Log.e(TAG, "Context not found for ID " + id);
         }
-        Log.e(TAG, "Context not found for ID " + id);
-        return null;
+        return entry;
     }
 
     /**
      * Get an application context by UUID.
      */
     App getByUuid(UUID uuid) {
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            if (entry.uuid.equals(uuid)) return entry;
+        App entry = mAppsByUuid.get(uuid);
+        if (entry == null) {
+            Log.e(TAG, "Context not found for UUID " + uuid);
         }
-        Log.e(TAG, "Context not found for UUID " + uuid);
-        return null;
+        return entry;
     }
 
     /**
@@ -236,9 +357,7 @@ import java.util.Map;
      */
     Set<String> getConnectedDevices() {
         Set<String> addresses = new HashSet<String>();
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
+        for (Connection connection : mConnections.values()) {
             addresses.add(connection.address);
         }
         return addresses;
@@ -248,14 +367,9 @@ import java.util.Map;
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        Iterator<Connection> ii = mConnections.iterator();
-        while(ii.hasNext()) {
-            Connection connection = ii.next();
-            if (connection.connId == connId){
-                return getById(connection.appId);
-            }
-        }
-        return null;
+        Connection connection = mConnections.get(connId);
+        if (connection == null) return null;
+        return getById(connection.appId);
     }
 
     /**
@@ -265,36 +379,40 @@ import java.util.Map;
         App entry = getById(id);
         if (entry == null) return null;
 
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.address.equals(address) && connection.appId == id)
-                return connection.connId;
-        }
-        return null;
+        Map<String, Connection> connections = mConnectionsByApp.get(id);
+        if (connections == null || address == null) return null;
+        Connection connection = connections.get(address);
+        return connection != null ? connection.connId : null;
     }
 
     /**
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.connId == connId) return connection.address;
-        }
-        return null;
+        Connection connection = mConnections.get(connId);
+        return connection != null ? connection.address : null;
+    }
+
+    /**
+     * Records the MTU negotiated on a connection.
+     */
+    void setMtu(int connId, int mtu) {
+        Connection connection = mConnections.get(connId);
+        if (connection != null) connection.mtu = mtu;
+    }
+
+    /**
+     * Returns the MTU of a connection, or the default MTU if it is unknown.
+     */
+    int getMtu(int connId) {
+        Connection connection = mConnections.get(connId);
+        return connection != null ? connection.mtu : DEFAULT_MTU;
     }
 
     List<Connection> getConnectionByApp(int appId) {
-        List<Connection> currentConnections = new ArrayList<Connection>();
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.appId == appId)
-                currentConnections.add(connection);
-        }
-        return currentConnections;
+        Map<String, Connection> connections = mConnectionsByApp.get(appId);
+        if (connections == null) return new ArrayList<Connection>();
+        return new ArrayList<Connection>(connections.values());
     }
 
     /**
@@ -302,16 +420,17 @@ import java.util.Map;
      */
     void clear() {
         synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
+            for (App entry : mApps) {
                 entry.unlinkToDeath();
-                i.remove();
             }
+            mApps.clear();
+            mAppsById.clear();
+            mAppsByUuid.clear();
         }
 
         synchronized (mConnections) {
             mConnections.clear();
+            mConnectionsByApp.clear();
         }
     }
 
@@ -320,7 +439,7 @@ import java.util.Map;
      */
     Map<Integer, String> getConnectedMap(){
         Map<Integer, String> connectedmap = new HashMap<Integer, String>();
-        for(Connection conn: mConnections){
+        for(Connection conn: mConnections.values()){
             connectedmap.put(conn.appId, conn.address);
         }
         return connectedmap;
@@ -346,6 +465,7 @@ import java.util.Map;
                 Connection connection = ii.next();
                 sb.append("    " + connection.connId + ": " + connection.address + "\n");
             }
+            entry.dumpQueues(sb);
         }
     }
 }
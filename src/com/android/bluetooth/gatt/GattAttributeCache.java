@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of the GATT databases of bonded remote devices.
+ *
+ * A database is stored as the attributes reported by a service discovery, in the
+ * order the discovery callbacks reported them, so that replaying the list yields
+ * the same callback sequence. Databases are kept in memory and written to one
+ * file per device on a background thread.
+ *
+ * @hide
+ */
+/* package */class GattAttributeCache {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "GattAttributeCache";
+
+    static final int TYPE_SERVICE = 1;
+    static final int TYPE_CHARACTERISTIC = 2;
+    static final int TYPE_INCLUDED_SERVICE = 3;
+    static final int TYPE_DESCRIPTOR = 4;
+
+    /** Service Changed characteristic of the GATT service */
+    static final UUID SERVICE_CHANGED_UUID =
+            UUID.fromString("00002A05-0000-1000-8000-00805F9B34FB");
+
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * One discovered attribute. Fields that do not apply to the attribute type are
+     * zero or null.
+     */
+    static class Attribute {
+        final int type;
+        final int srvcType;
+        final int srvcInstId;
+        final UUID srvcUuid;
+        // Characteristic, or parent characteristic of a descriptor.
+        final int charInstId;
+        final UUID charUuid;
+        final int charProp;
+        // Descriptor or included service.
+        final int instId;
+        final UUID uuid;
+        final int inclSrvcType;
+
+        private Attribute(int type, int srvcType, int srvcInstId, UUID srvcUuid,
+                int charInstId, UUID charUuid, int charProp, int instId, UUID uuid,
+                int inclSrvcType) {
+            this.type = type;
+            this.srvcType = srvcType;
+            this.srvcInstId = srvcInstId;
+            this.srvcUuid = srvcUuid;
+            this.charInstId = charInstId;
+            this.charUuid = charUuid;
+            this.charProp = charProp;
+            this.instId = instId;
+            this.uuid = uuid;
+            this.inclSrvcType = inclSrvcType;
+        }
+
+        static Attribute service(int srvcType, int srvcInstId, UUID srvcUuid) {
+            return new Attribute(TYPE_SERVICE, srvcType, srvcInstId, srvcUuid,
+                    0, null, 0, 0, null, 0);
+        }
+
+        static Attribute characteristic(int srvcType, int srvcInstId, UUID srvcUuid,
+                int charInstId, UUID charUuid, int charProp) {
+            return new Attribute(TYPE_CHARACTERISTIC, srvcType, srvcInstId, srvcUuid,
+                    charInstId, charUuid, charProp, 0, null, 0);
+        }
+
+        static Attribute includedService(int srvcType, int srvcInstId, UUID srvcUuid,
+                int inclSrvcType, int inclSrvcInstId, UUID inclSrvcUuid) {
+            return new Attribute(TYPE_INCLUDED_SERVICE, srvcType, srvcInstId, srvcUuid,
+                    0, null, 0, inclSrvcInstId, inclSrvcUuid, inclSrvcType);
+        }
+
+        static Attribute descriptor(int srvcType, int srvcInstId, UUID srvcUuid,
+                int charInstId, UUID charUuid, int descrInstId, UUID descrUuid) {
+            return new Attribute(TYPE_DESCRIPTOR, srvcType, srvcInstId, srvcUuid,
+                    charInstId, charUuid, 0, descrInstId, descrUuid, 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Attribute)) return false;
+            Attribute other = (Attribute) obj;
+            return type == other.type && srvcType == other.srvcType
+                    && srvcInstId == other.srvcInstId && charInstId == other.charInstId
+                    && charProp == other.charProp && instId == other.instId
+                    && inclSrvcType == other.inclSrvcType
+                    && Objects.equals(srvcUuid, other.srvcUuid)
+                    && Objects.equals(charUuid, other.charUuid)
+                    && Objects.equals(uuid, other.uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, srvcType, srvcInstId, srvcUuid, charInstId, charUuid,
+                    charProp, instId, uuid, inclSrvcType);
+        }
+    }
+
+    private final File mDir;
+    private final Map<String, List<Attribute>> mDatabases =
+            new ConcurrentHashMap<String, List<Attribute>>();
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    GattAttributeCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Starts the I/O thread and loads the stored databases in the background.
+     */
+    void start() {
+        mThread = new HandlerThread("BluetoothGattCache");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                loadAll();
+            }
+        });
+    }
+
+    void cleanup() {
+        if (mThread != null) {
+            // Pending writes are finished before the thread quits.
+            mThread.quitSafely();
+            mThread = null;
+        }
+        mDatabases.clear();
+    }
+
+    /**
+     * Returns the cached database of a device, or null if there is none.
+     */
+    List<Attribute> get(String address) {
+        return mDatabases.get(address);
+    }
+
+    void put(final String address, List<Attribute> attributes) {
+        final List<Attribute> database = Collections.unmodifiableList(
+                new ArrayList<Attribute>(attributes));
+        mDatabases.put(address, database);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                write(address, database);
+            }
+        });
+    }
+
+    void remove(final String address) {
+        mDatabases.remove(address);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                // Also drops an entry the initial load may have added meanwhile.
+                mDatabases.remove(address);
+                new AtomicFile(getFile(address)).delete();
+            }
+        });
+    }
+
+    int size() {
+        return mDatabases.size();
+    }
+
+    private void post(Runnable runnable) {
+        Handler handler = mHandler;
+        if (handler != null) handler.post(runnable);
+    }
+
+    @VisibleForTesting
+    File getFile(String address) {
+        return new File(mDir, address.replace(":", ""));
+    }
+
+    private void loadAll() {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + mDir);
+            return;
+        }
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            // Skip the backup and new files of AtomicFile.
+            if (file.getName().length() != 12) continue;
+            String address = toAddress(file.getName());
+            if (mDatabases.containsKey(address)) continue;
+            try {
+                mDatabases.put(address, read(new AtomicFile(file)));
+            } catch (IOException e) {
+                Log.w(TAG, "Dropping unreadable cache for " + address + ": " + e);
+                new AtomicFile(file).delete();
+            }
+        }
+        if (DBG) Log.d(TAG, "Loaded " + mDatabases.size() + " cached databases");
+    }
+
+    private static String toAddress(String name) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int i = 0; i < name.length(); i += 2) {
+            if (i > 0) sb.append(':');
+            sb.append(name, i, i + 2);
+        }
+        return sb.toString().toUpperCase();
+    }
+
+    @VisibleForTesting
+    List<Attribute> read(AtomicFile file) throws IOException {
+        DataInputStream in = new DataInputStream(file.openRead());
+        try {
+            if (in.readInt() != FILE_VERSION) throw new IOException("unknown version");
+            int count = in.readInt();
+            List<Attribute> attributes = new ArrayList<Attribute>(count);
+            for (int i = 0; i < count; ++i) {
+                attributes.add(new Attribute(in.readByte(), in.readInt(), in.readInt(),
+                        readUuid(in), in.readInt(), readUuid(in), in.readInt(), in.readInt(),
+                        readUuid(in), in.readInt()));
+            }
+            return Collections.unmodifiableList(attributes);
+        } finally {
+            in.close();
+        }
+    }
+
+    @VisibleForTesting
+    void write(String address, List<Attribute> attributes) {
+        AtomicFile file = new AtomicFile(getFile(address));
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(attributes.size());
+            for (Attribute attribute : attributes) {
+                out.writeByte(attribute.type);
+                out.writeInt(attribute.srvcType);
+                out.writeInt(attribute.srvcInstId);
+                writeUuid(out, attribute.srvcUuid);
+                out.writeInt(attribute.charInstId);
+                writeUuid(out, attribute.charUuid);
+                out.writeInt(attribute.charProp);
+                out.writeInt(attribute.instId);
+                writeUuid(out, attribute.uuid);
+                out.writeInt(attribute.inclSrvcType);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write cache for " + address + ": " + e);
+            if (stream != null) file.failWrite(stream);
+        }
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeBoolean(uuid != null);
+        if (uuid != null) {
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        }
+    }
+}
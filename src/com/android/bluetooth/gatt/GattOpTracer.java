@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latency of GATT client operations, from the binder call to the stack callback.
+ *
+ * Latencies are kept in histograms per connection and operation type. The
+ * slowest operations completed within the last {@link #RECENT_WINDOW_MILLIS} are
+ * kept individually. Operations of one type complete in order on a connection,
+ * so each callback is matched with the oldest pending call of its type.
+ *
+ * @hide
+ */
+/* package */class GattOpTracer {
+    static final int OP_READ = 0;
+    static final int OP_WRITE = 1;
+    static final int OP_DESCRIPTOR_READ = 2;
+    static final int OP_DESCRIPTOR_WRITE = 3;
+    static final int OP_NOTIFY_REGISTER = 4;
+    static final int OP_DISCOVERY = 5;
+    static final int OP_MTU = 6;
+    private static final String[] OP_NAMES = { "read", "write", "descriptor-read",
+            "descriptor-write", "notify-register", "discovery", "mtu" };
+
+    // Upper bounds (inclusive) of the histogram buckets, the last bucket is unbounded.
+    static final long[] LATENCY_MILLIS_BOUNDS = { 10, 30, 50, 100, 200, 500, 1000, 5000 };
+
+    static final int MAX_CONNECTIONS = 16;
+    static final int MAX_SLOWEST = 10;
+    static final long RECENT_WINDOW_MILLIS = 10 * 60 * 1000;
+
+    private static class PendingOp {
+        final String address;
+        final long startMillis;
+
+        PendingOp(String address, long startMillis) {
+            this.address = address;
+            this.startMillis = startMillis;
+        }
+    }
+
+    /**
+     * A completed operation.
+     */
+    static class Op {
+        final String address;
+        final int type;
+        final int status;
+        final long latencyMillis;
+        final long endMillis;
+
+        Op(String address, int type, int status, long latencyMillis, long endMillis) {
+            this.address = address;
+            this.type = type;
+            this.status = status;
+            this.latencyMillis = latencyMillis;
+            this.endMillis = endMillis;
+        }
+
+        @Override
+        public String toString() {
+            return address + " " + opName(type) + " " + latencyMillis + "ms status="
+                    + status;
+        }
+    }
+
+    private final Map<Long, ArrayDeque<PendingOp>> mPending =
+            new HashMap<Long, ArrayDeque<PendingOp>>();
+    // Latencies of one connection. Connection IDs are reused, so the histograms
+    // start over when the ID shows up with another address.
+    private static class ConnectionLatencies {
+        final String address;
+        final ScanStats.Histogram[] histograms = new ScanStats.Histogram[OP_NAMES.length];
+
+        ConnectionLatencies(String address) {
+            this.address = address;
+            for (int i = 0; i < histograms.length; ++i) {
+                histograms[i] = new ScanStats.Histogram(LATENCY_MILLIS_BOUNDS);
+            }
+        }
+    }
+
+    private final LinkedHashMap<Integer, ConnectionLatencies> mLatencies =
+            new LinkedHashMap<Integer, ConnectionLatencies>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Integer, ConnectionLatencies> eldest) {
+                    return size() > MAX_CONNECTIONS;
+                }
+            };
+    private final List<Op> mSlowest = new ArrayList<Op>();
+
+    static String opName(int type) {
+        return OP_NAMES[type];
+    }
+
+    private static long key(int connId, int type) {
+        return ((long) connId << 32) | type;
+    }
+
+    /**
+     * Records the start of an operation handed to the stack.
+     */
+    synchronized void begin(int connId, String address, int type, long nowMillis) {
+        Long key = key(connId, type);
+        ArrayDeque<PendingOp> pending = mPending.get(key);
+        if (pending == null) {
+            pending = new ArrayDeque<PendingOp>();
+            mPending.put(key, pending);
+        }
+        pending.add(new PendingOp(address, nowMillis));
+    }
+
+    /**
+     * Records the completion of the oldest pending operation of the type. Callbacks
+     * without a pending operation, such as those for internal requests, are ignored.
+     */
+    synchronized void end(int connId, int type, int status, long nowMillis) {
+        ArrayDeque<PendingOp> pending = mPending.get(key(connId, type));
+        if (pending == null) return;
+        PendingOp op = pending.poll();
+        if (pending.isEmpty()) mPending.remove(key(connId, type));
+        if (op == null) return;
+
+        long latencyMillis = nowMillis - op.startMillis;
+        ConnectionLatencies latencies = mLatencies.get(connId);
+        if (latencies == null || !latencies.address.equals(op.address)) {
+            latencies = new ConnectionLatencies(op.address);
+            mLatencies.put(connId, latencies);
+        }
+        latencies.histograms[type].add(latencyMillis);
+        addSlowest(new Op(op.address, type, status, latencyMillis, nowMillis));
+    }
+
+    private void addSlowest(Op op) {
+        Iterator<Op> it = mSlowest.iterator();
+        while (it.hasNext()) {
+            if (op.endMillis - it.next().endMillis > RECENT_WINDOW_MILLIS) it.remove();
+        }
+        int i = 0;
+        while (i < mSlowest.size() && mSlowest.get(i).latencyMillis >= op.latencyMillis) {
+            i++;
+        }
+        if (i >= MAX_SLOWEST) return;
+        mSlowest.add(i, op);
+        if (mSlowest.size() > MAX_SLOWEST) mSlowest.remove(MAX_SLOWEST);
+    }
+
+    /**
+     * Returns true if an operation started on the connection has not completed yet.
+     */
+    synchronized boolean hasPending(int connId) {
+        for (Long key : mPending.keySet()) {
+            if ((int) (key >> 32) == connId) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the pending operations of a closed connection.
+     */
+    synchronized void removeConnection(int connId) {
+        Iterator<Long> it = mPending.keySet().iterator();
+        while (it.hasNext()) {
+            if ((int) (it.next() >> 32) == connId) it.remove();
+        }
+    }
+
+    synchronized void clear() {
+        mPending.clear();
+        mLatencies.clear();
+        mSlowest.clear();
+    }
+
+    synchronized Snapshot snapshot() {
+        Map<Integer, long[][]> latencies = new LinkedHashMap<Integer, long[][]>();
+        Map<Integer, String> addresses = new HashMap<Integer, String>();
+        for (Map.Entry<Integer, ConnectionLatencies> entry : mLatencies.entrySet()) {
+            long[][] counts = new long[OP_NAMES.length][];
+            for (int i = 0; i < counts.length; ++i) {
+                counts[i] = entry.getValue().histograms[i].getCounts();
+            }
+            latencies.put(entry.getKey(), counts);
+            addresses.put(entry.getKey(), entry.getValue().address);
+        }
+        return new Snapshot(latencies, addresses, new ArrayList<Op>(mSlowest));
+    }
+
+    /**
+     * Immutable copy of the latencies at one point in time.
+     */
+    static class Snapshot {
+        // Counts per bucket of LATENCY_MILLIS_BOUNDS by connection ID, indexed by
+        // operation type.
+        final Map<Integer, long[][]> latencies;
+        // Remote device address by connection ID.
+        final Map<Integer, String> addresses;
+        // Slowest recent operations, slowest first.
+        final List<Op> slowest;
+
+        Snapshot(Map<Integer, long[][]> latencies, Map<Integer, String> addresses,
+                List<Op> slowest) {
+            this.latencies = Collections.unmodifiableMap(latencies);
+            this.addresses = Collections.unmodifiableMap(addresses);
+            this.slowest = Collections.unmodifiableList(slowest);
+        }
+
+        void dump(StringBuilder sb) {
+            for (Map.Entry<Integer, long[][]> entry : latencies.entrySet()) {
+                sb.append("  conn ").append(entry.getKey()).append(" ")
+                        .append(addresses.get(entry.getKey())).append("\n");
+                long[][] counts = entry.getValue();
+                for (int type = 0; type < counts.length; ++type) {
+                    long total = 0;
+                    for (long count : counts[type]) {
+                        total += count;
+                    }
+                    if (total == 0) continue;
+                    sb.append("    ").append(opName(type)).append(" (ms):");
+                    for (int i = 0; i < counts[type].length; ++i) {
+                        sb.append(i < LATENCY_MILLIS_BOUNDS.length
+                                ? " <=" + LATENCY_MILLIS_BOUNDS[i]
+                                : " >" + LATENCY_MILLIS_BOUNDS[i - 1])
+                                .append(": ").append(counts[type][i]);
+                    }
+                    sb.append("\n");
+                }
+            }
+            sb.append("  Slowest recent operations:\n");
+            for (Op op : slowest) {
+                sb.append("    ").append(op).append("\n");
+            }
+        }
+    }
+}
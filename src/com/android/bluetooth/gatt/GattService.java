@@ -21,6 +21,7 @@ import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.IBluetoothGatt;
 import android.bluetooth.IBluetoothGattCallback;
@@ -33,12 +34,20 @@ import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.os.Binder;
+import android.os.DeadObjectException;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.util.Log;
@@ -48,19 +57,22 @@ import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.a2dp.A2dpService;
 import com.android.bluetooth.btservice.ProfileService;
-import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provides Bluetooth Gatt profile, as a service in
@@ -76,9 +88,11 @@ public class GattService extends ProfileService {
     static final int SCAN_FILTER_MODIFIED = 2;
 
     private static final int MAC_ADDRESS_LENGTH = 6;
-    // Batch scan related constants.
-    private static final int TRUNCATED_RESULT_SIZE = 11;
-    private static final int TIME_STAMP_LENGTH = 2;
+    // Batch scan delivery is split into pages bounded by result count and parcel size.
+    private static final int BATCH_SCAN_MAX_RESULTS_PER_PAGE = 100;
+    private static final int BATCH_SCAN_MAX_PAGE_BYTES = 64 * 1024;
+    // Results held for a client that did not take its last batch in time.
+    private static final int BATCH_SCAN_MAX_HELD_RESULTS = 1000;
 
     // onFoundLost related constants
     private static final int ADVT_STATE_ONFOUND = 0;
@@ -96,6 +110,37 @@ public class GattService extends ProfileService {
      */
     SearchQueue mSearchQueue = new SearchQueue();
 
+    /**
+     * Persistent GATT databases of bonded devices, null if disabled.
+     */
+    private GattAttributeCache mAttributeCache;
+
+    /**
+     * Attributes reported by the discovery running on a connection, by connection ID.
+     */
+    private final Map<Integer, List<GattAttributeCache.Attribute>> mDiscoveredAttributes =
+            new ConcurrentHashMap<Integer, List<GattAttributeCache.Attribute>>();
+
+    /**
+     * Connections with a cached database whose service search is running. The search
+     * results are held back until the service list has been checked against the cache.
+     */
+    private final Set<Integer> mValidatingConnIds =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    private final BroadcastReceiver mBondStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                    BluetoothDevice.ERROR);
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (state == BluetoothDevice.BOND_NONE && device != null
+                    && mAttributeCache != null) {
+                mAttributeCache.remove(device.getAddress());
+            }
+        }
+    };
+
     /**
      * List of our registered clients.
      */
@@ -117,6 +162,66 @@ public class GattService extends ProfileService {
 
     private int mMaxScanFilters;
 
+    /**
+     * Scan pipeline statistics, the parse count is also used to report the parse rate.
+     */
+    private final ScanStats mScanStats = new ScanStats();
+
+    /**
+     * Batch scan results a client did not take in time, by clientIf. They are delivered
+     * ahead of the client's next batch.
+     */
+    private final Map<Integer, List<ScanResult>> mHeldBatchResults =
+            new ConcurrentHashMap<Integer, List<ScanResult>>();
+
+    /**
+     * Whether the values sent on a server connection and not completed yet are
+     * notifications or indications, oldest first, by connection ID.
+     */
+    private final ConcurrentHashMap<Integer, Deque<Boolean>> mSentNotifications =
+            new ConcurrentHashMap<Integer, Deque<Boolean>>();
+
+    /**
+     * Congested server connections and the notifications sendNotifications held for them.
+     */
+    private final Set<Integer> mCongestedServerConnIds =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final HeldNotifications mHeldNotifications = new HeldNotifications();
+    private long mLastDumpParseCount;
+    private long mLastDumpTimeMillis = SystemClock.elapsedRealtime();
+
+    /**
+     * Latency of GATT client operations per remote device.
+     */
+    private final GattOpTracer mOpTracer = new GattOpTracer();
+
+    /**
+     * Chunked writes without response in progress, by connection ID.
+     */
+    private static final int MSG_BULK_WRITE_TIMEOUT = 1;
+    private final ConcurrentHashMap<Integer, BulkWrite> mBulkWrites =
+            new ConcurrentHashMap<Integer, BulkWrite>();
+    private boolean mBulkWriteEnabled;
+    private int mBulkWriteChunkTimeoutMillis;
+    private Handler mBulkWriteHandler;
+
+    /**
+     * Adapts MTU and connection interval to client traffic, null if disabled.
+     */
+    private LinkTuner mLinkTuner;
+
+    /**
+     * Connections with an MTU exchange started by the link tuner. Its result is not
+     * reported to the app, which did not ask for it.
+     */
+    private final Set<Integer> mTunerMtuConnIds =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /**
+     * Reassembles prepared writes to server attributes, null if disabled.
+     */
+    private PreparedWriteBuffer mPreparedWrites;
+
     /**
      * Pending service declaration queue
      */
@@ -156,6 +261,32 @@ public class GattService extends ProfileService {
     private ScanManager mScanManager;
     private AppOpsManager mAppOps;
 
+    /**
+     * Cached location state consulted for every scan result. Read at start and
+     * refreshed by the observer when the location mode setting changes.
+     */
+    private volatile boolean mStrictLocationCheck;
+    private volatile boolean mLocationEnabled;
+    private LocationModeObserver mLocationModeObserver;
+
+    /**
+     * Duplicate suppression settings for CALLBACK_TYPE_ALL_MATCHES scan clients.
+     */
+    private int mScanDedupWindowMillis;
+    private int mScanDedupRssiThreshold;
+    private int mScanDedupMaxEntries;
+
+    private class LocationModeObserver extends ContentObserver {
+        LocationModeObserver(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            updateLocationState();
+        }
+    }
+
     /**
      * Reliable write queue
      */
@@ -179,6 +310,66 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "start()");
         initializeNative();
         mAppOps = getSystemService(AppOpsManager.class);
+        mLocationModeObserver = new LocationModeObserver(new Handler());
+        getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.LOCATION_MODE), false,
+                mLocationModeObserver);
+        mStrictLocationCheck = getResources().getBoolean(R.bool.strict_location_check);
+        updateLocationState();
+        mScanDedupWindowMillis = getResources().getInteger(R.integer.gatt_scan_dedup_window_ms);
+        mScanDedupRssiThreshold =
+                getResources().getInteger(R.integer.gatt_scan_dedup_rssi_threshold);
+        mScanDedupMaxEntries = getResources().getInteger(R.integer.gatt_scan_dedup_max_entries);
+        int congestionQueueCapacity =
+                getResources().getInteger(R.integer.gatt_congestion_queue_capacity);
+        mClientMap.setCongestionQueueConfig(congestionQueueCapacity);
+        mServerMap.setCongestionQueueConfig(congestionQueueCapacity);
+        mBulkWriteEnabled = getResources().getBoolean(R.bool.gatt_bulk_write_enabled);
+        mBulkWriteChunkTimeoutMillis =
+                getResources().getInteger(R.integer.gatt_bulk_write_chunk_timeout_ms);
+        mBulkWriteHandler = new Handler(new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (msg.what == MSG_BULK_WRITE_TIMEOUT) {
+                    onBulkWriteTimeout((BulkWrite) msg.obj);
+                }
+                return true;
+            }
+        });
+        if (getResources().getBoolean(R.bool.gatt_server_prepared_write_buffer_enabled)) {
+            mPreparedWrites = new PreparedWriteBuffer(
+                    getResources().getInteger(R.integer.gatt_server_prepared_write_max_length),
+                    getResources().getInteger(R.integer.gatt_server_prepared_write_max_queue));
+        }
+        if (getResources().getBoolean(R.bool.gatt_link_tuner_enabled)) {
+            mLinkTuner = new LinkTuner(new LinkTuner.Callback() {
+                @Override
+                public boolean requestMtu(int connId, int mtu) {
+                    // The stack runs one operation per connection, don't get in the
+                    // way of the app.
+                    if (mOpTracer.hasPending(connId)) return false;
+                    mTunerMtuConnIds.add(connId);
+                    gattClientConfigureMTUNative(connId, mtu);
+                    return true;
+                }
+
+                @Override
+                public void requestConnectionPriority(int clientIf, String address,
+                        int priority) {
+                    updateConnectionPriority(clientIf, address, priority);
+                }
+            }, getResources().getInteger(R.integer.gatt_link_tuner_boost_bytes_per_sec),
+                    getResources().getInteger(R.integer.gatt_link_tuner_idle_bytes_per_sec),
+                    getResources().getInteger(R.integer.gatt_link_tuner_idle_seconds),
+                    getResources().getInteger(R.integer.gatt_link_tuner_mtu));
+            mLinkTuner.start();
+        }
+        if (getResources().getBoolean(R.bool.gatt_attribute_cache_enabled)) {
+            mAttributeCache = new GattAttributeCache(new File(getFilesDir(), "gatt_cache"));
+            mAttributeCache.start();
+            registerReceiver(mBondStateReceiver,
+                    new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+        }
         mAdvertiseManager = new AdvertiseManager(this, AdapterService.getAdapterService());
         mAdvertiseManager.start();
 
@@ -193,9 +384,33 @@ public class GattService extends ProfileService {
         mClientMap.clear();
         mServerMap.clear();
         mSearchQueue.clear();
+        mDiscoveredAttributes.clear();
+        mValidatingConnIds.clear();
+        mHeldBatchResults.clear();
+        mSentNotifications.clear();
+        mCongestedServerConnIds.clear();
+        mHeldNotifications.clear();
+        mBulkWrites.clear();
+        if (mBulkWriteHandler != null) mBulkWriteHandler.removeCallbacksAndMessages(null);
+        mOpTracer.clear();
+        if (mLinkTuner != null) {
+            mLinkTuner.cleanup();
+            mLinkTuner = null;
+        }
+        mTunerMtuConnIds.clear();
+        if (mPreparedWrites != null) mPreparedWrites.clear();
+        if (mAttributeCache != null) {
+            unregisterReceiver(mBondStateReceiver);
+            mAttributeCache.cleanup();
+            mAttributeCache = null;
+        }
         mHandleMap.clear();
         mServiceDeclarations.clear();
         mReliableQueue.clear();
+        if (mLocationModeObserver != null) {
+            getContentResolver().unregisterContentObserver(mLocationModeObserver);
+            mLocationModeObserver = null;
+        }
         if (mAdvertiseManager != null) {
             mAdvertiseManager.cleanup();
             mAdvertiseManager = null;
@@ -616,9 +831,20 @@ public class GattService extends ProfileService {
     void onScanResult(String address, int rssi, byte[] adv_data) {
         if (VDBG) Log.d(TAG, "onScanResult() - address=" + address
                     + ", rssi=" + rssi);
-        List<UUID> remoteUuids = parseUuids(adv_data);
-        for (ScanClient client : mScanManager.getRegularScanQueue()) {
+        mScanStats.onAdvertisementReceived();
+        ScanDispatchIndex index = mScanManager.getDispatchIndex();
+        if (index.isEmpty()) return;
+
+        // The advertisement is parsed at most once and shared by all matching clients.
+        ParsedScanResult parsed = new ParsedScanResult(address, rssi, adv_data,
+                SystemClock.elapsedRealtimeNanos(), mScanStats);
+        List<UUID> remoteUuids = null;
+        ScanFilterEngine filterEngine = index.getFilterEngine();
+        byte[] filterMemo = null;
+        for (ScanClient client : index.getCandidates(address,
+                index.needsScanRecord() ? parsed.getScanRecord() : null)) {
             if (client.uuids.length > 0) {
+                if (remoteUuids == null) remoteUuids = parseUuids(adv_data);
                 int matches = 0;
                 for (UUID search : client.uuids) {
                     for (UUID remote: remoteUuids) {
@@ -629,30 +855,44 @@ public class GattService extends ProfileService {
                     }
                 }
 
-                if (matches < client.uuids.length) continue;
+                if (matches < client.uuids.length) {
+                    mScanStats.onAdvertisementFiltered();
+                    continue;
+                }
             }
 
             if (!client.isServer) {
                 ClientMap.App app = mClientMap.getById(client.clientIf);
                 if (app != null) {
-                    BluetoothDevice device = BluetoothAdapter.getDefaultAdapter()
-                            .getRemoteDevice(address);
-                    ScanResult result = new ScanResult(device, ScanRecord.parseFromBytes(adv_data),
-                            rssi, SystemClock.elapsedRealtimeNanos());
                     // Do no report if location mode is OFF or the client has no location permission
                     // PEERS_MAC_ADDRESS permission holders always get results
-                    if (hasScanResultPermission(client) && matchesFilters(client, result)) {
+                    if (filterMemo == null) filterMemo = filterEngine.newMemo();
+                    if (hasScanResultPermission(client) && matchesFilters(filterEngine,
+                            filterMemo, client, parsed.getScanResult())) {
                         try {
                             ScanSettings settings = client.settings;
                             if ((settings.getCallbackType() &
-                                    ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0) {
-                                app.callback.onScanResult(result);
+                                    ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0
+                                    && (client.dedupCache == null
+                                    || client.dedupCache.shouldReport(address, adv_data, rssi,
+                                            SystemClock.elapsedRealtime()))) {
+                                if (client.hostBatcher != null) {
+                                    mScanManager.addHostBatchResult(client,
+                                            parsed.getScanResult());
+                                } else {
+                                    app.callback.onScanResult(parsed.getScanResult());
+                                }
+                                client.lastMatchTimeMillis = SystemClock.elapsedRealtime();
+                                mScanStats.onDispatched(client.clientIf);
                             }
                         } catch (RemoteException e) {
                             Log.e(TAG, "Exception: " + e);
+                            mScanStats.onCallbackFailed();
                             mClientMap.remove(client.clientIf);
                             mScanManager.stopScan(client);
                         }
+                    } else {
+                        mScanStats.onAdvertisementFiltered();
                     }
                 }
             } else {
@@ -660,8 +900,10 @@ public class GattService extends ProfileService {
                 if (app != null) {
                     try {
                         app.callback.onScanResult(address, rssi, adv_data);
+                        mScanStats.onDispatched(client.clientIf);
                     } catch (RemoteException e) {
                         Log.e(TAG, "Exception: " + e);
+                        mScanStats.onCallbackFailed();
                         mServerMap.remove(client.clientIf);
                         mScanManager.stopScan(client);
                     }
@@ -672,17 +914,28 @@ public class GattService extends ProfileService {
 
     /** Determines if the given scan client has the appropriate permissions to receive callbacks. */
     private boolean hasScanResultPermission(final ScanClient client) {
-        final boolean requiresLocationEnabled =
-                getResources().getBoolean(R.bool.strict_location_check);
-        final boolean locationEnabledSetting = Settings.Secure.getInt(getContentResolver(),
-                Settings.Secure.LOCATION_MODE, Settings.Secure.LOCATION_MODE_OFF)
-                != Settings.Secure.LOCATION_MODE_OFF;
-        final boolean locationEnabled = !requiresLocationEnabled || locationEnabledSetting
+        final boolean locationEnabled = !mStrictLocationCheck || mLocationEnabled
                 || client.legacyForegroundApp;
         return (client.hasPeersMacAddressPermission
                 || (client.hasLocationPermission && locationEnabled));
     }
 
+    /** Refreshes the cached location state used by {@link #hasScanResultPermission}. */
+    private void updateLocationState() {
+        mLocationEnabled = Settings.Secure.getInt(getContentResolver(),
+                Settings.Secure.LOCATION_MODE, Settings.Secure.LOCATION_MODE_OFF)
+                != Settings.Secure.LOCATION_MODE_OFF;
+        if (DBG) Log.d(TAG, "updateLocationState() - strict=" + mStrictLocationCheck
+                + ", enabled=" + mLocationEnabled);
+    }
+
+    // Check if a scan record matches a specific filters using the compiled filter engine.
+    private boolean matchesFilters(ScanFilterEngine engine, byte[] memo, ScanClient client,
+            ScanResult scanResult) {
+        Boolean matches = engine.matches(client, scanResult, memo);
+        return matches != null ? matches : matchesFilters(client, scanResult);
+    }
+
     // Check if a scan record matches a specific filters.
     private boolean matchesFilters(ScanClient client, ScanResult scanResult) {
         if (client.filters == null || client.filters.isEmpty()) {
@@ -703,7 +956,7 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByUuid(uuid);
         if (app != null) {
             if (status == 0) {
-                app.id = clientIf;
+                mClientMap.setAppId(app, clientIf);
                 app.linkToDeath(new ClientDeathRecipient(clientIf));
             } else {
                 mClientMap.remove(uuid);
@@ -717,7 +970,10 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onConnected() - clientIf=" + clientIf
             + ", connId=" + connId + ", address=" + address);
 
-        if (status == 0) mClientMap.addConnection(clientIf, connId, address);
+        if (status == 0) {
+            mClientMap.addConnection(clientIf, connId, address);
+            if (mLinkTuner != null) mLinkTuner.onConnected(clientIf, connId, address);
+        }
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf,
@@ -732,6 +988,15 @@ public class GattService extends ProfileService {
 
         mClientMap.removeConnection(clientIf, connId);
         mSearchQueue.removeConnId(connId);
+        mDiscoveredAttributes.remove(connId);
+        mValidatingConnIds.remove(connId);
+        BulkWrite bulkWrite = mBulkWrites.remove(connId);
+        if (bulkWrite != null) {
+            mBulkWriteHandler.removeMessages(MSG_BULK_WRITE_TIMEOUT, bulkWrite);
+        }
+        mOpTracer.removeConnection(connId);
+        if (mLinkTuner != null) mLinkTuner.onDisconnected(connId);
+        mTunerMtuConnIds.remove(connId);
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf, false, address);
@@ -740,6 +1005,7 @@ public class GattService extends ProfileService {
 
     void onSearchCompleted(int connId, int status) throws RemoteException {
         if (DBG) Log.d(TAG, "onSearchCompleted() - connId=" + connId+ ", status=" + status);
+        if (mValidatingConnIds.remove(connId) && checkCachedServices(connId, status)) return;
         // We got all services, now let's explore characteristics...
         continueSearch(connId, status);
     }
@@ -753,8 +1019,10 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "onSearchResult() - address=" + address + ", uuid=" + uuid);
 
         mSearchQueue.add(connId, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
+        addDiscoveredAttribute(connId,
+                GattAttributeCache.Attribute.service(srvcType, srvcInstId, uuid));
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
+        ClientMap.App app = getSearchingApp(connId);
         if (app != null) {
             app.callback.onGetService(address, srvcType, srvcInstId,
                                         new ParcelUuid(uuid));
@@ -777,8 +1045,10 @@ public class GattService extends ProfileService {
             mSearchQueue.add(connId, srvcType,
                             srvcInstId, srvcUuidLsb, srvcUuidMsb,
                             charInstId, charUuidLsb, charUuidMsb);
+            addDiscoveredAttribute(connId, GattAttributeCache.Attribute.characteristic(
+                    srvcType, srvcInstId, srvcUuid, charInstId, charUuid, charProp));
 
-            ClientMap.App app = mClientMap.getByConnId(connId);
+            ClientMap.App app = getSearchingApp(connId);
             if (app != null) {
                 app.callback.onGetCharacteristic(address, srvcType,
                             srvcInstId, new ParcelUuid(srvcUuid),
@@ -811,7 +1081,9 @@ public class GattService extends ProfileService {
             + ", status=" + status + ", descUuid=" + descUuid);
 
         if (status == 0) {
-            ClientMap.App app = mClientMap.getByConnId(connId);
+            addDiscoveredAttribute(connId, GattAttributeCache.Attribute.descriptor(srvcType,
+                    srvcInstId, srvcUuid, charInstId, charUuid, descrInstId, descUuid));
+            ClientMap.App app = getSearchingApp(connId);
             if (app != null) {
                 app.callback.onGetDescriptor(address, srvcType,
                             srvcInstId, new ParcelUuid(srvcUuid),
@@ -843,7 +1115,10 @@ public class GattService extends ProfileService {
             + ", inclUuid=" + inclSrvcUuid);
 
         if (status == 0) {
-            ClientMap.App app = mClientMap.getByConnId(connId);
+            addDiscoveredAttribute(connId, GattAttributeCache.Attribute.includedService(
+                    srvcType, srvcInstId, srvcUuid, inclSrvcType, inclSrvcInstId,
+                    inclSrvcUuid));
+            ClientMap.App app = getSearchingApp(connId);
             if (app != null) {
                 app.callback.onGetIncludedService(address,
                     srvcType, srvcInstId, new ParcelUuid(srvcUuid),
@@ -870,6 +1145,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onRegisterForNotifications() - address=" + address
             + ", status=" + status + ", registered=" + registered
             + ", charUuid=" + charUuid);
+        traceOpEnd(connId, GattOpTracer.OP_NOTIFY_REGISTER, status);
     }
 
     void onNotify(int connId, String address, int srvcType,
@@ -881,6 +1157,12 @@ public class GattService extends ProfileService {
 
         if (VDBG) Log.d(TAG, "onNotify() - address=" + address
             + ", charUuid=" + charUuid + ", length=" + data.length);
+        if (mLinkTuner != null) mLinkTuner.onTraffic(connId, data.length);
+        if (mAttributeCache != null
+                && GattAttributeCache.SERVICE_CHANGED_UUID.equals(charUuid)) {
+            if (DBG) Log.d(TAG, "Service changed, dropping cached database of " + address);
+            mAttributeCache.remove(address);
+        }
 
 
         if (isHidUuid(charUuid) &&
@@ -908,6 +1190,8 @@ public class GattService extends ProfileService {
 
         if (VDBG) Log.d(TAG, "onReadCharacteristic() - address=" + address
             + ", status=" + status + ", length=" + data.length);
+        if (mLinkTuner != null) mLinkTuner.onTraffic(connId, data.length);
+        traceOpEnd(connId, GattOpTracer.OP_READ, status);
 
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
@@ -932,6 +1216,24 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) return;
 
+        BulkWrite bulkWrite = mBulkWrites.get(connId);
+        if (bulkWrite != null && bulkWrite.claimWriteCallback()) {
+            mBulkWriteHandler.removeMessages(MSG_BULK_WRITE_TIMEOUT, bulkWrite);
+            // A congested status still means the chunk was queued by the stack.
+            if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
+                status = BluetoothGatt.GATT_SUCCESS;
+            }
+            boolean done = bulkWrite.onChunkWritten(status);
+            if (bulkWrite.isFinished()) mBulkWrites.remove(connId, bulkWrite);
+            if (done) {
+                finishBulkWrite(connId, app, bulkWrite);
+            } else {
+                pumpBulkWrite(connId, app);
+            }
+            return;
+        }
+
+        traceOpEnd(connId, GattOpTracer.OP_WRITE, status);
         if (!app.isCongested) {
             app.callback.onCharacteristicWrite(address, status, srvcType,
                     srvcInstId, new ParcelUuid(srvcUuid),
@@ -942,7 +1244,11 @@ public class GattService extends ProfileService {
             }
             CallbackInfo callbackInfo = new CallbackInfo(address, status, srvcType,
                     srvcInstId, srvcUuid, charInstId, charUuid);
-            app.queueCallback(callbackInfo);
+            if (!app.queueCallback(callbackInfo)) {
+                app.callback.onCharacteristicWrite(address, status, srvcType,
+                        srvcInstId, new ParcelUuid(srvcUuid),
+                        charInstId, new ParcelUuid(charUuid));
+            }
         }
     }
 
@@ -970,6 +1276,7 @@ public class GattService extends ProfileService {
 
         if (VDBG) Log.d(TAG, "onReadDescriptor() - address=" + address
             + ", status=" + status + ", length=" + data.length);
+        traceOpEnd(connId, GattOpTracer.OP_DESCRIPTOR_READ, status);
 
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
@@ -992,6 +1299,7 @@ public class GattService extends ProfileService {
 
         if (VDBG) Log.d(TAG, "onWriteDescriptor() - address=" + address
             + ", status=" + status);
+        traceOpEnd(connId, GattOpTracer.OP_DESCRIPTOR_WRITE, status);
 
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
@@ -1018,7 +1326,7 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onScanFilterEnableDisabled() - clientIf=" + clientIf + ", status=" + status
                     + ", action=" + action);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(clientIf, ScanCommandQueue.ACK_FILTER_ENABLE, status);
     }
 
     void onScanFilterParamsConfigured(int action, int status, int clientIf, int availableSpace) {
@@ -1027,7 +1335,7 @@ public class GattService extends ProfileService {
                     + ", status=" + status + ", action=" + action
                     + ", availableSpace=" + availableSpace);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(clientIf, ScanCommandQueue.ACK_FILTER_PARAMS, status);
     }
 
     void onScanFilterConfig(int action, int status, int clientIf, int filterType,
@@ -1038,14 +1346,14 @@ public class GattService extends ProfileService {
                     + ", availableSpace=" + availableSpace);
         }
 
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(clientIf, ScanCommandQueue.ACK_FILTER_CONFIG, status);
     }
 
     void onBatchScanStorageConfigured(int status, int clientIf) {
         if (DBG) {
             Log.d(TAG, "onBatchScanStorageConfigured() - clientIf="+ clientIf + ", status=" + status);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(clientIf, ScanCommandQueue.ACK_BATCH_STORAGE, status);
     }
 
     // TODO: split into two different callbacks : onBatchScanStarted and onBatchScanStopped.
@@ -1054,7 +1362,7 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onBatchScanStartStopped() - clientIf=" + clientIf
                     + ", status=" + status + ", startStopAction=" + startStopAction);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(clientIf, ScanCommandQueue.ACK_BATCH_START_STOP, status);
     }
 
     void onBatchScanReports(int status, int clientIf, int reportType, int numRecords,
@@ -1063,129 +1371,203 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onBatchScanReports() - clientIf=" + clientIf + ", status=" + status
                     + ", reportType=" + reportType + ", numRecords=" + numRecords);
         }
-        mScanManager.callbackDone(clientIf, status);
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+        mScanManager.callbackDone(clientIf, ScanCommandQueue.ACK_BATCH_REPORTS, status);
+        mScanStats.onBatchReport(numRecords);
+
+        Collection<ScanClient> clients;
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
             // We only support single client for truncated mode.
-            ClientMap.App app = mClientMap.getById(clientIf);
-            if (app == null) return;
-            app.callback.onBatchScanResults(new ArrayList<ScanResult>(results));
+            clients = Collections.singleton(new ScanClient(clientIf, false));
         } else {
-            for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
-                // Deliver results for each client.
-                deliverBatchScan(client, results);
+            clients = mScanManager.getFullBatchScanQueue();
+        }
+        boolean unfiltered = reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED;
+
+        // Results are parsed and delivered page by page so that neither the parsed report
+        // nor a single callback grows with the controller's batch storage size. Per client
+        // count of results delivered in this report, or -1 once it stopped taking them.
+        List<ScanClient> clientList = new ArrayList<ScanClient>(clients);
+        int[] delivered = new int[clientList.size()];
+        for (int i = 0; i < clientList.size(); ++i) {
+            delivered[i] = deliverHeldBatchResults(clientList.get(i));
+        }
+        BatchScanReportReader reader = new BatchScanReportReader(mAdapter, reportType,
+                numRecords, recordData, SystemClock.elapsedRealtimeNanos());
+        while (reader.hasNext()) {
+            List<ScanResult> page = new ArrayList<ScanResult>();
+            reader.readPage(page, BATCH_SCAN_MAX_RESULTS_PER_PAGE, BATCH_SCAN_MAX_PAGE_BYTES);
+            if (page.isEmpty()) break;
+            for (int i = 0; i < clientList.size(); ++i) {
+                ScanClient client = clientList.get(i);
+                List<ScanResult> results = unfiltered ? page : filterBatchResults(client, page);
+                if (results.isEmpty()) continue;
+                if (delivered[i] < 0) {
+                    holdBatchResults(client.clientIf, results);
+                    continue;
+                }
+                int count = deliverBatchResults(client, results);
+                delivered[i] = count < 0 ? -1 : delivered[i] + count;
+            }
+        }
+        // Clients still get one callback per report, empty if nothing matched.
+        for (int i = 0; i < clientList.size(); ++i) {
+            if (delivered[i] == 0) {
+                deliverBatchResults(clientList.get(i), Collections.<ScanResult>emptyList());
             }
         }
     }
 
-    // Check and deliver scan results for different scan clients.
-    private void deliverBatchScan(ScanClient client, Set<ScanResult> allResults) throws
-            RemoteException {
-        ClientMap.App app = mClientMap.getById(client.clientIf);
-        if (app == null) return;
-        if (client.filters == null || client.filters.isEmpty()) {
-            app.callback.onBatchScanResults(new ArrayList<ScanResult>(allResults));
+    /**
+     * Delivers results collected on the host for a batch client served by a regular
+     * scan. The results already passed the client's filters.
+     */
+    void onHostBatchScanResults(ScanClient client, List<ScanResult> results) {
+        if (DBG) {
+            Log.d(TAG, "onHostBatchScanResults() - clientIf=" + client.clientIf
+                    + ", results=" + results.size());
         }
-        // Reconstruct the scan results.
-        List<ScanResult> results = new ArrayList<ScanResult>();
-        for (ScanResult scanResult : allResults) {
+        try {
+            if (deliverHeldBatchResults(client) < 0) {
+                holdBatchResults(client.clientIf, results);
+            } else {
+                deliverBatchResults(client, results);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Exception: " + e);
+            mScanStats.onCallbackFailed();
+            mClientMap.remove(client.clientIf);
+            mHeldBatchResults.remove(client.clientIf);
+            mScanManager.stopScan(client);
+        }
+    }
+
+    // Returns the results of a page that pass the client's filters.
+    private List<ScanResult> filterBatchResults(ScanClient client, List<ScanResult> page) {
+        if (client.filters == null || client.filters.isEmpty()) return page;
+        List<ScanResult> results = new ArrayList<ScanResult>(page.size());
+        for (ScanResult scanResult : page) {
             if (matchesFilters(client, scanResult)) {
                 results.add(scanResult);
             }
         }
-        app.callback.onBatchScanResults(results);
+        return results;
     }
 
-    private Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
-            byte[] batchRecord) {
-        if (numRecords == 0) {
-            return Collections.emptySet();
-        }
-        if (DBG) Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
-        if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
-            return parseTruncatedResults(numRecords, batchRecord);
-        } else {
-            return parseFullResults(numRecords, batchRecord);
-        }
+    // Delivers the results held back for a client, see holdBatchResults. Returns the
+    // number delivered, or -1 if the client still does not take them.
+    private int deliverHeldBatchResults(ScanClient client) throws RemoteException {
+        List<ScanResult> held = mHeldBatchResults.remove(client.clientIf);
+        if (held == null) return 0;
+        if (DBG) Log.d(TAG, "Delivering " + held.size() + " held batch scan results");
+        return deliverBatchResults(client, held);
     }
 
-    private Set<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
-        if (DBG) Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        long now = SystemClock.elapsedRealtimeNanos();
-        for (int i = 0; i < numRecords; ++i) {
-            byte[] record = extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE,
-                    TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]),
-                    rssi, timestampNanos));
+    /**
+     * Delivers batch scan results to a client in pages. Results the client does not take
+     * are held back and delivered ahead of its next batch, because the controller has
+     * already flushed them. Returns the number of results delivered, or -1 if some were
+     * held back.
+     */
+    private int deliverBatchResults(ScanClient client, List<ScanResult> results)
+            throws RemoteException {
+        ClientMap.App app = mClientMap.getById(client.clientIf);
+        if (app == null) return 0;
+        if (results.isEmpty()) return deliverBatchScanPage(app, results);
+        for (int start = 0; start < results.size();
+                start += BATCH_SCAN_MAX_RESULTS_PER_PAGE) {
+            List<ScanResult> page = new ArrayList<ScanResult>(results.subList(start,
+                    Math.min(results.size(), start + BATCH_SCAN_MAX_RESULTS_PER_PAGE)));
+            int count = deliverBatchScanPage(app, page);
+            if (count < page.size()) {
+                Log.w(TAG, "Client " + client.clientIf + " is not keeping up with batch scan"
+                        + " results, holding them back");
+                holdBatchResults(client.clientIf,
+                        results.subList(start + count, results.size()));
+                return -1;
+            }
         }
-        return results;
+        return results.size();
     }
 
-    @VisibleForTesting
-    long parseTimestampNanos(byte[] data) {
-        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
-        // Timestamp is in every 50 ms.
-        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
-    }
-
-    private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        int position = 0;
-        long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            position += 6;
-            // Skip address type.
-            position++;
-            // Skip tx power level.
-            position++;
-            int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
-
-            // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
-            position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
-            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord,
-                    advertisePacketLen, scanResponsePacketLen);
-            Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord),
-                    rssi, timestampNanos));
+    // Keeps results for the next batch of a client. Results beyond the limit are dropped.
+    private void holdBatchResults(int clientIf, List<ScanResult> results) {
+        List<ScanResult> held = mHeldBatchResults.get(clientIf);
+        if (held == null) {
+            held = new ArrayList<ScanResult>();
+            mHeldBatchResults.put(clientIf, held);
         }
-        return results;
+        int room = Math.max(0, BATCH_SCAN_MAX_HELD_RESULTS - held.size());
+        if (results.size() > room) {
+            Log.w(TAG, "Dropping " + (results.size() - room) + " batch scan results of client "
+                    + clientIf);
+            mScanStats.onBatchResultsDropped(results.size() - room);
+            results = results.subList(0, room);
+        }
+        held.addAll(results);
     }
 
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
+    /**
+     * Hands a page to the client, splitting it further if it exceeds the binder limit.
+     *
+     * The client callback is oneway, so a slow client shows up as its binder buffer filling
+     * up rather than as a blocking call. The failed transaction then throws
+     * TransactionTooLargeException for large parcels and DeadObjectException for small
+     * ones although the client is alive. Once a page cannot be delivered the rest of it is
+     * not attempted. Returns the number of results delivered.
+     */
+    private int deliverBatchScanPage(ClientMap.App app, List<ScanResult> results)
+            throws RemoteException {
+        try {
+            app.callback.onBatchScanResults(results);
+            return results.size();
+        } catch (TransactionTooLargeException e) {
+            if (results.size() <= 1) {
+                Log.w(TAG, "Batch scan result could not be delivered: " + e);
+                return 0;
+            }
+            int half = results.size() / 2;
+            if (DBG) Log.d(TAG, "Batch scan page too large, splitting " + results.size());
+            int count = deliverBatchScanPage(app,
+                    new ArrayList<ScanResult>(results.subList(0, half)));
+            if (count < half) return count;
+            return count + deliverBatchScanPage(app, new ArrayList<ScanResult>(
+                    results.subList(half, results.size())));
+        } catch (DeadObjectException e) {
+            if (!app.callback.asBinder().isBinderAlive()) throw e;
+            Log.w(TAG, "Batch scan results could not be delivered: " + e);
+            return 0;
         }
     }
 
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
+    ScanStats getScanStats() {
+        return mScanStats;
+    }
+
+    /**
+     * Returns a copy of the current scan pipeline statistics.
+     */
+    ScanStats.Snapshot getScanStatsSnapshot() {
+        return mScanStats.snapshot();
+    }
+
+    /**
+     * Returns a copy of the current GATT client operation latencies.
+     */
+    GattOpTracer.Snapshot getOpLatencySnapshot() {
+        return mOpTracer.snapshot();
+    }
+
+    private void traceOpBegin(int connId, String address, int type) {
+        mOpTracer.begin(connId, address, type, SystemClock.elapsedRealtime());
+    }
+
+    private void traceOpEnd(int connId, int type, int status) {
+        mOpTracer.end(connId, type, status, SystemClock.elapsedRealtime());
+    }
+
+    @VisibleForTesting
+    long parseTimestampNanos(byte[] data) {
+        return BatchScanReportReader.parseTimestampNanos(data, 0, data.length);
     }
 
     void onBatchScanThresholdCrossed(int clientIf) {
@@ -1281,6 +1663,9 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onConfigureMTU() address=" + address + ", status="
             + status + ", mtu=" + mtu);
 
+        if (status == 0) mClientMap.setMtu(connId, mtu);
+        if (mTunerMtuConnIds.remove(connId)) return;
+        traceOpEnd(connId, GattOpTracer.OP_MTU, status);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onConfigureMTU(address, mtu, status);
@@ -1340,10 +1725,12 @@ public class GattService extends ProfileService {
     void onClientCongestion(int connId, boolean congested) throws RemoteException {
         if (VDBG) Log.d(TAG, "onClientCongestion() - connId=" + connId + ", congested=" + congested);
 
+        if (congested && mLinkTuner != null) mLinkTuner.onCongestion(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
 
         if (app != null) {
             app.isCongested = congested;
+            if (!congested) pumpBulkWrite(connId, app);
             while(!app.isCongested) {
                 CallbackInfo callbackInfo = app.popQueuedCallback();
                 if (callbackInfo == null)  return;
@@ -1418,6 +1805,12 @@ public class GattService extends ProfileService {
         scanClient.hasPeersMacAddressPermission = Utils.checkCallerHasPeersMacAddressPermission(
                 this);
         scanClient.legacyForegroundApp = Utils.isLegacyForegroundApp(this, callingPackage);
+        if (mScanDedupWindowMillis > 0 && settings != null
+                && settings.getReportDelayMillis() == 0
+                && (settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0) {
+            scanClient.dedupCache = new ScanDedupCache(mScanDedupWindowMillis,
+                    mScanDedupRssiThreshold, mScanDedupMaxEntries);
+        }
         mScanManager.startScan(scanClient);
     }
 
@@ -1470,6 +1863,7 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "unregisterClient() - clientIf=" + clientIf);
         mClientMap.remove(clientIf);
+        mHeldBatchResults.remove(clientIf);
         gattClientUnregisterAppNative(clientIf);
     }
 
@@ -1529,6 +1923,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "refreshDevice() - address=" + address);
+        if (mAttributeCache != null) mAttributeCache.remove(address);
         gattClientRefreshNative(clientIf, address);
     }
 
@@ -1538,10 +1933,123 @@ public class GattService extends ProfileService {
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (DBG) Log.d(TAG, "discoverServices() - address=" + address + ", connId=" + connId);
 
-        if (connId != null)
-            gattClientSearchServiceNative(connId, true, 0, 0);
-        else
+        if (connId == null) {
             Log.e(TAG, "discoverServices() - No connection for " + address + "...");
+            return;
+        }
+        if (mAttributeCache != null && !mDiscoveredAttributes.containsKey(connId)) {
+            // With a cached database only the service search runs, see checkCachedServices.
+            if (getCachedAttributes(address) != null) mValidatingConnIds.add(connId);
+            mDiscoveredAttributes.put(connId, new ArrayList<GattAttributeCache.Attribute>());
+        }
+        traceOpBegin(connId, address, GattOpTracer.OP_DISCOVERY);
+        gattClientSearchServiceNative(connId, true, 0, 0);
+    }
+
+    // Returns the cached database of a bonded device, or null.
+    private List<GattAttributeCache.Attribute> getCachedAttributes(String address) {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        if (device.getBondState() != BluetoothDevice.BOND_BONDED) return null;
+        return mAttributeCache.get(address);
+    }
+
+    /**
+     * Called when the service search of a connection with a cached database completed.
+     * If the services match the cached ones, the cached database is reported and the
+     * discovery ends without exploring characteristics and descriptors. Otherwise the
+     * cached database is dropped, the services found so far are reported and the
+     * regular discovery goes on. Returns true if the discovery ended.
+     */
+    private boolean checkCachedServices(int connId, int status) throws RemoteException {
+        String address = mClientMap.addressByConnId(connId);
+        List<GattAttributeCache.Attribute> discovered = mDiscoveredAttributes.get(connId);
+        List<GattAttributeCache.Attribute> cached =
+                address == null || mAttributeCache == null ? null : mAttributeCache.get(address);
+        ClientMap.App app = mClientMap.getByConnId(connId);
+        if (status == 0 && cached != null && discovered != null
+                && discovered.equals(getServices(cached))) {
+            mSearchQueue.removeConnId(connId);
+            mDiscoveredAttributes.remove(connId);
+            traceOpEnd(connId, GattOpTracer.OP_DISCOVERY, status);
+            if (app != null) {
+                reportAttributes(app, address, cached);
+                app.callback.onSearchComplete(address, status);
+            }
+            return true;
+        }
+        if (status == 0 && cached != null) {
+            Log.w(TAG, "Cached database of " + address + " is stale, discovering it again");
+            mAttributeCache.remove(address);
+        }
+        if (app != null && discovered != null) reportAttributes(app, address, discovered);
+        return false;
+    }
+
+    private static List<GattAttributeCache.Attribute> getServices(
+            List<GattAttributeCache.Attribute> attributes) {
+        List<GattAttributeCache.Attribute> services =
+                new ArrayList<GattAttributeCache.Attribute>();
+        for (GattAttributeCache.Attribute attr : attributes) {
+            if (attr.type == GattAttributeCache.TYPE_SERVICE) services.add(attr);
+        }
+        return services;
+    }
+
+    // Reports attributes through the regular discovery callbacks.
+    private void reportAttributes(ClientMap.App app, String address,
+            List<GattAttributeCache.Attribute> attributes) throws RemoteException {
+        if (DBG) Log.d(TAG, "reportAttributes() - address=" + address
+                + ", attributes=" + attributes.size());
+        for (GattAttributeCache.Attribute attr : attributes) {
+            ParcelUuid srvcUuid = new ParcelUuid(attr.srvcUuid);
+            switch (attr.type) {
+                case GattAttributeCache.TYPE_SERVICE:
+                    app.callback.onGetService(address, attr.srvcType, attr.srvcInstId,
+                            srvcUuid);
+                    break;
+                case GattAttributeCache.TYPE_CHARACTERISTIC:
+                    app.callback.onGetCharacteristic(address, attr.srvcType,
+                            attr.srvcInstId, srvcUuid, attr.charInstId,
+                            new ParcelUuid(attr.charUuid), attr.charProp);
+                    break;
+                case GattAttributeCache.TYPE_INCLUDED_SERVICE:
+                    app.callback.onGetIncludedService(address, attr.srvcType,
+                            attr.srvcInstId, srvcUuid, attr.inclSrvcType, attr.instId,
+                            new ParcelUuid(attr.uuid));
+                    break;
+                case GattAttributeCache.TYPE_DESCRIPTOR:
+                    app.callback.onGetDescriptor(address, attr.srvcType, attr.srvcInstId,
+                            srvcUuid, attr.charInstId, new ParcelUuid(attr.charUuid),
+                            attr.instId, new ParcelUuid(attr.uuid));
+                    break;
+            }
+        }
+    }
+
+    private void addDiscoveredAttribute(int connId, GattAttributeCache.Attribute attribute) {
+        List<GattAttributeCache.Attribute> attributes = mDiscoveredAttributes.get(connId);
+        if (attributes != null) attributes.add(attribute);
+    }
+
+    // Returns the app to report discovery results to, or null if they are held back.
+    private ClientMap.App getSearchingApp(int connId) {
+        if (mValidatingConnIds.contains(connId)) return null;
+        return mClientMap.getByConnId(connId);
+    }
+
+    // Stores the result of a finished discovery for bonded devices.
+    private void finishDiscovery(int connId, int status) {
+        List<GattAttributeCache.Attribute> attributes = mDiscoveredAttributes.remove(connId);
+        String address = mClientMap.addressByConnId(connId);
+        if (mAttributeCache == null || attributes == null || address == null) return;
+        if (status != 0) return;
+        List<GattAttributeCache.Attribute> cached = mAttributeCache.get(address);
+        if (attributes.equals(cached)) return;
+        if (mAdapter.getRemoteDevice(address).getBondState() == BluetoothDevice.BOND_BONDED) {
+            mAttributeCache.put(address, attributes);
+        } else if (cached != null) {
+            mAttributeCache.remove(address);
+        }
     }
 
     void readCharacteristic(int clientIf, String address, int srvcType,
@@ -1553,6 +2061,7 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "readCharacteristic() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
+        if (connId != null) traceOpBegin(connId, address, GattOpTracer.OP_READ);
         if (connId != null)
             gattClientReadCharacteristicNative(connId, srvcType,
                 srvcInstanceId, srvcUuid.getLeastSignificantBits(),
@@ -1575,6 +2084,21 @@ public class GattService extends ProfileService {
         if (mReliableQueue.contains(address)) writeType = 3; // Prepared write
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
+        if (connId != null && writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                && mBulkWriteEnabled
+                && value.length > mClientMap.getMtu(connId) - BulkWrite.ATT_WRITE_HEADER_SIZE) {
+            traceOpBegin(connId, address, GattOpTracer.OP_WRITE);
+            startBulkWrite(connId, new BulkWrite(clientIf, address, srvcType, srvcInstanceId,
+                    srvcUuid, charInstanceId, charUuid, authReq, value,
+                    mClientMap.getMtu(connId)));
+            return;
+        }
+        if (connId != null) {
+            BulkWrite bulkWrite = mBulkWrites.get(connId);
+            if (bulkWrite != null) bulkWrite.onClientWrite();
+        }
+        if (connId != null && mLinkTuner != null) mLinkTuner.onTraffic(connId, value.length);
+        if (connId != null) traceOpBegin(connId, address, GattOpTracer.OP_WRITE);
         if (connId != null)
             gattClientWriteCharacteristicNative(connId, srvcType,
                 srvcInstanceId, srvcUuid.getLeastSignificantBits(),
@@ -1585,6 +2109,79 @@ public class GattService extends ProfileService {
             Log.e(TAG, "writeCharacteristic() - No connection for " + address + "...");
     }
 
+    // Sends a write without response larger than the MTU in chunks, one at a time.
+    private void startBulkWrite(int connId, BulkWrite bulkWrite) {
+        ClientMap.App app = mClientMap.getById(bulkWrite.clientIf);
+        if (app == null) return;
+        if (mBulkWrites.putIfAbsent(connId, bulkWrite) != null) {
+            // Only reachable by callers that do not wait for onCharacteristicWrite.
+            Log.e(TAG, "writeCharacteristic() - Bulk write already running for "
+                    + bulkWrite.address);
+            traceOpEnd(connId, GattOpTracer.OP_WRITE, BluetoothGatt.GATT_FAILURE);
+            try {
+                app.callback.onCharacteristicWrite(bulkWrite.address,
+                        BluetoothGatt.GATT_FAILURE, bulkWrite.srvcType, bulkWrite.srvcInstId,
+                        new ParcelUuid(bulkWrite.srvcUuid), bulkWrite.charInstId,
+                        new ParcelUuid(bulkWrite.charUuid));
+            } catch (RemoteException e) {
+                Log.e(TAG, "Exception: " + e);
+            }
+            return;
+        }
+        if (VDBG) Log.d(TAG, "startBulkWrite() - address=" + bulkWrite.address
+                + ", mtu=" + mClientMap.getMtu(connId));
+        pumpBulkWrite(connId, app);
+    }
+
+    // Hands the next chunk of the bulk write on a connection to the stack, unless a
+    // chunk is still pending or the link is congested.
+    private void pumpBulkWrite(int connId, ClientMap.App app) {
+        BulkWrite bulkWrite = mBulkWrites.get(connId);
+        if (bulkWrite == null || app.isCongested) return;
+        byte[] chunk = bulkWrite.nextChunk();
+        if (chunk == null) return;
+        if (mLinkTuner != null) mLinkTuner.onTraffic(connId, chunk.length);
+        mBulkWriteHandler.sendMessageDelayed(mBulkWriteHandler.obtainMessage(
+                MSG_BULK_WRITE_TIMEOUT, bulkWrite), mBulkWriteChunkTimeoutMillis);
+        gattClientWriteCharacteristicNative(connId, bulkWrite.srvcType,
+            bulkWrite.srvcInstId, bulkWrite.srvcUuid.getLeastSignificantBits(),
+            bulkWrite.srvcUuid.getMostSignificantBits(), bulkWrite.charInstId,
+            bulkWrite.charUuid.getLeastSignificantBits(),
+            bulkWrite.charUuid.getMostSignificantBits(),
+            BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, bulkWrite.authReq, chunk);
+    }
+
+    // The transfer stays registered after a timeout until the late chunk callback
+    // arrives, so that callback is not mistaken for one of the client's writes.
+    private void onBulkWriteTimeout(BulkWrite bulkWrite) {
+        if (!bulkWrite.onChunkTimeout(BluetoothGatt.GATT_FAILURE)) return;
+        Log.w(TAG, "Bulk write to " + bulkWrite.address + " timed out after "
+                + bulkWrite.getBytesWritten() + " bytes");
+        Integer connId = mClientMap.connIdByAddress(bulkWrite.clientIf, bulkWrite.address);
+        ClientMap.App app = mClientMap.getById(bulkWrite.clientIf);
+        if (connId != null && app != null) finishBulkWrite(connId, app, bulkWrite);
+    }
+
+    // Sends the single write callback for the whole transfer.
+    private void finishBulkWrite(int connId, ClientMap.App app, BulkWrite bulkWrite) {
+        int status = bulkWrite.getStatus();
+        if (DBG) Log.d(TAG, "Bulk write to " + bulkWrite.address + " done, status=" + status
+                + ", bytes=" + bulkWrite.getBytesWritten());
+        traceOpEnd(connId, GattOpTracer.OP_WRITE, status);
+        if (app.isCongested && app.queueCallback(new CallbackInfo(bulkWrite.address, status,
+                bulkWrite.srvcType, bulkWrite.srvcInstId, bulkWrite.srvcUuid,
+                bulkWrite.charInstId, bulkWrite.charUuid))) {
+            return;
+        }
+        try {
+            app.callback.onCharacteristicWrite(bulkWrite.address, status, bulkWrite.srvcType,
+                    bulkWrite.srvcInstId, new ParcelUuid(bulkWrite.srvcUuid),
+                    bulkWrite.charInstId, new ParcelUuid(bulkWrite.charUuid));
+        } catch (RemoteException e) {
+            Log.e(TAG, "Exception: " + e);
+        }
+    }
+
     void readDescriptor(int clientIf, String address, int srvcType,
                             int srvcInstanceId, UUID srvcUuid,
                             int charInstanceId, UUID charUuid,
@@ -1596,6 +2193,7 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "readDescriptor() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
+        if (connId != null) traceOpBegin(connId, address, GattOpTracer.OP_DESCRIPTOR_READ);
         if (connId != null)
             gattClientReadDescriptorNative(connId, srvcType,
                 srvcInstanceId,
@@ -1620,6 +2218,7 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "writeDescriptor() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
+        if (connId != null) traceOpBegin(connId, address, GattOpTracer.OP_DESCRIPTOR_WRITE);
         if (connId != null)
             gattClientWriteDescriptorNative(connId, srvcType,
                 srvcInstanceId,
@@ -1662,6 +2261,7 @@ public class GattService extends ProfileService {
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null) {
+            traceOpBegin(connId, address, GattOpTracer.OP_NOTIFY_REGISTER);
             gattClientRegisterForNotificationsNative(clientIf, address,
                 srvcType, srvcInstanceId, srvcUuid.getLeastSignificantBits(),
                 srvcUuid.getMostSignificantBits(), charInstanceId,
@@ -1685,6 +2285,8 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "configureMTU() - address=" + address + " mtu=" + mtu);
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null) {
+            if (mLinkTuner != null) mLinkTuner.onAppMtu(connId);
+            traceOpBegin(connId, address, GattOpTracer.OP_MTU);
             gattClientConfigureMTUNative(connId, mtu);
         } else {
             Log.e(TAG, "configureMTU() - No connection for " + address + "...");
@@ -1694,6 +2296,14 @@ public class GattService extends ProfileService {
     void connectionParameterUpdate(int clientIf, String address, int connectionPriority) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
+        if (mLinkTuner != null) {
+            Integer connId = mClientMap.connIdByAddress(clientIf, address);
+            if (connId != null) mLinkTuner.onAppConnectionPriority(connId);
+        }
+        updateConnectionPriority(clientIf, address, connectionPriority);
+    }
+
+    private void updateConnectionPriority(int clientIf, String address, int connectionPriority) {
         // Default spec recommended interval is 30->50 ms
         int minInterval = 24; // 24 * 1.25ms = 30ms
         int maxInterval = 40; // 40 * 1.25ms = 50ms
@@ -1735,7 +2345,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onServerRegistered() - UUID=" + uuid + ", serverIf=" + serverIf);
         ServerMap.App app = mServerMap.getByUuid(uuid);
         if (app != null) {
-            app.id = serverIf;
+            mServerMap.setAppId(app, serverIf);
             app.linkToDeath(new ServerDeathRecipient(serverIf));
             app.callback.onServerRegistered(status, serverIf);
         }
@@ -1822,6 +2432,10 @@ public class GattService extends ProfileService {
             mServerMap.addConnection(serverIf, connId, address);
         } else {
             mServerMap.removeConnection(serverIf, connId);
+            mSentNotifications.remove(connId);
+            mCongestedServerConnIds.remove(connId);
+            mHeldNotifications.remove(connId);
+            if (mPreparedWrites != null) mPreparedWrites.abort(connId);
         }
 
         app.callback.onServerConnectionState((byte)0, serverIf, connected, address);
@@ -1884,11 +2498,24 @@ public class GattService extends ProfileService {
         HandleMap.Entry entry = mHandleMap.getByHandle(attrHandle);
         if (entry == null) return;
 
-        mHandleMap.addRequest(transId, attrHandle);
-
         ServerMap.App app = mServerMap.getById(entry.serverIf);
+        if (isPrep && app != null && mPreparedWrites != null) {
+            int status = mPreparedWrites.prepare(connId, attrHandle, offset, data);
+            gattServerSendResponseNative(entry.serverIf, connId, transId, (byte)status,
+                                         attrHandle, offset, data, (byte)0);
+            return;
+        }
+
+        mHandleMap.addRequest(transId, attrHandle);
         if (app == null) return;
 
+        deliverWriteRequest(app, address, transId, entry, offset, length, isPrep, needRsp,
+                data);
+    }
+
+    private void deliverWriteRequest(ServerMap.App app, String address, int transId,
+            HandleMap.Entry entry, int offset, int length, boolean isPrep, boolean needRsp,
+            byte[] data) throws RemoteException {
         switch(entry.type) {
             case HandleMap.TYPE_CHARACTERISTIC:
             {
@@ -1925,12 +2552,53 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onExecuteWrite() connId=" + connId
             + ", address=" + address + ", transId=" + transId);
 
+        if (mPreparedWrites != null) {
+            if (execWrite != 1) {
+                mPreparedWrites.abort(connId);
+            } else if (!deliverPreparedWrites(address, connId, transId)) {
+                return;
+            }
+        }
+
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
         app.callback.onExecuteWrite(address, transId, execWrite == 1);
     }
 
+    /**
+     * Hands the values assembled from prepared writes to their server apps as
+     * plain write requests that need no response. The execute write itself is
+     * still answered by the app, unless an offset or length was invalid. Then no
+     * value is delivered, the execute write is answered with the error here and
+     * false is returned.
+     */
+    private boolean deliverPreparedWrites(String address, int connId, int transId)
+            throws RemoteException {
+        PreparedWriteBuffer.Execution execution = mPreparedWrites.execute(connId);
+        if (execution.status != 0) {
+            Log.w(TAG, "Prepared write to handle " + execution.handle + " from " + address
+                    + " failed, error=" + execution.status);
+            ServerMap.App app = mServerMap.getByConnId(connId);
+            if (app != null) {
+                gattServerSendResponseNative(app.id, connId, transId, (byte) execution.status,
+                        execution.handle, 0, new byte[0], (byte) 0);
+            }
+            return false;
+        }
+        for (PreparedWriteBuffer.Value value : execution.values) {
+            HandleMap.Entry entry = mHandleMap.getByHandle(value.handle);
+            if (entry == null) continue;
+
+            ServerMap.App app = mServerMap.getById(entry.serverIf);
+            if (app == null) continue;
+
+            deliverWriteRequest(app, address, transId, entry, value.offset, value.data.length,
+                    false, false, value.data);
+        }
+        return true;
+    }
+
     void onResponseSendCompleted(int status, int attrHandle) {
         if (DBG) Log.d(TAG, "onResponseSendCompleted() handle=" + attrHandle);
     }
@@ -1944,19 +2612,29 @@ public class GattService extends ProfileService {
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
+        boolean isNotification = pollSentNotification(connId);
         if (!app.isCongested) {
             app.callback.onNotificationSent(address, status);
         } else {
             if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
                 status = BluetoothGatt.GATT_SUCCESS;
             }
-            app.queueCallback(new CallbackInfo(address, status));
+            if (!app.queueCallback(new CallbackInfo(address, status, isNotification))) {
+                app.callback.onNotificationSent(address, status);
+            }
         }
     }
 
     void onServerCongestion(int connId, boolean congested) throws RemoteException {
         if (DBG) Log.d(TAG, "onServerCongestion() - connId=" + connId + ", congested=" + congested);
 
+        if (congested) {
+            mCongestedServerConnIds.add(connId);
+        } else {
+            mCongestedServerConnIds.remove(connId);
+            sendHeldNotifications(connId);
+        }
+
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
@@ -1971,6 +2649,7 @@ public class GattService extends ProfileService {
     void onMtuChanged(int connId, int mtu) throws RemoteException {
         if (DBG) Log.d(TAG, "onMtuChanged() - connId=" + connId + ", mtu=" + mtu);
 
+        mServerMap.setMtu(connId, mtu);
         String address = mServerMap.addressByConnId(connId);
         if (address == null) return;
 
@@ -2115,9 +2794,10 @@ public class GattService extends ProfileService {
         int charHandle = mHandleMap.getCharacteristicHandle(srvcHandle, charUuid, charInstanceId);
         if (charHandle == 0) return;
 
-        int connId = mServerMap.connIdByAddress(serverIf, address);
-        if (connId == 0) return;
+        Integer connId = mServerMap.connIdByAddress(serverIf, address);
+        if (connId == null || connId == 0) return;
 
+        addSentNotification(connId, !confirm);
         if (confirm) {
             gattServerSendIndicationNative(serverIf, charHandle, connId, value);
         } else {
@@ -2125,6 +2805,82 @@ public class GattService extends ProfileService {
         }
     }
 
+    /**
+     * Sends one value of a characteristic to several connected devices, with one handle
+     * lookup and one native call for all of them. This is the in-process entry point for
+     * servers notifying many centrals, IBluetoothGatt only sends to one device per call.
+     *
+     * Notifications for congested connections are held and sent when the congestion
+     * clears, only the latest value per characteristic is kept. Indications are always
+     * sent. Returns the number of devices the value was sent or held for.
+     */
+    int sendNotifications(int serverIf, Collection<String> addresses, int srvcType,
+            int srvcInstanceId, UUID srvcUuid, int charInstanceId, UUID charUuid,
+            boolean confirm, byte[] value) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+
+        if (VDBG) Log.d(TAG, "sendNotifications() - devices=" + addresses.size());
+
+        int srvcHandle = mHandleMap.getServiceHandle(srvcUuid, srvcType, srvcInstanceId);
+        if (srvcHandle == 0) return 0;
+
+        int charHandle = mHandleMap.getCharacteristicHandle(srvcHandle, charUuid, charInstanceId);
+        if (charHandle == 0) return 0;
+
+        int[] connIds = new int[addresses.size()];
+        int count = 0;
+        int held = 0;
+        for (String address : addresses) {
+            Integer connId = mServerMap.connIdByAddress(serverIf, address);
+            if (connId == null) continue;
+            if (!confirm && mCongestedServerConnIds.contains(connId)) {
+                mHeldNotifications.hold(connId, serverIf, charHandle, value.clone());
+                held++;
+                continue;
+            }
+            addSentNotification(connId, !confirm);
+            connIds[count++] = connId;
+        }
+        if (count > 0) {
+            gattServerSendNotificationsNative(serverIf, charHandle,
+                    Arrays.copyOf(connIds, count), confirm, value);
+        }
+        return count + held;
+    }
+
+    // Sends the notifications held while a connection was congested.
+    private void sendHeldNotifications(int connId) {
+        for (HeldNotifications.Entry entry : mHeldNotifications.release(connId)) {
+            addSentNotification(connId, true);
+            gattServerSendNotificationNative(entry.serverIf, entry.handle, connId, entry.value);
+        }
+    }
+
+    // Records whether the next value sent on a connection is a notification or an
+    // indication. The stack completes them in order through onNotificationSent.
+    private void addSentNotification(int connId, boolean isNotification) {
+        Deque<Boolean> sent = mSentNotifications.get(connId);
+        if (sent == null) {
+            sent = new ArrayDeque<Boolean>();
+            Deque<Boolean> existing = mSentNotifications.putIfAbsent(connId, sent);
+            if (existing != null) sent = existing;
+        }
+        synchronized (sent) {
+            sent.add(isNotification);
+        }
+    }
+
+    // Returns true if the oldest value sent on a connection was a notification. Unknown
+    // values are treated as indications, which are never dropped.
+    private boolean pollSentNotification(int connId) {
+        Deque<Boolean> sent = mSentNotifications.get(connId);
+        if (sent == null) return false;
+        synchronized (sent) {
+            Boolean isNotification = sent.poll();
+            return isNotification != null && isNotification;
+        }
+    }
+
 
     /**************************************************************************
      * Private functions
@@ -2171,8 +2927,8 @@ public class GattService extends ProfileService {
     }
 
     private void continueSearch(int connId, int status) throws RemoteException {
-        if (status == 0 && !mSearchQueue.isEmpty()) {
-            SearchQueue.Entry svc = mSearchQueue.pop();
+        if (status == 0 && !mSearchQueue.isEmpty(connId)) {
+            SearchQueue.Entry svc = mSearchQueue.pop(connId);
 
             if (svc.charUuidLsb == 0) {
                 // Characteristic is up next
@@ -2185,10 +2941,12 @@ public class GattService extends ProfileService {
                     svc.charInstId, svc.charUuidLsb, svc.charUuidMsb, 0, 0, 0);
             }
         } else {
+            traceOpEnd(connId, GattOpTracer.OP_DISCOVERY, status);
+            finishDiscovery(connId, status);
             ClientMap.App app = mClientMap.getByConnId(connId);
-            if (app != null) {
-                app.callback.onSearchComplete(mClientMap.addressByConnId(connId), status);
-            }
+            if (app == null) return;
+            String address = mClientMap.addressByConnId(connId);
+            app.callback.onSearchComplete(address, status);
         }
     }
 
@@ -2352,12 +3110,50 @@ public class GattService extends ProfileService {
             println(sb, "  " + declaration);
         }
         println(sb, "mMaxScanFilters: " + mMaxScanFilters);
+        if (mScanManager != null) {
+            println(sb, "Scan commands: " + mScanManager.getCommandQueueState());
+        }
+        if (mAttributeCache != null) {
+            println(sb, "Cached GATT databases: " + mAttributeCache.size());
+        }
+        println(sb, "mStrictLocationCheck: " + mStrictLocationCheck
+                + ", mLocationEnabled: " + mLocationEnabled);
+
+        println(sb, "GATT client operation latencies:");
+        getOpLatencySnapshot().dump(sb);
+
+        ScanStats.Snapshot stats = getScanStatsSnapshot();
+        println(sb, "Scan statistics:");
+        stats.dump(sb);
+        long parseCount = stats.scanRecordParses;
+        long now = SystemClock.elapsedRealtime();
+        long elapsedMillis = Math.max(1, now - mLastDumpTimeMillis);
+        println(sb, "Scan record parses: " + parseCount + " ("
+                + ((parseCount - mLastDumpParseCount) * 1000 / elapsedMillis)
+                + "/s since last dump)");
+        mLastDumpParseCount = parseCount;
+        mLastDumpTimeMillis = now;
+
+        if (mScanDedupWindowMillis > 0) {
+            println(sb, "Scan dedup window: " + mScanDedupWindowMillis + "ms, rssi threshold: "
+                    + mScanDedupRssiThreshold);
+            if (mScanManager != null) {
+                for (ScanClient client : mScanManager.getDispatchIndex().getClients()) {
+                    if (client.dedupCache == null) continue;
+                    println(sb, "  clientIf " + client.clientIf + ": suppressed "
+                            + client.dedupCache.getSuppressedCount() + ", tracked "
+                            + client.dedupCache.size());
+                }
+            }
+        }
 
         sb.append("\nGATT Client Map\n");
         mClientMap.dump(sb);
+        if (mLinkTuner != null) sb.append("  " + mLinkTuner + "\n");
 
         sb.append("\nGATT Server Map\n");
         mServerMap.dump(sb);
+        if (mPreparedWrites != null) sb.append("  " + mPreparedWrites + "\n");
 
         sb.append("\nGATT Handle Map\n");
         mHandleMap.dump(sb);
@@ -2503,6 +3299,9 @@ public class GattService extends ProfileService {
     private native void gattServerSendNotificationNative (int server_if,
             int attr_handle, int conn_id, byte[] val);
 
+    private native void gattServerSendNotificationsNative (int server_if,
+            int attr_handle, int[] conn_ids, boolean confirm, byte[] val);
+
     private native void gattServerSendResponseNative (int server_if,
             int conn_id, int trans_id, int status, int handle, int offset,
             byte[] val, int auth_req);
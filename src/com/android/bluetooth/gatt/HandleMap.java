@@ -16,11 +16,13 @@
 package com.android.bluetooth.gatt;
 
 import android.util.Log;
+import android.util.SparseArray;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
 
 class HandleMap {
@@ -84,10 +86,45 @@ class HandleMap {
         }
     }
 
+    /**
+     * Key of the service and characteristic indexes. The scope is the service type
+     * for services and the service handle for characteristics.
+     */
+    private static class AttributeKey {
+        final UUID uuid;
+        final int scope;
+        final int instance;
+
+        AttributeKey(UUID uuid, int scope, int instance) {
+            this.uuid = uuid;
+            this.scope = scope;
+            this.instance = instance;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof AttributeKey)) return false;
+            AttributeKey other = (AttributeKey) obj;
+            return scope == other.scope && instance == other.instance
+                    && Objects.equals(uuid, other.uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(uuid, scope, instance);
+        }
+    }
+
     List<Entry> mEntries = null;
     Map<Integer, Integer> mRequestMap = null;
     int mLastCharacteristic = 0;
 
+    // Indexes over mEntries. If several entries share a key, the first one added wins,
+    // like it did for the linear lookups these replace.
+    private final SparseArray<Entry> mEntriesByHandle = new SparseArray<Entry>();
+    private final Map<AttributeKey, Entry> mServices = new HashMap<AttributeKey, Entry>();
+    private final Map<AttributeKey, Entry> mCharacteristics = new HashMap<AttributeKey, Entry>();
+
     HandleMap() {
         mEntries = new ArrayList<Entry>();
         mRequestMap = new HashMap<Integer, Integer>();
@@ -96,78 +133,105 @@ class HandleMap {
     void clear() {
         mEntries.clear();
         mRequestMap.clear();
+        mEntriesByHandle.clear();
+        mServices.clear();
+        mCharacteristics.clear();
     }
 
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance,
         boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        addEntry(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        addEntry(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle, mLastCharacteristic));
+        addEntry(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle, mLastCharacteristic));
     }
 
-    void setStarted(int serverIf, int handle, boolean started) {
-        for(Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE ||
-                entry.serverIf != serverIf ||
-                entry.handle != handle)
-                continue;
+    private void addEntry(Entry entry) {
+        mEntries.add(entry);
+        indexEntry(entry);
+    }
 
-            entry.started = started;
+    private void indexEntry(Entry entry) {
+        if (mEntriesByHandle.get(entry.handle) == null) {
+            mEntriesByHandle.put(entry.handle, entry);
+        }
+        AttributeKey key;
+        Map<AttributeKey, Entry> index;
+        if (entry.type == TYPE_SERVICE) {
+            key = new AttributeKey(entry.uuid, entry.serviceType, entry.instance);
+            index = mServices;
+        } else if (entry.type == TYPE_CHARACTERISTIC) {
+            key = new AttributeKey(entry.uuid, entry.serviceHandle, entry.instance);
+            index = mCharacteristics;
+        } else {
             return;
         }
+        if (!index.containsKey(key)) {
+            index.put(key, entry);
+        }
+    }
+
+    void setStarted(int serverIf, int handle, boolean started) {
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null || entry.type != TYPE_SERVICE || entry.serverIf != serverIf) {
+            return;
+        }
+        entry.started = started;
     }
 
     Entry getByHandle(int handle) {
-        for(Entry entry : mEntries) {
-            if (entry.handle == handle)
-                return entry;
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null) {
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
+        return entry;
     }
 
     int getServiceHandle(UUID uuid, int serviceType, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE &&
-                entry.serviceType == serviceType &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
-            }
+        Entry entry = mServices.get(new AttributeKey(uuid, serviceType, instance));
+        if (entry == null) {
+            Log.e(TAG, "getServiceHandle() - UUID " + uuid + " not found!");
+            return 0;
         }
-        Log.e(TAG, "getServiceHandle() - UUID " + uuid + " not found!");
-        return 0;
+        return entry.handle;
     }
 
     int getCharacteristicHandle(int serviceHandle, UUID uuid, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_CHARACTERISTIC &&
-                entry.serviceHandle == serviceHandle &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
-            }
+        Entry entry = mCharacteristics.get(new AttributeKey(uuid, serviceHandle, instance));
+        if (entry == null) {
+            Log.e(TAG, "getCharacteristicHandle() - Service " + serviceHandle
+                        + ", UUID " + uuid + " not found!");
+            return 0;
         }
-        Log.e(TAG, "getCharacteristicHandle() - Service " + serviceHandle
-                    + ", UUID " + uuid + " not found!");
-        return 0;
+        return entry.handle;
     }
 
     void deleteService(int serverIf, int serviceHandle) {
+        boolean removed = false;
         for(Iterator <Entry> it = mEntries.iterator(); it.hasNext();) {
             Entry entry = it.next();
             if (entry.serverIf != serverIf) continue;
 
             if (entry.handle == serviceHandle ||
-                entry.serviceHandle == serviceHandle)
+                entry.serviceHandle == serviceHandle) {
                 it.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            // Services are deleted rarely, rebuilding keeps first-added semantics simple.
+            mEntriesByHandle.clear();
+            mServices.clear();
+            mCharacteristics.clear();
+            for (Entry entry : mEntries) {
+                indexEntry(entry);
+            }
         }
     }
 
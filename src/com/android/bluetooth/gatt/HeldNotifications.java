@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Notifications held for congested server connections.
+ *
+ * Only the latest value of each characteristic is kept per connection, a newer value
+ * replaces the held one. Indications are never held, they are sent right away.
+ *
+ * @hide
+ */
+/* package */class HeldNotifications {
+    /**
+     * One held notification.
+     */
+    static class Entry {
+        final int serverIf;
+        final int handle;
+        final byte[] value;
+
+        Entry(int serverIf, int handle, byte[] value) {
+            this.serverIf = serverIf;
+            this.handle = handle;
+            this.value = value;
+        }
+    }
+
+    // Held notifications by connection ID, then by characteristic handle in the order
+    // they were first held.
+    private final Map<Integer, LinkedHashMap<Integer, Entry>> mByConnId =
+            new HashMap<Integer, LinkedHashMap<Integer, Entry>>();
+    private long mReplaced;
+
+    /**
+     * Holds {@code value} for a characteristic of a connection. Returns true if it
+     * replaced a value that was not sent yet.
+     */
+    synchronized boolean hold(int connId, int serverIf, int handle, byte[] value) {
+        LinkedHashMap<Integer, Entry> entries = mByConnId.get(connId);
+        if (entries == null) {
+            entries = new LinkedHashMap<Integer, Entry>();
+            mByConnId.put(connId, entries);
+        }
+        boolean replaced = entries.put(handle, new Entry(serverIf, handle, value)) != null;
+        if (replaced) mReplaced++;
+        return replaced;
+    }
+
+    /**
+     * Removes and returns the notifications held for a connection.
+     */
+    synchronized List<Entry> release(int connId) {
+        LinkedHashMap<Integer, Entry> entries = mByConnId.remove(connId);
+        if (entries == null) return Collections.emptyList();
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Drops the notifications held for a connection that went away.
+     */
+    synchronized void remove(int connId) {
+        mByConnId.remove(connId);
+    }
+
+    synchronized void clear() {
+        mByConnId.clear();
+    }
+
+    /**
+     * Returns the number of notifications currently held.
+     */
+    synchronized int size() {
+        int size = 0;
+        for (LinkedHashMap<Integer, Entry> entries : mByConnId.values()) {
+            size += entries.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of held values replaced by a newer one before being sent.
+     */
+    synchronized long getReplacedCount() {
+        return mReplaced;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adjusts MTU and connection interval of GATT client connections to their traffic.
+ *
+ * Once a second the tuner looks at the bytes moved and the congestion events seen on
+ * each connection. A connection carrying bulk traffic is switched to a larger MTU
+ * and to the high priority connection interval; after being idle for a while it is
+ * put back to the balanced interval. The MTU is not touched on connections whose
+ * app set it, and the interval is not touched on connections whose app set the
+ * connection priority.
+ *
+ * @hide
+ */
+/* package */class LinkTuner {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "LinkTuner";
+
+    private static final int MSG_EVALUATE = 0;
+    private static final long EVALUATE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Applies the tuner's decisions to a connection.
+     */
+    interface Callback {
+        /**
+         * Returns false if the MTU cannot be requested right now, for instance while
+         * an operation of the app is running. The request is retried later.
+         */
+        boolean requestMtu(int connId, int mtu);
+
+        void requestConnectionPriority(int clientIf, String address, int priority);
+    }
+
+    private static class Link {
+        final int clientIf;
+        final String address;
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger congestionEvents = new AtomicInteger();
+        volatile boolean pinned;
+        volatile boolean appMtu;
+        // Only touched on the tuner thread.
+        boolean boosted;
+        boolean mtuRequested;
+        int idleIntervals;
+
+        Link(int clientIf, String address) {
+            this.clientIf = clientIf;
+            this.address = address;
+        }
+    }
+
+    private final Callback mCallback;
+    private final int mBoostBytesPerSec;
+    private final int mIdleBytesPerSec;
+    private final int mIdleIntervals;
+    private final int mMtu;
+    private final Map<Integer, Link> mLinks = new ConcurrentHashMap<Integer, Link>();
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    LinkTuner(Callback callback, int boostBytesPerSec, int idleBytesPerSec,
+            int idleSeconds, int mtu) {
+        mCallback = callback;
+        mBoostBytesPerSec = boostBytesPerSec;
+        mIdleBytesPerSec = idleBytesPerSec;
+        mIdleIntervals = Math.max(1, (int) (idleSeconds * 1000L / EVALUATE_INTERVAL_MILLIS));
+        mMtu = mtu;
+    }
+
+    void start() {
+        mThread = new HandlerThread("BluetoothGattLinkTuner");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_EVALUATE) {
+                    evaluate();
+                    sendEmptyMessageDelayed(MSG_EVALUATE, EVALUATE_INTERVAL_MILLIS);
+                }
+            }
+        };
+        mHandler.sendEmptyMessageDelayed(MSG_EVALUATE, EVALUATE_INTERVAL_MILLIS);
+    }
+
+    void cleanup() {
+        if (mThread != null) {
+            mHandler.removeMessages(MSG_EVALUATE);
+            mThread.quitSafely();
+            mThread = null;
+        }
+        mLinks.clear();
+    }
+
+    void onConnected(int clientIf, int connId, String address) {
+        mLinks.put(connId, new Link(clientIf, address));
+    }
+
+    void onDisconnected(int connId) {
+        mLinks.remove(connId);
+    }
+
+    /**
+     * Records bytes written to or received from the remote device.
+     */
+    void onTraffic(int connId, int bytes) {
+        Link link = mLinks.get(connId);
+        if (link != null) link.bytes.addAndGet(bytes);
+    }
+
+    void onCongestion(int connId) {
+        Link link = mLinks.get(connId);
+        if (link != null) link.congestionEvents.incrementAndGet();
+    }
+
+    /**
+     * Stops changing the MTU of a connection whose app chose its own MTU.
+     */
+    void onAppMtu(int connId) {
+        Link link = mLinks.get(connId);
+        if (link != null) link.appMtu = true;
+    }
+
+    /**
+     * Stops tuning the interval of a connection whose app chose its own connection
+     * priority. The app's priority replaces a boost that may be in effect.
+     */
+    void onAppConnectionPriority(int connId) {
+        Link link = mLinks.get(connId);
+        if (link != null) link.pinned = true;
+    }
+
+    @VisibleForTesting
+    void evaluate() {
+        for (Map.Entry<Integer, Link> entry : mLinks.entrySet()) {
+            int connId = entry.getKey();
+            Link link = entry.getValue();
+            long bytesPerSec = link.bytes.getAndSet(0) * 1000 / EVALUATE_INTERVAL_MILLIS;
+            int congestionEvents = link.congestionEvents.getAndSet(0);
+            if (link.pinned) {
+                link.boosted = false;
+                continue;
+            }
+
+            boolean busy = bytesPerSec >= mBoostBytesPerSec
+                    || (congestionEvents > 0 && bytesPerSec >= mIdleBytesPerSec);
+            if (busy) {
+                link.idleIntervals = 0;
+                if (!link.mtuRequested && !link.appMtu) {
+                    link.mtuRequested = mCallback.requestMtu(connId, mMtu);
+                }
+                if (!link.boosted) {
+                    link.boosted = true;
+                    if (DBG) Log.d(TAG, "Boosting " + link.address + ", " + bytesPerSec + " B/s");
+                    mCallback.requestConnectionPriority(link.clientIf, link.address,
+                            BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                }
+            } else if (link.boosted && bytesPerSec < mIdleBytesPerSec
+                    && ++link.idleIntervals >= mIdleIntervals) {
+                link.boosted = false;
+                link.idleIntervals = 0;
+                if (DBG) Log.d(TAG, "Relaxing " + link.address);
+                mCallback.requestConnectionPriority(link.clientIf, link.address,
+                        BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        int boosted = 0;
+        int pinned = 0;
+        for (Link link : mLinks.values()) {
+            if (link.boosted) boosted++;
+            if (link.pinned) pinned++;
+        }
+        return "LinkTuner{links=" + mLinks.size() + ", boosted=" + boosted + ", pinned="
+                + pinned + "}";
+    }
+}
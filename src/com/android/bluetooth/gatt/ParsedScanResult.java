@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.SystemClock;
+
+/**
+ * A single received advertisement, shared by every client the advertisement is
+ * dispatched to. The scan record, remote device and {@link ScanResult} are built
+ * on first use and then reused, so an advertisement is parsed at most once no
+ * matter how many clients receive it.
+ *
+ * Instances are confined to the thread delivering the scan result.
+ *
+ * @hide
+ */
+/* package */class ParsedScanResult {
+    final String address;
+    final int rssi;
+    final byte[] advData;
+    final long timestampNanos;
+
+    private final ScanStats mStats;
+    private boolean mParsed;
+    private ScanRecord mScanRecord;
+    private ScanResult mScanResult;
+
+    ParsedScanResult(String address, int rssi, byte[] advData, long timestampNanos,
+            ScanStats stats) {
+        this.address = address;
+        this.rssi = rssi;
+        this.advData = advData;
+        this.timestampNanos = timestampNanos;
+        mStats = stats;
+    }
+
+    /**
+     * Returns the parsed advertisement, or null if it is malformed.
+     */
+    ScanRecord getScanRecord() {
+        if (!mParsed) {
+            mParsed = true;
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            mScanRecord = ScanRecord.parseFromBytes(advData);
+            if (mStats != null) {
+                mStats.onScanRecordParsed(SystemClock.elapsedRealtimeNanos() - startNanos);
+            }
+        }
+        return mScanRecord;
+    }
+
+    /**
+     * Returns the scan result handed to client callbacks.
+     */
+    ScanResult getScanResult() {
+        if (mScanResult == null) {
+            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter()
+                    .getRemoteDevice(address);
+            mScanResult = new ScanResult(device, getScanRecord(), rssi, timestampNanos);
+        }
+        return mScanResult;
+    }
+}
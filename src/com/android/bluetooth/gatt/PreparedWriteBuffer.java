@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server side reassembly of prepared (long or reliable) writes.
+ *
+ * Prepared chunks are appended per connection and attribute handle. The
+ * assembled values are handed out once, when the client executes the write, so
+ * the server app sees a single write request per attribute instead of one per
+ * chunk. Buffers are taken from and returned to a small pool.
+ *
+ * As the ATT protocol requires, a prepare write is only refused when the queue is
+ * full. Offsets and lengths are checked when the write is executed, and the first
+ * error found is returned for the execute write request instead.
+ *
+ * @hide
+ */
+/* package */class PreparedWriteBuffer {
+    // ATT error codes returned for prepare and execute write requests.
+    static final int ATT_INVALID_OFFSET = 0x07;
+    static final int ATT_PREPARE_QUEUE_FULL = 0x09;
+    static final int ATT_INVALID_ATTRIBUTE_LENGTH = 0x0D;
+
+    private static final int INITIAL_BUFFER_SIZE = 64;
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    /**
+     * Outcome of executing the queued writes of a connection.
+     */
+    static class Execution {
+        // 0, or the ATT error to answer the execute write request with.
+        final int status;
+        // Attribute the error is reported for.
+        final int handle;
+        // The assembled values if the status is 0.
+        final List<Value> values;
+
+        Execution(int status, int handle, List<Value> values) {
+            this.status = status;
+            this.handle = handle;
+            this.values = values;
+        }
+    }
+
+    /**
+     * An assembled value, returned in the order the attributes were first written.
+     */
+    static class Value {
+        final int handle;
+        final int offset;
+        final byte[] data;
+
+        Value(int handle, int offset, byte[] data) {
+            this.handle = handle;
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    private static class Segment {
+        final int handle;
+        final int offset;
+        byte[] buffer;
+        int length;
+        // Bytes received for the attribute, counted against the queue limit.
+        int queued;
+        // First offset or length error found, reported on execute.
+        int error;
+
+        Segment(int handle, int offset, byte[] buffer) {
+            this.handle = handle;
+            this.offset = offset;
+            this.buffer = buffer;
+        }
+    }
+
+    private final int mMaxValueLength;
+    private final int mMaxQueuedBytes;
+    private final Map<Long, Segment> mSegments = new LinkedHashMap<Long, Segment>();
+    private final ArrayDeque<byte[]> mPool = new ArrayDeque<byte[]>();
+    private long mAssembled;
+    private long mRejected;
+
+    PreparedWriteBuffer(int maxValueLength, int maxQueuedBytes) {
+        mMaxValueLength = maxValueLength;
+        mMaxQueuedBytes = maxQueuedBytes;
+    }
+
+    private static long key(int connId, int handle) {
+        return ((long) connId << 32) | (handle & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Queues a prepared chunk.
+     *
+     * @return 0 if the chunk was queued, or {@link #ATT_PREPARE_QUEUE_FULL}.
+     */
+    synchronized int prepare(int connId, int handle, int offset, byte[] data) {
+        int length = data == null ? 0 : data.length;
+        if (queuedBytes(connId) + length > mMaxQueuedBytes) {
+            mRejected++;
+            return ATT_PREPARE_QUEUE_FULL;
+        }
+        Long key = key(connId, handle);
+        Segment segment = mSegments.get(key);
+        if (segment == null) {
+            segment = new Segment(handle, offset, obtain());
+            mSegments.put(key, segment);
+        }
+        segment.queued += length;
+        if (segment.error != 0) return 0;
+
+        int start = offset - segment.offset;
+        if (start < 0 || start > segment.length) {
+            segment.error = ATT_INVALID_OFFSET;
+            return 0;
+        }
+        int end = start + length;
+        if (segment.offset + end > mMaxValueLength) {
+            segment.error = ATT_INVALID_ATTRIBUTE_LENGTH;
+            return 0;
+        }
+
+        if (end > segment.buffer.length) {
+            byte[] grown = new byte[Math.max(end, segment.buffer.length * 2)];
+            System.arraycopy(segment.buffer, 0, grown, 0, segment.length);
+            segment.buffer = grown;
+        }
+        if (length > 0) System.arraycopy(data, 0, segment.buffer, start, length);
+        segment.length = Math.max(segment.length, end);
+        return 0;
+    }
+
+    /**
+     * Removes the queued chunks of a connection and returns the assembled values,
+     * or the first offset or length error. On error no value is returned.
+     */
+    synchronized Execution execute(int connId) {
+        List<Value> values = new ArrayList<Value>();
+        int status = 0;
+        int errorHandle = 0;
+        Iterator<Map.Entry<Long, Segment>> it = mSegments.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Segment> e = it.next();
+            if ((int) (e.getKey() >> 32) != connId) continue;
+            Segment segment = e.getValue();
+            if (status == 0 && segment.error != 0) {
+                status = segment.error;
+                errorHandle = segment.handle;
+            }
+            if (status == 0) {
+                byte[] data = new byte[segment.length];
+                System.arraycopy(segment.buffer, 0, data, 0, segment.length);
+                values.add(new Value(segment.handle, segment.offset, data));
+            }
+            recycle(segment.buffer);
+            it.remove();
+        }
+        if (status != 0) {
+            mRejected++;
+            return new Execution(status, errorHandle, Collections.<Value>emptyList());
+        }
+        mAssembled += values.size();
+        return new Execution(0, 0, values);
+    }
+
+    /**
+     * Drops the queued chunks of a connection, on cancel or disconnect.
+     */
+    synchronized void abort(int connId) {
+        Iterator<Map.Entry<Long, Segment>> it = mSegments.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Segment> e = it.next();
+            if ((int) (e.getKey() >> 32) != connId) continue;
+            recycle(e.getValue().buffer);
+            it.remove();
+        }
+    }
+
+    synchronized void clear() {
+        mSegments.clear();
+        mPool.clear();
+    }
+
+    synchronized boolean hasPending(int connId) {
+        for (Long key : mSegments.keySet()) {
+            if ((int) (key >> 32) == connId) return true;
+        }
+        return false;
+    }
+
+    private int queuedBytes(int connId) {
+        int bytes = 0;
+        for (Map.Entry<Long, Segment> e : mSegments.entrySet()) {
+            if ((int) (e.getKey() >> 32) == connId) bytes += e.getValue().queued;
+        }
+        return bytes;
+    }
+
+    private byte[] obtain() {
+        byte[] buffer = mPool.poll();
+        return buffer != null ? buffer : new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    private void recycle(byte[] buffer) {
+        if (mPool.size() < MAX_POOLED_BUFFERS && buffer.length <= mMaxValueLength) {
+            mPool.push(buffer);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PreparedWriteBuffer{pending=" + mSegments.size() + ", pooled=" + mPool.size()
+                + ", assembled=" + mAssembled + ", rejected=" + mRejected + "}";
+    }
+}
@@ -42,6 +42,12 @@ import java.util.UUID;
     boolean hasPeersMacAddressPermission;
     // Pre-M apps are allowed to get scan results even if location is disabled
     boolean legacyForegroundApp;
+    // Last time a scan result was delivered to the client, used to pick filters to spill.
+    volatile long lastMatchTimeMillis;
+    // Suppresses repeated advertisements, null if duplicates are reported.
+    ScanDedupCache dedupCache;
+    // Buffers results of a batch client served by a regular scan, null otherwise.
+    ScanResultBatcher hostBatcher;
 
     private static final ScanSettings DEFAULT_SCAN_SETTINGS = new ScanSettings.Builder()
             .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pipelines the scan controller commands of {@link ScanManager}.
+ *
+ * Commands are issued in the order they were added. Up to {@code window}
+ * commands that are acknowledged by a stack callback may be outstanding at a
+ * time. Each callback completes the oldest outstanding command of the same
+ * client that the callback acknowledges. Commands without acknowledgement and
+ * exclusive commands act as barriers and are only issued once every earlier
+ * command was acknowledged. An acknowledgement that does not arrive within the
+ * timeout is given up on, and is dropped if it arrives later.
+ *
+ * @hide
+ */
+/* package */class ScanCommandQueue {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "ScanCommandQueue";
+
+    // Stack callbacks that acknowledge a command.
+    static final int ACK_NONE = 0;
+    static final int ACK_FILTER_ENABLE = 1;
+    static final int ACK_FILTER_PARAMS = 2;
+    static final int ACK_FILTER_CONFIG = 3;
+    static final int ACK_BATCH_STORAGE = 4;
+    static final int ACK_BATCH_START_STOP = 5;
+    static final int ACK_BATCH_REPORTS = 6;
+
+    /**
+     * A native call made when the command reaches the head of the queue.
+     */
+    abstract static class Command {
+        final String name;
+        final int clientIf;
+        // The callback that acknowledges the command, or ACK_NONE.
+        final int ack;
+        final boolean needsAck;
+        // Whether no other command may be outstanding while this one is.
+        final boolean exclusive;
+        // When the acknowledgement was given up on.
+        long timedOutMillis;
+
+        Command(String name, int clientIf, int ack) {
+            this(name, clientIf, ack, ack == ACK_NONE);
+        }
+
+        Command(String name, int clientIf, int ack, boolean exclusive) {
+            this.name = name;
+            this.clientIf = clientIf;
+            this.ack = ack;
+            this.needsAck = ack != ACK_NONE;
+            this.exclusive = exclusive;
+        }
+
+        boolean isAckedBy(int clientIf, int ack) {
+            return this.clientIf == clientIf && this.ack == ack;
+        }
+
+        /**
+         * Makes the native call. Returns false if nothing was sent to the stack, in
+         * which case no acknowledgement is waited for.
+         */
+        abstract boolean issue();
+    }
+
+    private final Handler mHandler;
+    private final int mWindow;
+    private final long mTimeoutMillis;
+    private final ArrayDeque<Command> mQueued = new ArrayDeque<Command>();
+    private final ArrayDeque<Command> mInFlight = new ArrayDeque<Command>();
+    // Timed out commands whose acknowledgement may still arrive.
+    private final ArrayDeque<Command> mTimedOutCommands = new ArrayDeque<Command>();
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+    private long mIssued;
+    private long mFailed;
+    private long mTimedOut;
+    private long mLateAcks;
+
+    ScanCommandQueue(Handler handler, int window, long timeoutMillis) {
+        mHandler = handler;
+        mWindow = Math.max(1, window);
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    synchronized void add(Command command) {
+        mQueued.add(command);
+        pump();
+    }
+
+    /**
+     * Completes the oldest outstanding command of {@code clientIf} acknowledged by
+     * {@code ack}. The acknowledgement of a command that timed out is dropped, the
+     * stack acknowledges in order so it comes before those of later commands.
+     */
+    synchronized void onAck(int clientIf, int ack, int status) {
+        if (removeFirstAckedBy(mTimedOutCommands, clientIf, ack) != null) {
+            mLateAcks++;
+            if (DBG) Log.d(TAG, "late acknowledgement, clientIf=" + clientIf + " ack=" + ack);
+            return;
+        }
+        Command command = removeFirstAckedBy(mInFlight, clientIf, ack);
+        if (command == null) {
+            if (DBG) {
+                Log.d(TAG, "unexpected acknowledgement, clientIf=" + clientIf + " ack=" + ack
+                        + " status=" + status);
+            }
+            return;
+        }
+        if (status != 0) {
+            mFailed++;
+            Log.w(TAG, command.name + " failed, status=" + status);
+        }
+        restartTimeout();
+        pump();
+    }
+
+    private synchronized void onTimeout() {
+        Command command = mInFlight.poll();
+        if (command == null) return;
+        mTimedOut++;
+        Log.w(TAG, command.name + " timed out");
+        // Forget commands whose acknowledgement is too late to still come.
+        long now = SystemClock.uptimeMillis();
+        while (!mTimedOutCommands.isEmpty()
+                && now - mTimedOutCommands.peek().timedOutMillis > mTimeoutMillis * 10) {
+            mTimedOutCommands.poll();
+        }
+        command.timedOutMillis = now;
+        mTimedOutCommands.add(command);
+        restartTimeout();
+        pump();
+    }
+
+    private static Command removeFirstAckedBy(ArrayDeque<Command> commands, int clientIf,
+            int ack) {
+        for (Iterator<Command> it = commands.iterator(); it.hasNext();) {
+            Command command = it.next();
+            if (command.isAckedBy(clientIf, ack)) {
+                it.remove();
+                return command;
+            }
+        }
+        return null;
+    }
+
+    synchronized boolean isIdle() {
+        return mQueued.isEmpty() && mInFlight.isEmpty();
+    }
+
+    synchronized int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    synchronized void clear() {
+        mQueued.clear();
+        mInFlight.clear();
+        mTimedOutCommands.clear();
+        mHandler.removeCallbacks(mTimeout);
+    }
+
+    private void pump() {
+        while (!mQueued.isEmpty()) {
+            Command next = mQueued.peek();
+            if (!mInFlight.isEmpty()) {
+                if (next.exclusive || mInFlight.peekLast().exclusive
+                        || mInFlight.size() >= mWindow) {
+                    return;
+                }
+            }
+            mQueued.poll();
+            if (next.issue() && next.needsAck) {
+                mIssued++;
+                mInFlight.add(next);
+                if (mInFlight.size() == 1) restartTimeout();
+            }
+        }
+    }
+
+    private void restartTimeout() {
+        mHandler.removeCallbacks(mTimeout);
+        if (!mInFlight.isEmpty()) mHandler.postDelayed(mTimeout, mTimeoutMillis);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ScanCommandQueue{queued=" + mQueued.size() + ", inFlight=" + mInFlight.size()
+                + ", issued=" + mIssued + ", failed=" + mFailed + ", timedOut=" + mTimedOut
+                + ", lateAcks=" + mLateAcks + "}";
+    }
+}
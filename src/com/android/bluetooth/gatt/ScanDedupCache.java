@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per client cache used to suppress repeated advertisements.
+ *
+ * An advertisement is reported if the device is not in the cache, its payload
+ * changed, its RSSI moved by at least the threshold, or the window elapsed since
+ * the device was last reported. The cache is bounded and evicts the least
+ * recently reported device.
+ *
+ * Instances are confined to the thread delivering scan results.
+ *
+ * @hide
+ */
+/* package */class ScanDedupCache {
+    private static class Sighting {
+        int payloadHash;
+        int rssi;
+        long reportedMillis;
+    }
+
+    private final long mWindowMillis;
+    private final int mRssiThreshold;
+    private final LinkedHashMap<String, Sighting> mSightings;
+    private long mSuppressed;
+
+    ScanDedupCache(long windowMillis, int rssiThreshold, final int maxEntries) {
+        mWindowMillis = windowMillis;
+        mRssiThreshold = rssiThreshold;
+        mSightings = new LinkedHashMap<String, Sighting>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Sighting> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns true if the advertisement should be reported to the client, and
+     * records it as reported if so.
+     */
+    boolean shouldReport(String address, byte[] advData, int rssi, long nowMillis) {
+        int payloadHash = Arrays.hashCode(advData);
+        Sighting sighting = mSightings.get(address);
+        if (sighting != null && sighting.payloadHash == payloadHash
+                && Math.abs(sighting.rssi - rssi) < mRssiThreshold
+                && nowMillis - sighting.reportedMillis < mWindowMillis) {
+            mSuppressed++;
+            return false;
+        }
+        if (sighting == null) {
+            sighting = new Sighting();
+            mSightings.put(address, sighting);
+        }
+        sighting.payloadHash = payloadHash;
+        sighting.rssi = rssi;
+        sighting.reportedMillis = nowMillis;
+        return true;
+    }
+
+    /**
+     * Returns the number of advertisements suppressed so far.
+     */
+    long getSuppressedCount() {
+        return mSuppressed;
+    }
+
+    int size() {
+        return mSightings.size();
+    }
+
+    void clear() {
+        mSightings.clear();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable lookup structure used to find the regular scan clients that may be
+ * interested in an advertisement without walking every registered client.
+ *
+ * Each filter of a client is keyed on its most selective field (device address,
+ * manufacturer id or unmasked service UUID). Clients without filters, server
+ * clients and clients with filters that cannot be keyed end up in the match-all
+ * bucket. The returned candidates still have to be checked against their full
+ * filter list; the index only rules out clients that can never match.
+ *
+ * @hide
+ */
+/* package */class ScanDispatchIndex {
+    static final ScanDispatchIndex EMPTY = new ScanDispatchIndex(
+            Collections.<ScanClient>emptyList());
+
+    private final List<ScanClient> mMatchAll = new ArrayList<ScanClient>();
+    private final Map<String, List<ScanClient>> mByAddress =
+            new HashMap<String, List<ScanClient>>();
+    private final Map<ParcelUuid, List<ScanClient>> mByServiceUuid =
+            new HashMap<ParcelUuid, List<ScanClient>>();
+    private final SparseArray<List<ScanClient>> mByManufacturerId =
+            new SparseArray<List<ScanClient>>();
+    private final List<ScanClient> mClients;
+    private final int mNumClients;
+    private final ScanFilterEngine mFilterEngine;
+
+    ScanDispatchIndex(Collection<ScanClient> clients) {
+        mClients = Collections.unmodifiableList(new ArrayList<ScanClient>(clients));
+        mNumClients = clients.size();
+        mFilterEngine = new ScanFilterEngine(clients);
+        for (ScanClient client : clients) {
+            if (client.isServer || client.filters == null || client.filters.isEmpty()) {
+                mMatchAll.add(client);
+                continue;
+            }
+            for (ScanFilter filter : client.filters) {
+                addFilter(client, filter);
+            }
+        }
+    }
+
+    private void addFilter(ScanClient client, ScanFilter filter) {
+        if (filter == null) {
+            addUnique(mMatchAll, client);
+        } else if (filter.getDeviceAddress() != null) {
+            addUnique(bucket(mByAddress, filter.getDeviceAddress()), client);
+        } else if (filter.getManufacturerId() >= 0) {
+            List<ScanClient> bucket = mByManufacturerId.get(filter.getManufacturerId());
+            if (bucket == null) {
+                bucket = new ArrayList<ScanClient>();
+                mByManufacturerId.put(filter.getManufacturerId(), bucket);
+            }
+            addUnique(bucket, client);
+        } else if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+            addUnique(bucket(mByServiceUuid, filter.getServiceUuid()), client);
+        } else {
+            addUnique(mMatchAll, client);
+        }
+    }
+
+    private static <K> List<ScanClient> bucket(Map<K, List<ScanClient>> map, K key) {
+        List<ScanClient> bucket = map.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<ScanClient>();
+            map.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    private static void addUnique(List<ScanClient> list, ScanClient client) {
+        if (!list.contains(client)) {
+            list.add(client);
+        }
+    }
+
+    /**
+     * Returns true if no client is registered in the index.
+     */
+    boolean isEmpty() {
+        return mNumClients == 0;
+    }
+
+    /**
+     * Returns all indexed clients.
+     */
+    List<ScanClient> getClients() {
+        return mClients;
+    }
+
+    /**
+     * Returns the compiled filters of the indexed clients.
+     */
+    ScanFilterEngine getFilterEngine() {
+        return mFilterEngine;
+    }
+
+    /**
+     * Returns true if candidate lookup depends on the parsed advertisement.
+     */
+    boolean needsScanRecord() {
+        return mByManufacturerId.size() > 0 || !mByServiceUuid.isEmpty();
+    }
+
+    /**
+     * Returns the clients that may match an advertisement from {@code address}
+     * carrying {@code record}. {@code record} may be null if the advertisement
+     * could not be parsed, in which case only address keyed and match-all
+     * clients are returned.
+     */
+    List<ScanClient> getCandidates(String address, ScanRecord record) {
+        List<ScanClient> candidates = new ArrayList<ScanClient>(mMatchAll);
+        List<ScanClient> bucket = mByAddress.get(address);
+        if (bucket != null) {
+            addAllUnique(candidates, bucket);
+        }
+        if (record == null) {
+            return candidates;
+        }
+        if (mByManufacturerId.size() > 0) {
+            SparseArray<byte[]> manufacturerData = record.getManufacturerSpecificData();
+            if (manufacturerData != null) {
+                for (int i = 0; i < manufacturerData.size(); ++i) {
+                    bucket = mByManufacturerId.get(manufacturerData.keyAt(i));
+                    if (bucket != null) {
+                        addAllUnique(candidates, bucket);
+                    }
+                }
+            }
+        }
+        if (!mByServiceUuid.isEmpty()) {
+            List<ParcelUuid> serviceUuids = record.getServiceUuids();
+            if (serviceUuids != null) {
+                for (ParcelUuid uuid : serviceUuids) {
+                    bucket = mByServiceUuid.get(uuid);
+                    if (bucket != null) {
+                        addAllUnique(candidates, bucket);
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static void addAllUnique(List<ScanClient> dest, List<ScanClient> src) {
+        for (ScanClient client : src) {
+            addUnique(dest, client);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ScanDispatchIndex{clients=" + mNumClients + ", matchAll=" + mMatchAll.size()
+                + ", addresses=" + mByAddress.size() + ", manufacturerIds="
+                + mByManufacturerId.size() + ", serviceUuids=" + mByServiceUuid.size()
+                + ", compiledFilters=" + mFilterEngine.size() + "}";
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Host side scan filter matcher used when the controller cannot offload filtering.
+ *
+ * Every distinct {@link ScanFilter} of the registered clients is compiled once into
+ * a {@link CompiledFilter} with its masks pre-applied. Filters with the same content
+ * used by several clients share one compiled filter, and a per-packet memo makes sure each
+ * compiled filter is evaluated at most once per advertisement. Matching semantics
+ * are the same as {@link ScanFilter#matches}.
+ *
+ * @hide
+ */
+/* package */class ScanFilterEngine {
+    private static final byte MEMO_UNKNOWN = 0;
+    private static final byte MEMO_MATCH = 1;
+    private static final byte MEMO_NO_MATCH = 2;
+
+    private final List<CompiledFilter> mFilters = new ArrayList<CompiledFilter>();
+    // Indices into mFilters for each client with filters.
+    private final Map<ScanClient, int[]> mClientFilters = new HashMap<ScanClient, int[]>();
+
+    ScanFilterEngine(Collection<ScanClient> clients) {
+        Map<FilterKey, Integer> filterIds = new HashMap<FilterKey, Integer>();
+        for (ScanClient client : clients) {
+            if (client.filters == null || client.filters.isEmpty()) continue;
+            int[] ids = new int[client.filters.size()];
+            for (int i = 0; i < ids.length; ++i) {
+                ScanFilter filter = client.filters.get(i);
+                FilterKey key = new FilterKey(filter);
+                Integer id = filterIds.get(key);
+                if (id == null) {
+                    id = mFilters.size();
+                    mFilters.add(new CompiledFilter(filter));
+                    filterIds.put(key, id);
+                }
+                ids[i] = id;
+            }
+            mClientFilters.put(client, ids);
+        }
+    }
+
+    /**
+     * Returns the number of distinct compiled filters.
+     */
+    int size() {
+        return mFilters.size();
+    }
+
+    /**
+     * Returns a new memo to be shared by all {@link #matches} calls for one packet.
+     */
+    byte[] newMemo() {
+        return new byte[mFilters.size()];
+    }
+
+    /**
+     * Returns true if {@code result} passes at least one of the client's filters, or
+     * the client has no filters. Returns null if the client is not known to the engine.
+     */
+    Boolean matches(ScanClient client, ScanResult result, byte[] memo) {
+        if (client.filters == null || client.filters.isEmpty()) return true;
+        int[] ids = mClientFilters.get(client);
+        if (ids == null) return null;
+        for (int id : ids) {
+            if (memo[id] == MEMO_UNKNOWN) {
+                memo[id] = mFilters.get(id).matches(result) ? MEMO_MATCH : MEMO_NO_MATCH;
+            }
+            if (memo[id] == MEMO_MATCH) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Map key comparing {@link ScanFilter}s by content. {@link ScanFilter#hashCode} hashes
+     * the data and mask arrays by identity, so equal filters built from different arrays
+     * would not share a compiled filter.
+     */
+    private static final class FilterKey {
+        private final ScanFilter mFilter;
+        private final int mHashCode;
+
+        FilterKey(ScanFilter filter) {
+            mFilter = filter;
+            mHashCode = Objects.hash(filter.getDeviceName(), filter.getDeviceAddress(),
+                    filter.getManufacturerId(), Arrays.hashCode(filter.getManufacturerData()),
+                    Arrays.hashCode(filter.getManufacturerDataMask()),
+                    filter.getServiceDataUuid(), Arrays.hashCode(filter.getServiceData()),
+                    Arrays.hashCode(filter.getServiceDataMask()), filter.getServiceUuid(),
+                    filter.getServiceUuidMask());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof FilterKey)) return false;
+            ScanFilter a = mFilter;
+            ScanFilter b = ((FilterKey) obj).mFilter;
+            return Objects.equals(a.getDeviceName(), b.getDeviceName())
+                    && Objects.equals(a.getDeviceAddress(), b.getDeviceAddress())
+                    && a.getManufacturerId() == b.getManufacturerId()
+                    && Arrays.equals(a.getManufacturerData(), b.getManufacturerData())
+                    && Arrays.equals(a.getManufacturerDataMask(), b.getManufacturerDataMask())
+                    && Objects.equals(a.getServiceDataUuid(), b.getServiceDataUuid())
+                    && Arrays.equals(a.getServiceData(), b.getServiceData())
+                    && Arrays.equals(a.getServiceDataMask(), b.getServiceDataMask())
+                    && Objects.equals(a.getServiceUuid(), b.getServiceUuid())
+                    && Objects.equals(a.getServiceUuidMask(), b.getServiceUuidMask());
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /**
+     * A {@link ScanFilter} flattened into fields that can be checked without
+     * further allocation. Cheap checks are done first.
+     */
+    static class CompiledFilter {
+        private final String mAddress;
+        private final String mName;
+        private final boolean mHasServiceUuid;
+        private final long mUuidMsb;
+        private final long mUuidLsb;
+        private final long mUuidMaskMsb;
+        private final long mUuidMaskLsb;
+        private final ParcelUuid mServiceDataUuid;
+        private final byte[] mServiceData;
+        private final byte[] mServiceDataMask;
+        private final int mManufacturerId;
+        private final byte[] mManufacturerData;
+        private final byte[] mManufacturerDataMask;
+        private final boolean mNeedsRecord;
+
+        CompiledFilter(ScanFilter filter) {
+            mAddress = filter.getDeviceAddress();
+            mName = filter.getDeviceName();
+
+            ParcelUuid serviceUuid = filter.getServiceUuid();
+            mHasServiceUuid = serviceUuid != null;
+            if (mHasServiceUuid) {
+                ParcelUuid mask = filter.getServiceUuidMask();
+                UUID uuidMask = mask == null ? new UUID(-1L, -1L) : mask.getUuid();
+                mUuidMaskMsb = uuidMask.getMostSignificantBits();
+                mUuidMaskLsb = uuidMask.getLeastSignificantBits();
+                mUuidMsb = serviceUuid.getUuid().getMostSignificantBits() & mUuidMaskMsb;
+                mUuidLsb = serviceUuid.getUuid().getLeastSignificantBits() & mUuidMaskLsb;
+            } else {
+                mUuidMsb = mUuidLsb = mUuidMaskMsb = mUuidMaskLsb = 0;
+            }
+
+            mServiceDataUuid = filter.getServiceDataUuid();
+            mServiceDataMask = filter.getServiceDataMask();
+            mServiceData = applyMask(filter.getServiceData(), mServiceDataMask);
+
+            mManufacturerId = filter.getManufacturerId();
+            mManufacturerDataMask = filter.getManufacturerDataMask();
+            mManufacturerData = applyMask(filter.getManufacturerData(), mManufacturerDataMask);
+
+            mNeedsRecord = mName != null || mHasServiceUuid || mServiceDataUuid != null
+                    || mManufacturerId >= 0;
+        }
+
+        boolean matches(ScanResult result) {
+            if (result == null) return false;
+            if (mAddress != null) {
+                BluetoothDevice device = result.getDevice();
+                if (device == null || !mAddress.equals(device.getAddress())) return false;
+            }
+            if (!mNeedsRecord) return true;
+            ScanRecord record = result.getScanRecord();
+            if (record == null) return false;
+
+            if (mManufacturerId >= 0 && !matchesData(mManufacturerData, mManufacturerDataMask,
+                    record.getManufacturerSpecificData(mManufacturerId))) {
+                return false;
+            }
+            if (mHasServiceUuid && !matchesServiceUuids(record.getServiceUuids())) {
+                return false;
+            }
+            if (mServiceDataUuid != null && !matchesData(mServiceData, mServiceDataMask,
+                    record.getServiceData(mServiceDataUuid))) {
+                return false;
+            }
+            if (mName != null && !mName.equals(record.getDeviceName())) {
+                return false;
+            }
+            return true;
+        }
+
+        private boolean matchesServiceUuids(List<ParcelUuid> uuids) {
+            if (uuids == null) return false;
+            for (int i = 0; i < uuids.size(); ++i) {
+                UUID uuid = uuids.get(i).getUuid();
+                if ((uuid.getMostSignificantBits() & mUuidMaskMsb) == mUuidMsb
+                        && (uuid.getLeastSignificantBits() & mUuidMaskLsb) == mUuidLsb) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // maskedData already has the mask applied.
+        private static boolean matchesData(byte[] maskedData, byte[] mask, byte[] parsedData) {
+            if (parsedData == null) return false;
+            if (maskedData == null) return true;
+            if (parsedData.length < maskedData.length) return false;
+            for (int i = 0; i < maskedData.length; ++i) {
+                byte value = mask == null ? parsedData[i] : (byte) (parsedData[i] & mask[i]);
+                if (value != maskedData[i]) return false;
+            }
+            return true;
+        }
+
+        private static byte[] applyMask(byte[] data, byte[] mask) {
+            if (data == null || mask == null) return data;
+            byte[] masked = new byte[data.length];
+            for (int i = 0; i < data.length; ++i) {
+                masked[i] = (byte) (data[i] & mask[i]);
+            }
+            return masked;
+        }
+    }
+}
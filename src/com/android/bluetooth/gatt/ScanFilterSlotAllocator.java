@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Bookkeeping for controller scan filter indices.
+ *
+ * Identical filters of clients that share a delivery mode are programmed into a
+ * single filter index which is reference counted, since results are routed to the
+ * right client by host side matching anyway. Filters that track on found/on lost
+ * state are never shared. The allocator does not talk to the controller; callers
+ * program newly allocated slots and delete released ones.
+ *
+ * Clients whose filters were spilled to host side filtering to make room for other
+ * clients are remembered until they get filter indices again or release them.
+ *
+ * @hide
+ */
+/* package */class ScanFilterSlotAllocator {
+
+    /**
+     * Identity of a filter as programmed into the controller.
+     */
+    static class Key {
+        final Set<ScanFilterQueue.Entry> entries;
+        final int featureSelection;
+        final int deliveryMode;
+        final boolean shareable;
+
+        Key(Set<ScanFilterQueue.Entry> entries, int featureSelection, int deliveryMode,
+                boolean shareable) {
+            this.entries = entries;
+            this.featureSelection = featureSelection;
+            this.deliveryMode = deliveryMode;
+            this.shareable = shareable;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return shareable && other.shareable && featureSelection == other.featureSelection
+                    && deliveryMode == other.deliveryMode && entries.equals(other.entries);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(entries, featureSelection, deliveryMode);
+        }
+    }
+
+    /**
+     * A controller filter index and the clients using it.
+     */
+    static class Slot {
+        final int index;
+        final Key key;
+        final Set<Integer> clients = new HashSet<Integer>();
+
+        Slot(int index, Key key) {
+            this.index = index;
+            this.key = key;
+        }
+    }
+
+    // Filter indices that are available to user.
+    private final Deque<Integer> mFreeIndices = new ArrayDeque<Integer>();
+    private final Map<Key, Slot> mSharedSlots = new HashMap<Key, Slot>();
+    // Slots used by each client.
+    private final Map<Integer, List<Slot>> mClientSlots = new HashMap<Integer, List<Slot>>();
+    private final Set<Integer> mSpilledClients = new HashSet<Integer>();
+    private boolean mInitialized;
+
+    void init(int firstIndex, int maxFilters) {
+        for (int i = firstIndex; i < maxFilters; ++i) {
+            mFreeIndices.add(i);
+        }
+        mInitialized = true;
+    }
+
+    boolean isInitialized() {
+        return mInitialized;
+    }
+
+    int getFreeCount() {
+        return mFreeIndices.size();
+    }
+
+    int getUsedCount() {
+        Set<Slot> used = new HashSet<Slot>();
+        for (List<Slot> slots : mClientSlots.values()) {
+            used.addAll(slots);
+        }
+        return used.size();
+    }
+
+    /**
+     * Returns the clients currently holding at least one filter index.
+     */
+    Set<Integer> getClients() {
+        return Collections.unmodifiableSet(mClientSlots.keySet());
+    }
+
+    /**
+     * Returns the clients whose filters are currently spilled to the host.
+     */
+    Set<Integer> getSpilledClients() {
+        return Collections.unmodifiableSet(mSpilledClients);
+    }
+
+    boolean isSpilled(int clientIf) {
+        return mSpilledClients.contains(clientIf);
+    }
+
+    /**
+     * Returns the number of new filter indices needed to add {@code keys}.
+     */
+    int getSlotsNeeded(List<Key> keys) {
+        Set<Key> needed = new HashSet<Key>();
+        int unshared = 0;
+        for (Key key : keys) {
+            if (!key.shareable) {
+                unshared++;
+            } else if (!mSharedSlots.containsKey(key)) {
+                needed.add(key);
+            }
+        }
+        return unshared + needed.size();
+    }
+
+    boolean canAllocate(List<Key> keys) {
+        return getSlotsNeeded(keys) <= mFreeIndices.size();
+    }
+
+    /**
+     * Returns the number of indices that would be freed if {@code clientIf} released
+     * its filters.
+     */
+    int getExclusiveSlotCount(int clientIf) {
+        List<Slot> slots = mClientSlots.get(clientIf);
+        if (slots == null) return 0;
+        int count = 0;
+        for (Slot slot : slots) {
+            if (slot.clients.size() == 1) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Assigns filter indices for {@code keys} to {@code clientIf}.
+     *
+     * @return the slots which are new and have to be programmed into the controller,
+     *         or null if there are not enough free indices.
+     */
+    List<Slot> allocate(int clientIf, List<Key> keys) {
+        if (!canAllocate(keys)) return null;
+        List<Slot> clientSlots = mClientSlots.get(clientIf);
+        if (clientSlots == null) {
+            clientSlots = new ArrayList<Slot>();
+            mClientSlots.put(clientIf, clientSlots);
+        }
+        mSpilledClients.remove(clientIf);
+        List<Slot> newSlots = new ArrayList<Slot>();
+        for (Key key : keys) {
+            Slot slot = key.shareable ? mSharedSlots.get(key) : null;
+            if (slot == null) {
+                slot = new Slot(mFreeIndices.pop(), key);
+                if (key.shareable) mSharedSlots.put(key, slot);
+                newSlots.add(slot);
+            }
+            if (slot.clients.add(clientIf)) {
+                clientSlots.add(slot);
+            }
+        }
+        return newSlots;
+    }
+
+    /**
+     * Releases the filter indices of {@code clientIf}.
+     *
+     * @return the indices no longer used by any client, which have to be deleted from
+     *         the controller.
+     */
+    List<Integer> release(int clientIf) {
+        mSpilledClients.remove(clientIf);
+        List<Slot> slots = mClientSlots.remove(clientIf);
+        if (slots == null) return Collections.emptyList();
+        List<Integer> freed = new ArrayList<Integer>();
+        for (Slot slot : slots) {
+            slot.clients.remove(clientIf);
+            if (slot.clients.isEmpty()) {
+                if (slot.key.shareable) mSharedSlots.remove(slot.key);
+                mFreeIndices.add(slot.index);
+                freed.add(slot.index);
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Releases the filter indices of {@code clientIf} and remembers it as spilled
+     * until it allocates or releases filters again.
+     *
+     * @return the indices no longer used by any client.
+     */
+    List<Integer> spill(int clientIf) {
+        List<Integer> freed = release(clientIf);
+        mSpilledClients.add(clientIf);
+        return freed;
+    }
+
+    @Override
+    public String toString() {
+        return "ScanFilterSlotAllocator{free=" + mFreeIndices.size() + ", used="
+                + getUsedCount() + ", shared=" + mSharedSlots.size() + ", clients="
+                + mClientSlots.size() + ", spilled=" + mSpilledClients.size() + "}";
+    }
+}
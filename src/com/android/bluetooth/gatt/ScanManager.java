@@ -21,6 +21,7 @@ import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -34,17 +35,16 @@ import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Class that handles Bluetooth LE scan related operations.
@@ -64,6 +64,8 @@ public class ScanManager {
     private static final int MSG_START_BLE_SCAN = 0;
     private static final int MSG_STOP_BLE_SCAN = 1;
     private static final int MSG_FLUSH_BATCH_RESULTS = 2;
+    private static final int MSG_FLUSH_HOST_BATCH = 3;
+    private static final int MSG_COMMAND_ACK = 4;
 
     private static final String ACTION_REFRESH_BATCHED_SCAN =
             "com.android.bluetooth.gatt.REFRESH_BATCHED_SCAN";
@@ -84,8 +86,16 @@ public class ScanManager {
 
     private Set<ScanClient> mRegularScanClients;
     private Set<ScanClient> mBatchClients;
+    // Snapshot of mRegularScanClients used to dispatch scan results, rebuilt on start/stop.
+    private volatile ScanDispatchIndex mDispatchIndex = ScanDispatchIndex.EMPTY;
 
-    private CountDownLatch mLatch;
+    // Controller commands, created on start(). Only used on the handler thread.
+    private ScanCommandQueue mCommandQueue;
+
+    // Host side batching configuration, see gatt_scan_host_batching_enabled.
+    private boolean mHostBatchingEnabled;
+    private int mHostBatchMinWindowMillis;
+    private int mHostBatchMaxResults;
 
     ScanManager(GattService service) {
         mRegularScanClients = new HashSet<ScanClient>();
@@ -99,14 +109,31 @@ public class ScanManager {
         HandlerThread thread = new HandlerThread("BluetoothScanManager");
         thread.start();
         mHandler = new ClientHandler(thread.getLooper());
+        mCommandQueue = new ScanCommandQueue(mHandler, mService.getResources().getInteger(
+                R.integer.gatt_scan_command_window), OPERATION_TIME_OUT_MILLIS);
+        mHostBatchingEnabled = mService.getResources().getBoolean(
+                R.bool.gatt_scan_host_batching_enabled);
+        mHostBatchMinWindowMillis = mService.getResources().getInteger(
+                R.integer.gatt_scan_host_batch_min_window_ms);
+        mHostBatchMaxResults = mService.getResources().getInteger(
+                R.integer.gatt_scan_host_batch_max_results);
     }
 
     void cleanup() {
         mRegularScanClients.clear();
         mBatchClients.clear();
+        mDispatchIndex = ScanDispatchIndex.EMPTY;
+        if (mCommandQueue != null) mCommandQueue.clear();
         mScanNative.cleanup();
     }
 
+    /**
+     * Returns the state of the controller command queue, for the dump.
+     */
+    String getCommandQueueState() {
+        return String.valueOf(mCommandQueue);
+    }
+
     /**
      * Returns the regular scan queue.
      */
@@ -114,6 +141,13 @@ public class ScanManager {
         return mRegularScanClients;
     }
 
+    /**
+     * Returns the dispatch index built from the regular scan queue.
+     */
+    ScanDispatchIndex getDispatchIndex() {
+        return mDispatchIndex;
+    }
+
     /**
      * Returns batch scan queue.
      */
@@ -148,12 +182,31 @@ public class ScanManager {
         sendMessage(MSG_FLUSH_BATCH_RESULTS, client);
     }
 
-    void callbackDone(int clientIf, int status) {
-        logd("callback done for clientIf - " + clientIf + " status - " + status);
-        if (status == 0) {
-            mLatch.countDown();
+    /**
+     * Buffers a result for a host batched client, delivering the batch early if it
+     * is full. Results arriving before a full batch is delivered are dropped and counted.
+     */
+    void addHostBatchResult(ScanClient client, ScanResult result) {
+        ScanResultBatcher batcher = client.hostBatcher;
+        if (batcher == null) return;
+        switch (batcher.add(result)) {
+            case ScanResultBatcher.ADDED_FULL:
+                sendMessage(MSG_FLUSH_HOST_BATCH, client);
+                break;
+            case ScanResultBatcher.DROPPED:
+                mService.getScanStats().onBatchResultsDropped(1);
+                break;
         }
+    }
+
+    /**
+     * Acknowledges the controller command of {@code clientIf} that {@code ack}, one of
+     * the ScanCommandQueue.ACK_* callbacks, answers.
+     */
+    void callbackDone(int clientIf, int ack, int status) {
+        logd("callback done for clientIf - " + clientIf + " status - " + status);
         // TODO: add a callback for scan failure.
+        mHandler.obtainMessage(MSG_COMMAND_ACK, clientIf, status, ack).sendToTarget();
     }
 
     private void sendMessage(int what, ScanClient client) {
@@ -168,6 +221,11 @@ public class ScanManager {
         return adapter.isOffloadedFilteringSupported();
     }
 
+    private boolean isBatchingSupported() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        return adapter.isOffloadedScanBatchingSupported();
+    }
+
     // Handler class that handles BLE scan operations.
     private class ClientHandler extends Handler {
 
@@ -177,7 +235,7 @@ public class ScanManager {
 
         @Override
         public void handleMessage(Message msg) {
-            ScanClient client = (ScanClient) msg.obj;
+            ScanClient client = msg.obj instanceof ScanClient ? (ScanClient) msg.obj : null;
             switch (msg.what) {
                 case MSG_START_BLE_SCAN:
                     handleStartScan(client);
@@ -188,6 +246,12 @@ public class ScanManager {
                 case MSG_FLUSH_BATCH_RESULTS:
                     handleFlushBatchResults(client);
                     break;
+                case MSG_FLUSH_HOST_BATCH:
+                    handleFlushHostBatch(client);
+                    break;
+                case MSG_COMMAND_ACK:
+                    mCommandQueue.onAck(msg.arg1, (Integer) msg.obj, msg.arg2);
+                    break;
                 default:
                     // Shouldn't happen.
                     Log.e(TAG, "received an unkown message : " + msg.what);
@@ -208,29 +272,58 @@ public class ScanManager {
                 return;
             }
             // Begin scan operations.
-            if (isBatchClient(client)) {
+            final long startMillis = SystemClock.elapsedRealtime();
+            client.lastMatchTimeMillis = startMillis;
+            if (isBatchClient(client) && !useHostBatching()) {
                 mBatchClients.add(client);
                 mScanNative.startBatchScan(client);
             } else {
+                if (isBatchClient(client)) {
+                    // Served by a regular scan, results are batched on the host.
+                    client.hostBatcher = new ScanResultBatcher(Math.max(mHostBatchMinWindowMillis,
+                            client.settings.getReportDelayMillis()), mHostBatchMaxResults);
+                    scheduleHostBatchFlush(client);
+                }
                 mRegularScanClients.add(client);
+                rebuildDispatchIndex();
                 mScanNative.startRegularScan(client);
                 if (!mScanNative.isOpportunisticScanClient(client)) {
                     mScanNative.configureRegularScanParams();
                 }
             }
+            mScanNative.updateFilterSlotStats();
+            final int clientIf = client.clientIf;
+            mCommandQueue.add(new ScanCommandQueue.Command("scan started", clientIf,
+                    ScanCommandQueue.ACK_NONE) {
+                @Override
+                boolean issue() {
+                    logd("scan of clientIf " + clientIf + " configured in "
+                            + (SystemClock.elapsedRealtime() - startMillis) + "ms");
+                    return false;
+                }
+            });
         }
 
         void handleStopScan(ScanClient client) {
             Utils.enforceAdminPermission(mService);
             if (client == null) return;
             if (mRegularScanClients.contains(client)) {
+                ScanClient hostBatchClient = getHostBatchClient(client);
                 mScanNative.stopRegularScan(client);
+                rebuildDispatchIndex();
+                if (hostBatchClient != null) {
+                    // Hand over what was collected so far, like a flush before stopping.
+                    removeMessages(MSG_FLUSH_HOST_BATCH, hostBatchClient);
+                    if (!client.appDied) deliverHostBatch(hostBatchClient);
+                }
                 if (!mScanNative.isOpportunisticScanClient(client)) {
                     mScanNative.configureRegularScanParams();
                 }
             } else {
                 mScanNative.stopBatchScan(client);
             }
+            mService.getScanStats().removeClient(client.clientIf);
+            mScanNative.updateFilterSlotStats();
             if (client.appDied) {
                 logd("app died, unregister client - " + client.clientIf);
                 mService.unregisterClient(client.clientIf);
@@ -239,12 +332,54 @@ public class ScanManager {
 
         void handleFlushBatchResults(ScanClient client) {
             Utils.enforceAdminPermission(mService);
+            ScanClient hostBatchClient = getHostBatchClient(client);
+            if (hostBatchClient != null) {
+                handleFlushHostBatch(hostBatchClient);
+                return;
+            }
             if (!mBatchClients.contains(client)) {
                 return;
             }
             mScanNative.flushBatchResults(client.clientIf);
         }
 
+        void handleFlushHostBatch(ScanClient client) {
+            // Drop stale flushes of a client that was stopped or restarted meanwhile.
+            if (mScanNative.getClient(client.clientIf) != client || client.hostBatcher == null) {
+                return;
+            }
+            removeMessages(MSG_FLUSH_HOST_BATCH, client);
+            deliverHostBatch(client);
+            scheduleHostBatchFlush(client);
+        }
+
+        // Callers may pass a new ScanClient with the same clientIf, find the started one.
+        private ScanClient getHostBatchClient(ScanClient client) {
+            ScanClient started = mScanNative.getClient(client.clientIf);
+            return started != null && started.hostBatcher != null ? started : null;
+        }
+
+        private void deliverHostBatch(ScanClient client) {
+            List<ScanResult> results = client.hostBatcher.drain();
+            if (results.isEmpty()) return;
+            mService.onHostBatchScanResults(client, results);
+        }
+
+        private void scheduleHostBatchFlush(ScanClient client) {
+            sendMessageDelayed(obtainMessage(MSG_FLUSH_HOST_BATCH, client),
+                    client.hostBatcher.getWindowMillis());
+        }
+
+        // Whether batch clients are served by a regular scan with host side batching.
+        private boolean useHostBatching() {
+            return mHostBatchingEnabled || !isBatchingSupported();
+        }
+
+        private void rebuildDispatchIndex() {
+            mDispatchIndex = new ScanDispatchIndex(mRegularScanClients);
+            logd("rebuilt " + mDispatchIndex);
+        }
+
         private boolean isBatchClient(ScanClient client) {
             if (client == null || client.settings == null) {
                 return false;
@@ -263,7 +398,7 @@ public class ScanManager {
                 return true;
             }
             return settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES &&
-                    settings.getReportDelayMillis() == 0;
+                    (settings.getReportDelayMillis() == 0 || useHostBatching());
         }
     }
 
@@ -348,10 +483,9 @@ public class ScanManager {
         private static final int LIST_LOGIC_TYPE = 0x1111111;
         private static final int FILTER_LOGIC_TYPE = 1;
         // Filter indices that are available to user. It's sad we need to maintain filter index.
-        private final Deque<Integer> mFilterIndexStack;
-        // Map of clientIf and Filter indices used by client.
-        private final Map<Integer, Deque<Integer>> mClientFilterIndexMap;
-        // Keep track of the clients that uses ALL_PASS filters.
+        private final ScanFilterSlotAllocator mSlotAllocator = new ScanFilterSlotAllocator();
+        // Keep track of the clients that uses ALL_PASS filters. Spilled clients use the
+        // regular ALL_PASS filter as well.
         private final Set<Integer> mAllPassRegularClients = new HashSet<>();
         private final Set<Integer> mAllPassBatchClients = new HashSet<>();
 
@@ -359,9 +493,6 @@ public class ScanManager {
         private PendingIntent mBatchScanIntervalIntent;
 
         ScanNative() {
-            mFilterIndexStack = new ArrayDeque<Integer>();
-            mClientFilterIndexMap = new HashMap<Integer, Deque<Integer>>();
-
             mAlarmManager = (AlarmManager) mService.getSystemService(Context.ALARM_SERVICE);
             Intent batchIntent = new Intent(ACTION_REFRESH_BATCHED_SCAN, null);
             batchIntent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
@@ -387,17 +518,54 @@ public class ScanManager {
             mBatchAlarmReceiverRegistered = true;
         }
 
-        private void resetCountDownLatch() {
-            mLatch = new CountDownLatch(1);
+        // Queues a controller command. Filter commands are pipelined, batch scan commands
+        // are sent one at a time as the stack reads batch reports in several steps.
+        private void queueCommand(ScanCommandQueue.Command command) {
+            mCommandQueue.add(command);
         }
 
-        // Returns true if mLatch reaches 0, false if timeout or interrupted.
-        private boolean waitForCallback() {
-            try {
-                return mLatch.await(OPERATION_TIME_OUT_MILLIS, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                return false;
-            }
+        private void queueScanEnable(final boolean start) {
+            queueCommand(new ScanCommandQueue.Command("scan enable " + start, 0,
+                    ScanCommandQueue.ACK_NONE) {
+                @Override
+                boolean issue() {
+                    gattClientScanNative(start);
+                    return false;
+                }
+            });
+        }
+
+        private void queueFilterEnable(final int clientIf) {
+            queueCommand(new ScanCommandQueue.Command("filter enable", clientIf,
+                    ScanCommandQueue.ACK_FILTER_ENABLE) {
+                @Override
+                boolean issue() {
+                    gattClientScanFilterEnableNative(clientIf, true);
+                    return true;
+                }
+            });
+        }
+
+        private void queueFilterParamDelete(final int clientIf, final int filterIndex) {
+            queueCommand(new ScanCommandQueue.Command("filter param delete " + filterIndex,
+                    clientIf, ScanCommandQueue.ACK_FILTER_PARAMS) {
+                @Override
+                boolean issue() {
+                    gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
+                    return true;
+                }
+            });
+        }
+
+        private void queueReadScanReports(final int clientIf, final int scanType) {
+            queueCommand(new ScanCommandQueue.Command("read scan reports " + scanType, clientIf,
+                    ScanCommandQueue.ACK_BATCH_REPORTS, true) {
+                @Override
+                boolean issue() {
+                    gattClientReadScanReportsNative(clientIf, scanType);
+                    return true;
+                }
+            });
         }
 
         void configureRegularScanParams() {
@@ -417,13 +585,21 @@ public class ScanManager {
                     int scanWindow = getScanWindowMillis(client.settings);
                     int scanInterval = getScanIntervalMillis(client.settings);
                     // convert scanWindow and scanInterval from ms to LE scan units(0.625ms)
-                    scanWindow = Utils.millsToUnit(scanWindow);
-                    scanInterval = Utils.millsToUnit(scanInterval);
-                    gattClientScanNative(false);
-                    logd("configureRegularScanParams - scanInterval = " + scanInterval +
-                        "configureRegularScanParams - scanWindow = " + scanWindow);
-                    gattSetScanParametersNative(client.clientIf, scanInterval, scanWindow);
-                    gattClientScanNative(true);
+                    final int window = Utils.millsToUnit(scanWindow);
+                    final int interval = Utils.millsToUnit(scanInterval);
+                    final int clientIf = client.clientIf;
+                    queueScanEnable(false);
+                    logd("configureRegularScanParams - scanInterval = " + interval +
+                        "configureRegularScanParams - scanWindow = " + window);
+                    queueCommand(new ScanCommandQueue.Command("scan params", clientIf,
+                            ScanCommandQueue.ACK_NONE) {
+                        @Override
+                        boolean issue() {
+                            gattSetScanParametersNative(clientIf, interval, window);
+                            return false;
+                        }
+                    });
+                    queueScanEnable(true);
                     mLastConfiguredScanSetting = curScanSetting;
                 }
             } else {
@@ -447,8 +623,7 @@ public class ScanManager {
         }
 
         void startRegularScan(ScanClient client) {
-            if (isFilteringSupported() && mFilterIndexStack.isEmpty()
-                    && mClientFilterIndexMap.isEmpty()) {
+            if (isFilteringSupported() && !mSlotAllocator.isInitialized()) {
                 initFilterIndexStack();
             }
             if (isFilteringSupported()) {
@@ -456,7 +631,7 @@ public class ScanManager {
             }
             // Start scan native only for the first client.
             if (numRegularScanClients() == 1) {
-                gattClientScanNative(true);
+                queueScanEnable(true);
             }
         }
 
@@ -471,7 +646,7 @@ public class ScanManager {
         }
 
         void startBatchScan(ScanClient client) {
-            if (mFilterIndexStack.isEmpty() && isFilteringSupported()) {
+            if (!mSlotAllocator.isInitialized() && isFilteringSupported()) {
                 initFilterIndexStack();
             }
             configureScanFilters(client);
@@ -486,37 +661,52 @@ public class ScanManager {
         }
 
         private void resetBatchScan(ScanClient client) {
-            int clientIf = client.clientIf;
+            final int clientIf = client.clientIf;
             BatchScanParams batchScanParams = getBatchScanParams();
             // Stop batch if batch scan params changed and previous params is not null.
             if (mBatchScanParms != null && (!mBatchScanParms.equals(batchScanParams))) {
                 logd("stopping BLe Batch");
-                resetCountDownLatch();
-                gattClientStopBatchScanNative(clientIf);
-                waitForCallback();
+                queueCommand(new ScanCommandQueue.Command("stop batch scan", clientIf,
+                        ScanCommandQueue.ACK_BATCH_START_STOP, true) {
+                    @Override
+                    boolean issue() {
+                        gattClientStopBatchScanNative(clientIf);
+                        return true;
+                    }
+                });
                 // Clear pending results as it's illegal to config storage if there are still
                 // pending results.
                 flushBatchResults(clientIf);
             }
             // Start batch if batchScanParams changed and current params is not null.
             if (batchScanParams != null && (!batchScanParams.equals(mBatchScanParms))) {
-                int notifyThreshold = 95;
+                final int notifyThreshold = 95;
                 logd("Starting BLE batch scan");
-                int resultType = getResultType(batchScanParams);
-                int fullScanPercent = getFullScanStoragePercent(resultType);
-                resetCountDownLatch();
+                final int resultType = getResultType(batchScanParams);
+                final int fullScanPercent = getFullScanStoragePercent(resultType);
                 logd("configuring batch scan storage, appIf " + client.clientIf);
-                gattClientConfigBatchScanStorageNative(client.clientIf, fullScanPercent,
-                        100 - fullScanPercent, notifyThreshold);
-                waitForCallback();
-                resetCountDownLatch();
-                int scanInterval =
+                queueCommand(new ScanCommandQueue.Command("batch scan storage", clientIf,
+                        ScanCommandQueue.ACK_BATCH_STORAGE, true) {
+                    @Override
+                    boolean issue() {
+                        gattClientConfigBatchScanStorageNative(clientIf, fullScanPercent,
+                                100 - fullScanPercent, notifyThreshold);
+                        return true;
+                    }
+                });
+                final int scanInterval =
                         Utils.millsToUnit(getBatchScanIntervalMillis(batchScanParams.scanMode));
-                int scanWindow =
+                final int scanWindow =
                         Utils.millsToUnit(getBatchScanWindowMillis(batchScanParams.scanMode));
-                gattClientStartBatchScanNative(clientIf, resultType, scanInterval,
-                        scanWindow, 0, DISCARD_OLDEST_WHEN_BUFFER_FULL);
-                waitForCallback();
+                queueCommand(new ScanCommandQueue.Command("start batch scan", clientIf,
+                        ScanCommandQueue.ACK_BATCH_START_STOP, true) {
+                    @Override
+                    boolean issue() {
+                        gattClientStartBatchScanNative(clientIf, resultType, scanInterval,
+                                scanWindow, 0, DISCARD_OLDEST_WHEN_BUFFER_FULL);
+                        return true;
+                    }
+                });
             }
             mBatchScanParms = batchScanParams;
             setBatchAlarm();
@@ -620,7 +810,7 @@ public class ScanManager {
             mRegularScanClients.remove(client);
             if (numRegularScanClients() == 0) {
                 logd("stop scan");
-                gattClientScanNative(false);
+                queueScanEnable(false);
             }
             removeScanFilters(client.clientIf);
         }
@@ -633,6 +823,11 @@ public class ScanManager {
             return null;
         }
 
+        void updateFilterSlotStats() {
+            mService.getScanStats().setFilterSlots(mSlotAllocator.getUsedCount(),
+                    mSlotAllocator.getFreeCount());
+        }
+
         void stopBatchScan(ScanClient client) {
             mBatchClients.remove(client);
             removeScanFilters(client.clientIf);
@@ -644,16 +839,11 @@ public class ScanManager {
         void flushBatchResults(int clientIf) {
             logd("flushPendingBatchResults - clientIf = " + clientIf);
             if (mBatchScanParms.fullScanClientIf != -1) {
-                resetCountDownLatch();
-                gattClientReadScanReportsNative(mBatchScanParms.fullScanClientIf,
-                        SCAN_RESULT_TYPE_FULL);
-                waitForCallback();
+                queueReadScanReports(mBatchScanParms.fullScanClientIf, SCAN_RESULT_TYPE_FULL);
             }
             if (mBatchScanParms.truncatedScanClientIf != -1) {
-                resetCountDownLatch();
-                gattClientReadScanReportsNative(mBatchScanParms.truncatedScanClientIf,
+                queueReadScanReports(mBatchScanParms.truncatedScanClientIf,
                         SCAN_RESULT_TYPE_TRUNCATED);
-                waitForCallback();
             }
             setBatchAlarm();
         }
@@ -680,67 +870,159 @@ public class ScanManager {
 
         // Add scan filters. The logic is:
         // If no offload filter can/needs to be set, set ALL_PASS filter.
-        // Otherwise offload all filters to hardware and enable all filters.
+        // Otherwise offload all filters to hardware and enable all filters. Identical filters
+        // are shared between clients, and if the controller runs out of filter indices the
+        // regular scan clients that matched least recently are spilled to host side filtering.
         private void configureScanFilters(ScanClient client) {
             int clientIf = client.clientIf;
             int deliveryMode = getDeliveryMode(client);
-            int trackEntries = 0;
-            if (!shouldAddAllPassFilterToController(client, deliveryMode)) {
+            List<ScanFilterSlotAllocator.Key> keys = getFilterKeys(client, deliveryMode);
+            boolean useAllPass = keys == null
+                    || (!mSlotAllocator.canAllocate(keys) && !spillFilters(client, keys));
+            if (!shouldAddAllPassFilterToController(client, deliveryMode, useAllPass)) {
                 return;
             }
 
-            resetCountDownLatch();
-            gattClientScanFilterEnableNative(clientIf, true);
-            waitForCallback();
+            queueFilterEnable(clientIf);
 
-            if (shouldUseAllPassFilter(client)) {
+            if (useAllPass) {
                 int filterIndex = (deliveryMode == DELIVERY_MODE_BATCH) ?
                         ALL_PASS_FILTER_INDEX_BATCH_SCAN : ALL_PASS_FILTER_INDEX_REGULAR_SCAN;
-                resetCountDownLatch();
                 // Don't allow Onfound/onlost with all pass
                 configureFilterParamter(clientIf, client, ALL_PASS_FILTER_SELECTION,
                                 filterIndex, 0);
-                waitForCallback();
             } else {
-                Deque<Integer> clientFilterIndices = new ArrayDeque<Integer>();
-                for (ScanFilter filter : client.filters) {
-                    ScanFilterQueue queue = new ScanFilterQueue();
-                    queue.addScanFilter(filter);
-                    int featureSelection = queue.getFeatureSelection();
-                    int filterIndex = mFilterIndexStack.pop();
-                    while (!queue.isEmpty()) {
-                        resetCountDownLatch();
-                        addFilterToController(clientIf, queue.pop(), filterIndex);
-                        waitForCallback();
-                    }
-                    resetCountDownLatch();
-                    if (deliveryMode == DELIVERY_MODE_ON_FOUND_LOST) {
-                        trackEntries = getNumOfTrackingAdvertisements(client.settings);
-                        if (!manageAllocationOfTrackingAdvertisement(trackEntries, true)) {
-                            Log.e(TAG, "No hardware resources for onfound/onlost filter " +
-                                    trackEntries);
-                            try {
-                                mService.onScanManagerErrorCallback(clientIf,
-                                            ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
-                            } catch (RemoteException e) {
-                                Log.e(TAG, "failed on onScanManagerCallback", e);
-                            }
+                programFilters(client, mSlotAllocator.allocate(clientIf, keys));
+            }
+            logd("configureScanFilters() - " + mSlotAllocator);
+        }
+
+        // Returns the controller filters needed by the client, or null if it has none.
+        private List<ScanFilterSlotAllocator.Key> getFilterKeys(ScanClient client,
+                int deliveryMode) {
+            if (client == null || client.filters == null || client.filters.isEmpty()) {
+                return null;
+            }
+            // On found/on lost filters carry per client tracking state.
+            boolean shareable = deliveryMode != DELIVERY_MODE_ON_FOUND_LOST;
+            List<ScanFilterSlotAllocator.Key> keys = new ArrayList<ScanFilterSlotAllocator.Key>();
+            for (ScanFilter filter : client.filters) {
+                ScanFilterQueue queue = new ScanFilterQueue();
+                queue.addScanFilter(filter);
+                keys.add(new ScanFilterSlotAllocator.Key(queue.getEntries(),
+                        queue.getFeatureSelection(), deliveryMode, shareable));
+            }
+            return keys;
+        }
+
+        // Program newly allocated filter indices into the controller.
+        private void programFilters(ScanClient client, List<ScanFilterSlotAllocator.Slot> slots) {
+            int clientIf = client.clientIf;
+            int deliveryMode = getDeliveryMode(client);
+            for (ScanFilterSlotAllocator.Slot slot : slots) {
+                int trackEntries = 0;
+                for (ScanFilterQueue.Entry entry : slot.key.entries) {
+                    addFilterToController(clientIf, entry, slot.index);
+                }
+                if (deliveryMode == DELIVERY_MODE_ON_FOUND_LOST) {
+                    trackEntries = getNumOfTrackingAdvertisements(client.settings);
+                    if (!manageAllocationOfTrackingAdvertisement(trackEntries, true)) {
+                        Log.e(TAG, "No hardware resources for onfound/onlost filter " +
+                                trackEntries);
+                        try {
+                            mService.onScanManagerErrorCallback(clientIf,
+                                        ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+                        } catch (RemoteException e) {
+                            Log.e(TAG, "failed on onScanManagerCallback", e);
                         }
                     }
-                    configureFilterParamter(clientIf, client, featureSelection, filterIndex,
-                                            trackEntries);
-                    waitForCallback();
-                    clientFilterIndices.add(filterIndex);
                 }
-                mClientFilterIndexMap.put(clientIf, clientFilterIndices);
+                configureFilterParamter(clientIf, client, slot.key.featureSelection,
+                        slot.index, trackEntries);
+            }
+        }
+
+        // Free enough filter indices for the client by spilling the regular scan clients that
+        // matched least recently to host side filtering. Returns false if that is not possible.
+        private boolean spillFilters(ScanClient client, List<ScanFilterSlotAllocator.Key> keys) {
+            int needed = mSlotAllocator.getSlotsNeeded(keys) - mSlotAllocator.getFreeCount();
+            List<ScanClient> victims = new ArrayList<ScanClient>();
+            for (ScanClient other : mRegularScanClients) {
+                if (other.clientIf == client.clientIf
+                        || getDeliveryMode(other) != DELIVERY_MODE_IMMEDIATE
+                        || mSlotAllocator.getExclusiveSlotCount(other.clientIf) == 0) {
+                    continue;
+                }
+                victims.add(other);
+            }
+            Collections.sort(victims, new Comparator<ScanClient>() {
+                @Override
+                public int compare(ScanClient lhs, ScanClient rhs) {
+                    return Long.compare(lhs.lastMatchTimeMillis, rhs.lastMatchTimeMillis);
+                }
+            });
+
+            int freeable = 0;
+            int numVictims = 0;
+            while (freeable < needed && numVictims < victims.size()) {
+                freeable += mSlotAllocator.getExclusiveSlotCount(
+                        victims.get(numVictims++).clientIf);
+            }
+            if (freeable < needed) {
+                return false;
+            }
+            for (int i = 0; i < numVictims; ++i) {
+                ScanClient victim = victims.get(i);
+                logd("spilling filters of clientIf " + victim.clientIf + " to host");
+                // Host side filtering only sees what the controller forwards, so the ALL_PASS
+                // filter goes in before the victim's own filters are deleted.
+                if (shouldAddAllPassFilterToController(victim, DELIVERY_MODE_IMMEDIATE, true)) {
+                    configureFilterParamter(victim.clientIf, victim, ALL_PASS_FILTER_SELECTION,
+                            ALL_PASS_FILTER_INDEX_REGULAR_SCAN, 0);
+                }
+                for (Integer filterIndex : mSlotAllocator.spill(victim.clientIf)) {
+                    queueFilterParamDelete(victim.clientIf, filterIndex);
+                }
+            }
+            return mSlotAllocator.canAllocate(keys);
+        }
+
+        // Move spilled clients back to the controller, most recently matched first.
+        private void restoreSpilledClients() {
+            if (mSlotAllocator.getSpilledClients().isEmpty()) {
+                return;
+            }
+            List<ScanClient> spilled = new ArrayList<ScanClient>();
+            for (ScanClient client : mRegularScanClients) {
+                if (mSlotAllocator.isSpilled(client.clientIf)) {
+                    spilled.add(client);
+                }
+            }
+            Collections.sort(spilled, new Comparator<ScanClient>() {
+                @Override
+                public int compare(ScanClient lhs, ScanClient rhs) {
+                    return Long.compare(rhs.lastMatchTimeMillis, lhs.lastMatchTimeMillis);
+                }
+            });
+            for (ScanClient client : spilled) {
+                List<ScanFilterSlotAllocator.Key> keys =
+                        getFilterKeys(client, DELIVERY_MODE_IMMEDIATE);
+                if (keys == null || !mSlotAllocator.canAllocate(keys)) {
+                    continue;
+                }
+                logd("restoring filters of clientIf " + client.clientIf);
+                programFilters(client, mSlotAllocator.allocate(client.clientIf, keys));
+                removeFilterIfExisits(mAllPassRegularClients, client.clientIf,
+                        ALL_PASS_FILTER_INDEX_REGULAR_SCAN);
             }
         }
 
         // Check whether the filter should be added to controller.
         // Note only on ALL_PASS filter should be added.
-        private boolean shouldAddAllPassFilterToController(ScanClient client, int deliveryMode) {
+        private boolean shouldAddAllPassFilterToController(ScanClient client, int deliveryMode,
+                boolean useAllPass) {
             // Not an ALL_PASS client, need to add filter.
-            if (!shouldUseAllPassFilter(client)) {
+            if (!useAllPass) {
                 return true;
             }
 
@@ -754,20 +1036,20 @@ public class ScanManager {
         }
 
         private void removeScanFilters(int clientIf) {
-            Deque<Integer> filterIndices = mClientFilterIndexMap.remove(clientIf);
-            if (filterIndices != null) {
-                mFilterIndexStack.addAll(filterIndices);
-                for (Integer filterIndex : filterIndices) {
-                    resetCountDownLatch();
-                    gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
-                    waitForCallback();
-                }
-            }
+            releaseFilters(clientIf);
             // Remove if ALL_PASS filters are used.
             removeFilterIfExisits(mAllPassRegularClients, clientIf,
                     ALL_PASS_FILTER_INDEX_REGULAR_SCAN);
             removeFilterIfExisits(mAllPassBatchClients, clientIf,
                     ALL_PASS_FILTER_INDEX_BATCH_SCAN);
+            restoreSpilledClients();
+        }
+
+        // Release the client's filter indices and delete the ones no other client uses.
+        private void releaseFilters(int clientIf) {
+            for (Integer filterIndex : mSlotAllocator.release(clientIf)) {
+                queueFilterParamDelete(clientIf, filterIndex);
+            }
         }
 
         private void removeFilterIfExisits(Set<Integer> clients, int clientIf, int filterIndex) {
@@ -777,9 +1059,7 @@ public class ScanManager {
             clients.remove(clientIf);
             // Remove ALL_PASS filter iff no app is using it.
             if (clients.isEmpty()) {
-                resetCountDownLatch();
-                gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
-                waitForCallback();
+                queueFilterParamDelete(clientIf, filterIndex);
             }
         }
 
@@ -808,18 +1088,19 @@ public class ScanManager {
             return -1;
         }
 
-        // Check if ALL_PASS filter should be used for the client.
-        private boolean shouldUseAllPassFilter(ScanClient client) {
-            if (client == null) {
-                return true;
-            }
-            if (client.filters == null || client.filters.isEmpty()) {
-                return true;
-            }
-            return client.filters.size() > mFilterIndexStack.size();
+        private void addFilterToController(final int clientIf, final ScanFilterQueue.Entry entry,
+                final int filterIndex) {
+            queueCommand(new ScanCommandQueue.Command("filter add " + entry.type, clientIf,
+                    ScanCommandQueue.ACK_FILTER_CONFIG) {
+                @Override
+                boolean issue() {
+                    return addFilterNative(clientIf, entry, filterIndex);
+                }
+            });
         }
 
-        private void addFilterToController(int clientIf, ScanFilterQueue.Entry entry,
+        // Returns false if the entry was not sent to the controller.
+        private boolean addFilterNative(int clientIf, ScanFilterQueue.Entry entry,
                 int filterIndex) {
             logd("addFilterToController: " + entry.type);
             switch (entry.type) {
@@ -856,12 +1137,16 @@ public class ScanManager {
                 case ScanFilterQueue.TYPE_MANUFACTURER_DATA:
                     int len = entry.data.length;
                     if (entry.data_mask.length != len)
-                        return;
+                        return false;
                     gattClientScanFilterAddNative(clientIf, entry.type, filterIndex, entry.company,
                             entry.company_mask, 0, 0, 0, 0, "", "", (byte) 0,
                             entry.data, entry.data_mask);
                     break;
+
+                default:
+                    return false;
             }
+            return true;
         }
 
         private void initFilterIndexStack() {
@@ -871,9 +1156,7 @@ public class ScanManager {
             // index 0 is reserved for ALL_PASS filter in Settings app.
             // index 1 is reserved for ALL_PASS filter for regular scan apps.
             // index 2 is reserved for ALL_PASS filter for batch scan apps.
-            for (int i = 3; i < maxFiltersSupported; ++i) {
-                mFilterIndexStack.add(i);
-            }
+            mSlotAllocator.init(3, maxFiltersSupported);
         }
 
         // Configure filter parameters.
@@ -888,10 +1171,18 @@ public class ScanManager {
             onLostTimeout = 10000;
             logd("configureFilterParamter " + onFoundTimeout + " " + onLostTimeout + " "
                     + onFoundCount + " " + numOfTrackingEntries);
-            FilterParams FiltValue = new FilterParams(clientIf, filterIndex, featureSelection,
-                    LIST_LOGIC_TYPE, FILTER_LOGIC_TYPE, rssiThreshold, rssiThreshold, deliveryMode,
-                    onFoundTimeout, onLostTimeout, onFoundCount, numOfTrackingEntries);
-            gattClientScanFilterParamAddNative(FiltValue);
+            final FilterParams FiltValue = new FilterParams(clientIf, filterIndex,
+                    featureSelection, LIST_LOGIC_TYPE, FILTER_LOGIC_TYPE, rssiThreshold,
+                    rssiThreshold, deliveryMode, onFoundTimeout, onLostTimeout, onFoundCount,
+                    numOfTrackingEntries);
+            queueCommand(new ScanCommandQueue.Command("filter param add " + filterIndex, clientIf,
+                    ScanCommandQueue.ACK_FILTER_PARAMS) {
+                @Override
+                boolean issue() {
+                    gattClientScanFilterParamAddNative(FiltValue);
+                    return true;
+                }
+            });
         }
 
         // Get delivery mode based on scan settings.
@@ -907,7 +1198,9 @@ public class ScanManager {
                     || (settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_MATCH_LOST) != 0) {
                 return DELIVERY_MODE_ON_FOUND_LOST;
             }
-            return settings.getReportDelayMillis() == 0 ? DELIVERY_MODE_IMMEDIATE
+            // Host batched clients need every result right away, the host does the batching.
+            return settings.getReportDelayMillis() == 0 || client.hostBatcher != null
+                    ? DELIVERY_MODE_IMMEDIATE
                     : DELIVERY_MODE_BATCH;
         }
 
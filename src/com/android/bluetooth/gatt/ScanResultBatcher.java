@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Accumulates scan results of a host batched client between two deliveries.
+ *
+ * Results are added from the thread dispatching scan results and drained from the
+ * scan manager thread.
+ *
+ * @hide
+ */
+/* package */class ScanResultBatcher {
+    // Results of add().
+    static final int ADDED = 0;
+    static final int ADDED_FULL = 1;
+    static final int DROPPED = 2;
+
+    private final long mWindowMillis;
+    private final int mMaxResults;
+    private List<ScanResult> mResults = new ArrayList<ScanResult>();
+
+    ScanResultBatcher(long windowMillis, int maxResults) {
+        mWindowMillis = windowMillis;
+        mMaxResults = maxResults;
+    }
+
+    /**
+     * Returns the delay between two deliveries.
+     */
+    long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    /**
+     * Buffers {@code result}. Once the batch holds its maximum number of results, further
+     * results are dropped until the batch is drained.
+     *
+     * @return {@link #ADDED_FULL} if the batch just reached its maximum size and should be
+     *         delivered now, {@link #DROPPED} if the batch was already full.
+     */
+    synchronized int add(ScanResult result) {
+        if (mResults.size() >= mMaxResults) return DROPPED;
+        mResults.add(result);
+        return mResults.size() == mMaxResults ? ADDED_FULL : ADDED;
+    }
+
+    /**
+     * Returns the buffered results and starts a new batch.
+     */
+    synchronized List<ScanResult> drain() {
+        if (mResults.isEmpty()) return Collections.emptyList();
+        List<ScanResult> results = mResults;
+        mResults = new ArrayList<ScanResult>();
+        return results;
+    }
+
+    synchronized int size() {
+        return mResults.size();
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms describing the LE scan pipeline.
+ *
+ * Updates are lock free and can be made from any thread. {@link #snapshot} returns
+ * an immutable copy for the dump and for programmatic consumers.
+ *
+ * @hide
+ */
+/* package */class ScanStats {
+    // Upper bounds (inclusive) of the histogram buckets, the last bucket is unbounded.
+    static final long[] BATCH_REPORT_SIZE_BOUNDS = { 0, 10, 50, 100, 500, 1000 };
+    static final long[] PARSE_LATENCY_MICROS_BOUNDS = { 10, 50, 100, 500, 1000, 5000 };
+
+    private final AtomicLong mAdvertisementsReceived = new AtomicLong();
+    private final AtomicLong mAdvertisementsFiltered = new AtomicLong();
+    private final AtomicLong mCallbacksFailed = new AtomicLong();
+    private final AtomicLong mScanRecordParses = new AtomicLong();
+    private final AtomicLong mBatchResultsDropped = new AtomicLong();
+    private final ConcurrentHashMap<Integer, AtomicLong> mDispatched =
+            new ConcurrentHashMap<Integer, AtomicLong>();
+    private final Histogram mBatchReportSizes = new Histogram(BATCH_REPORT_SIZE_BOUNDS);
+    private final Histogram mParseLatencyMicros = new Histogram(PARSE_LATENCY_MICROS_BOUNDS);
+    private volatile int mFilterSlotsUsed;
+    private volatile int mFilterSlotsFree;
+
+    void onAdvertisementReceived() {
+        mAdvertisementsReceived.incrementAndGet();
+    }
+
+    /**
+     * Called when a candidate client did not get an advertisement because of its
+     * filters or permissions.
+     */
+    void onAdvertisementFiltered() {
+        mAdvertisementsFiltered.incrementAndGet();
+    }
+
+    void onDispatched(int clientIf) {
+        AtomicLong count = mDispatched.get(clientIf);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = mDispatched.putIfAbsent(clientIf, newCount);
+            if (count == null) count = newCount;
+        }
+        count.incrementAndGet();
+    }
+
+    void onCallbackFailed() {
+        mCallbacksFailed.incrementAndGet();
+    }
+
+    void onScanRecordParsed(long latencyNanos) {
+        mScanRecordParses.incrementAndGet();
+        mParseLatencyMicros.add(latencyNanos / 1000);
+    }
+
+    void onBatchReport(int numRecords) {
+        mBatchReportSizes.add(numRecords);
+    }
+
+    /**
+     * Called when batch scan results are lost because a host batch was full or a client
+     * did not take them in time.
+     */
+    void onBatchResultsDropped(int count) {
+        mBatchResultsDropped.addAndGet(count);
+    }
+
+    void setFilterSlots(int used, int free) {
+        mFilterSlotsUsed = used;
+        mFilterSlotsFree = free;
+    }
+
+    /**
+     * Forgets the per client counter of a client that stopped scanning.
+     */
+    void removeClient(int clientIf) {
+        mDispatched.remove(clientIf);
+    }
+
+    Snapshot snapshot() {
+        Map<Integer, Long> dispatched = new HashMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : mDispatched.entrySet()) {
+            dispatched.put(entry.getKey(), entry.getValue().get());
+        }
+        return new Snapshot(mAdvertisementsReceived.get(), mAdvertisementsFiltered.get(),
+                mCallbacksFailed.get(), mScanRecordParses.get(), mBatchResultsDropped.get(),
+                dispatched,
+                mBatchReportSizes.getCounts(), mParseLatencyMicros.getCounts(),
+                mFilterSlotsUsed, mFilterSlotsFree);
+    }
+
+    /**
+     * Fixed bucket histogram.
+     */
+    static class Histogram {
+        private final long[] mBounds;
+        private final AtomicLongArray mCounts;
+
+        Histogram(long[] bounds) {
+            mBounds = bounds;
+            mCounts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void add(long value) {
+            int bucket = 0;
+            while (bucket < mBounds.length && value > mBounds[bucket]) {
+                bucket++;
+            }
+            mCounts.incrementAndGet(bucket);
+        }
+
+        long[] getCounts() {
+            long[] counts = new long[mCounts.length()];
+            for (int i = 0; i < counts.length; ++i) {
+                counts[i] = mCounts.get(i);
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Immutable copy of the statistics at one point in time.
+     */
+    static class Snapshot {
+        final long advertisementsReceived;
+        final long advertisementsFiltered;
+        final long callbacksFailed;
+        final long scanRecordParses;
+        final long batchResultsDropped;
+        // Results dispatched per clientIf of the clients currently scanning.
+        final Map<Integer, Long> dispatchedPerClient;
+        // Counts per bucket of BATCH_REPORT_SIZE_BOUNDS and PARSE_LATENCY_MICROS_BOUNDS.
+        final long[] batchReportSizes;
+        final long[] parseLatencyMicros;
+        final int filterSlotsUsed;
+        final int filterSlotsFree;
+
+        Snapshot(long advertisementsReceived, long advertisementsFiltered,
+                long callbacksFailed, long scanRecordParses, long batchResultsDropped,
+                Map<Integer, Long> dispatchedPerClient, long[] batchReportSizes,
+                long[] parseLatencyMicros, int filterSlotsUsed, int filterSlotsFree) {
+            this.advertisementsReceived = advertisementsReceived;
+            this.advertisementsFiltered = advertisementsFiltered;
+            this.callbacksFailed = callbacksFailed;
+            this.scanRecordParses = scanRecordParses;
+            this.batchResultsDropped = batchResultsDropped;
+            this.dispatchedPerClient = Collections.unmodifiableMap(dispatchedPerClient);
+            this.batchReportSizes = batchReportSizes;
+            this.parseLatencyMicros = parseLatencyMicros;
+            this.filterSlotsUsed = filterSlotsUsed;
+            this.filterSlotsFree = filterSlotsFree;
+        }
+
+        long getDispatchedTotal() {
+            long total = 0;
+            for (long count : dispatchedPerClient.values()) {
+                total += count;
+            }
+            return total;
+        }
+
+        void dump(StringBuilder sb) {
+            sb.append("  Advertisements received: ").append(advertisementsReceived)
+                    .append(", filtered: ").append(advertisementsFiltered)
+                    .append(", dispatched: ").append(getDispatchedTotal())
+                    .append(", callbacks failed: ").append(callbacksFailed).append("\n");
+            sb.append("  Dispatched per clientIf: ").append(dispatchedPerClient).append("\n");
+            sb.append("  Batch results dropped: ").append(batchResultsDropped).append("\n");
+            // Scan record parses are printed by GattService along with their rate.
+            dumpHistogram(sb, "  Parse latency (us)", PARSE_LATENCY_MICROS_BOUNDS,
+                    parseLatencyMicros);
+            dumpHistogram(sb, "  Batch report sizes", BATCH_REPORT_SIZE_BOUNDS,
+                    batchReportSizes);
+            sb.append("  Filter slots used: ").append(filterSlotsUsed)
+                    .append(", free: ").append(filterSlotsFree).append("\n");
+        }
+
+        private static void dumpHistogram(StringBuilder sb, String name, long[] bounds,
+                long[] counts) {
+            sb.append(name).append(":");
+            for (int i = 0; i < counts.length; ++i) {
+                sb.append(i < bounds.length ? " <=" + bounds[i] : " >" + bounds[i - 1])
+                        .append(": ").append(counts[i]);
+            }
+            sb.append("\n");
+        }
+
+        @Override
+        public String toString() {
+            return "ScanStats.Snapshot{received=" + advertisementsReceived + ", filtered="
+                    + advertisementsFiltered + ", dispatched=" + getDispatchedTotal()
+                    + ", failed=" + callbacksFailed + ", parses=" + scanRecordParses
+                    + ", batchDropped=" + batchResultsDropped
+                    + ", parseLatencyMicros=" + Arrays.toString(parseLatencyMicros)
+                    + ", batchReportSizes=" + Arrays.toString(batchReportSizes)
+                    + ", filterSlots=" + filterSlotsUsed + "/"
+                    + (filterSlotsUsed + filterSlotsFree) + "}";
+        }
+    }
+}
@@ -16,13 +16,15 @@
 
 package com.android.bluetooth.gatt;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Helper class to store characteristics and descriptors that will be
- * queued up for future exploration.
+ * queued up for future exploration. Each connection has its own queue, so
+ * searches on different connections proceed independently.
  * @hide
  */
 /*package*/ class SearchQueue {
@@ -37,7 +39,7 @@ import java.util.List;
         public long charUuidMsb;
     }
 
-    private List<Entry> mEntries = new ArrayList<Entry>();
+    private Map<Integer, Deque<Entry>> mEntries = new HashMap<Integer, Deque<Entry>>();
 
     void add(int connId, int srvcType,
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb) {
@@ -48,7 +50,7 @@ import java.util.List;
         entry.srvcUuidLsb = srvcUuidLsb;
         entry.srvcUuidMsb = srvcUuidMsb;
         entry.charUuidLsb = 0;
-        mEntries.add(entry);
+        add(entry);
     }
 
     void add(int connId, int srvcType,
@@ -64,26 +66,35 @@ import java.util.List;
         entry.charInstId = charInstId;
         entry.charUuidLsb = charUuidLsb;
         entry.charUuidMsb = charUuidMsb;
-        mEntries.add(entry);
+        add(entry);
     }
 
-    Entry pop() {
-        Entry entry = mEntries.get(0);
-        mEntries.remove(0);
+    private void add(Entry entry) {
+        Deque<Entry> entries = mEntries.get(entry.connId);
+        if (entries == null) {
+            entries = new ArrayDeque<Entry>();
+            mEntries.put(entry.connId, entries);
+        }
+        entries.addLast(entry);
+    }
+
+    /**
+     * Returns the next entry to explore for a connection, or null if there is none.
+     */
+    Entry pop(int connId) {
+        Deque<Entry> entries = mEntries.get(connId);
+        if (entries == null) return null;
+        Entry entry = entries.pollFirst();
+        if (entries.isEmpty()) mEntries.remove(connId);
         return entry;
     }
 
     void removeConnId(int connId) {
-        for (Iterator<Entry> it = mEntries.iterator(); it.hasNext();) {
-            Entry entry = it.next();
-            if (entry.connId == connId) {
-                it.remove();
-            }
-        }
+        mEntries.remove(connId);
     }
 
-    boolean isEmpty() {
-        return mEntries.isEmpty();
+    boolean isEmpty(int connId) {
+        return !mEntries.containsKey(connId);
     }
 
     void clear() {
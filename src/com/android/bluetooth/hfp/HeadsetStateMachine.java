@@ -65,6 +65,7 @@ import android.os.UserHandle;
 import android.os.PowerManager.WakeLock;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
+import com.android.bluetooth.BluetoothAddress;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
@@ -3869,7 +3870,8 @@ final class HeadsetStateMachine extends StateMachine {
     }
 
     private BluetoothDevice getDevice(byte[] address) {
-        return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
+        BluetoothAddress bdAddr = BluetoothAddress.valueOf(address);
+        return bdAddr == null ? null : bdAddr.getRemoteDevice(mAdapter);
     }
 
     private boolean isInCall() {
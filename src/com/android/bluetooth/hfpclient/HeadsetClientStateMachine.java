@@ -55,6 +55,7 @@ import android.net.Uri;
 import com.android.internal.util.IState;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
+import com.android.bluetooth.BluetoothAddress;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
@@ -2419,7 +2420,8 @@ final class HeadsetClientStateMachine extends StateMachine {
     }
 
     private BluetoothDevice getDevice(byte[] address) {
-        return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
+        BluetoothAddress bdAddr = BluetoothAddress.valueOf(address);
+        return bdAddr == null ? null : bdAddr.getRemoteDevice(mAdapter);
     }
 
     private void onConnectionStateChanged(int state, int peer_feat, int chld_feat, byte[] address) {
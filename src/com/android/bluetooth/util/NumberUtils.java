@@ -32,13 +32,20 @@ public class NumberUtils {
      * Convert a little endian byte array to integer.
      */
     public static int littleEndianByteArrayToInt(byte[] bytes) {
-        int length = bytes.length;
+        return littleEndianByteArrayToInt(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Convert {@code length} little endian bytes of {@code bytes} starting at
+     * {@code offset} to integer.
+     */
+    public static int littleEndianByteArrayToInt(byte[] bytes, int offset, int length) {
         if (length == 0) {
             return 0;
         }
         int result = 0;
         for (int i = length - 1; i >= 0; i--) {
-            int value = unsignedByteToInt(bytes[i]);
+            int value = unsignedByteToInt(bytes[offset + i]);
             result += (value << (i * 8));
         }
         return result;
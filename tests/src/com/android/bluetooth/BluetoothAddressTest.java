@@ -0,0 +1,64 @@
+package com.android.bluetooth;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link BluetoothAddress}.
+ */
+public class BluetoothAddressTest extends AndroidTestCase {
+
+    private static final byte[] BYTES = { 0x00, 0x11, 0x22, (byte) 0xAA, (byte) 0xBB,
+            (byte) 0xCC };
+
+    @SmallTest
+    public void testRoundTrip() {
+        BluetoothAddress address = BluetoothAddress.valueOf(BYTES);
+        assertEquals(0x001122AABBCCL, address.toLong());
+        assertEquals(0x001122AABBCCL, BluetoothAddress.pack(BYTES));
+        assertEquals("00:11:22:AA:BB:CC", address.toString());
+        assertTrue(Arrays.equals(BYTES, address.toBytes()));
+        assertTrue(Arrays.equals(BYTES, Utils.getBytesFromAddress("00:11:22:aa:bb:cc")));
+        assertEquals("00:11:22:AA:BB:CC", Utils.getAddressStringFromByte(BYTES));
+    }
+
+    @SmallTest
+    public void testInterned() {
+        BluetoothAddress address = BluetoothAddress.valueOf(BYTES);
+        assertSame(address, BluetoothAddress.valueOf("00:11:22:AA:BB:CC"));
+        assertSame(address, BluetoothAddress.valueOf(0x001122AABBCCL));
+        assertEquals(address.hashCode(), BluetoothAddress.valueOf(BYTES).hashCode());
+    }
+
+    @SmallTest
+    public void testInvalid() {
+        assertNull(BluetoothAddress.valueOf(new byte[5]));
+        assertNull(BluetoothAddress.valueOf((byte[]) null));
+        assertNull(Utils.getAddressStringFromByte(new byte[7]));
+        for (String invalid : new String[] { "00:11:22:AA:BB", "00-11-22-AA-BB-CC",
+                "00:11:22:AA:BB:CG" }) {
+            try {
+                BluetoothAddress.valueOf(invalid);
+                fail("accepted " + invalid);
+            } catch (IllegalArgumentException expected) {
+            }
+            assertNull(BluetoothAddress.parse(invalid));
+        }
+    }
+
+    @SmallTest
+    public void testLenientBytesFromAddress() {
+        assertTrue(Arrays.equals(BYTES, Utils.getBytesFromAddress("001122AABBCC")));
+    }
+
+    @SmallTest
+    public void testCacheKeepsRecentlyUsed() {
+        BluetoothAddress kept = BluetoothAddress.valueOf(0x0000000001L);
+        for (long value = 0x100000; value < 0x100000 + 1024; value++) {
+            BluetoothAddress.valueOf(value);
+            assertSame(kept, BluetoothAddress.valueOf(0x0000000001L));
+        }
+    }
+}
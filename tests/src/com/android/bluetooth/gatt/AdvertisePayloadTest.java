@@ -0,0 +1,74 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.AdvertiseData;
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link AdvertisePayload}.
+ */
+public class AdvertisePayloadTest extends AndroidTestCase {
+
+    private static final ParcelUuid SERVICE =
+            ParcelUuid.fromString("0000FEAA-0000-1000-8000-00805F9B34FB");
+
+    private static AdvertiseData newData(byte counter) {
+        return new AdvertiseData.Builder()
+                .addServiceUuid(SERVICE)
+                .addManufacturerData(0x00E0, new byte[] { 1, counter })
+                .build();
+    }
+
+    @SmallTest
+    public void testEncoding() {
+        AdvertisePayload payload = AdvertisePayload.compile(newData((byte) 2), null);
+        assertTrue(Arrays.equals(new byte[] { (byte) 0xE0, 0x00, 1, 2 },
+                payload.manufacturerData));
+        assertEquals(16, payload.serviceUuids.length);
+        assertEquals(0, payload.serviceData.length);
+    }
+
+    @SmallTest
+    public void testUpdateReusesUnchangedFields() {
+        AdvertisePayload first = AdvertisePayload.compile(newData((byte) 1), null);
+        AdvertisePayload same = AdvertisePayload.compile(newData((byte) 1), first);
+        assertTrue(same.sameAs(first));
+
+        assertSame(first.manufacturerData, same.manufacturerData);
+        assertSame(first.serviceData, same.serviceData);
+
+        AdvertisePayload changed = AdvertisePayload.compile(newData((byte) 2), first);
+        assertFalse(changed.sameAs(first));
+        assertSame(first.serviceUuids, changed.serviceUuids);
+        assertTrue(Arrays.equals(new byte[] { (byte) 0xE0, 0x00, 1, 2 },
+                changed.manufacturerData));
+
+        // The input is copied, so a caller changing its array in place is seen as a change.
+        byte[] value = new byte[] { 1, 1 };
+        AdvertiseData data = new AdvertiseData.Builder().addManufacturerData(0x00E0, value)
+                .build();
+        AdvertisePayload before = AdvertisePayload.compile(data, null);
+        value[1] = 3;
+        AdvertisePayload after = AdvertisePayload.compile(data, before);
+        assertFalse(after.sameAs(before));
+    }
+
+    @SmallTest
+    public void testTotalBytes() {
+        // 16 bit service UUID: 2 + 2, manufacturer data: 2 + 2 + 2.
+        assertEquals(10, AdvertisePayload.totalBytes(newData((byte) 1), false, null));
+        // Flags.
+        assertEquals(13, AdvertisePayload.totalBytes(newData((byte) 1), true, null));
+        AdvertiseData named = new AdvertiseData.Builder().setIncludeDeviceName(true)
+                .setIncludeTxPowerLevel(true).build();
+        // Name: 2 + 4, tx power: 2 + 1.
+        assertEquals(9, AdvertisePayload.totalBytes(named, false, "name"));
+        AdvertiseData large = new AdvertiseData.Builder()
+                .addManufacturerData(0x00E0, new byte[28]).build();
+        assertTrue(AdvertisePayload.totalBytes(large, false, null)
+                > AdvertisePayload.MAX_ADVERTISING_DATA_BYTES);
+    }
+}
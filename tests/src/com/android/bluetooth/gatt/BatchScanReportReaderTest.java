@@ -0,0 +1,128 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanResult;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link BatchScanReportReader}.
+ */
+public class BatchScanReportReaderTest extends AndroidTestCase {
+
+    private static final long NOW_NANOS = TimeUnit.SECONDS.toNanos(100);
+
+    // Address 00:11:22:33:44:55 as the controller reports it, little endian.
+    private static final byte[] ADDRESS = { 0x55, 0x44, 0x33, 0x22, 0x11, 0x00 };
+
+    private static BatchScanReportReader newReader(int reportType, int numRecords,
+            byte[] record) {
+        return new BatchScanReportReader(BluetoothAdapter.getDefaultAdapter(), reportType,
+                numRecords, record, NOW_NANOS);
+    }
+
+    // Address, address type, tx power, rssi and timestamp.
+    private static byte[] truncatedRecord(int rssi, int timestamp) {
+        byte[] record = new byte[11];
+        System.arraycopy(ADDRESS, 0, record, 0, ADDRESS.length);
+        record[8] = (byte) rssi;
+        record[9] = (byte) timestamp;
+        return record;
+    }
+
+    // Truncated header followed by the advertise and scan response packets.
+    private static byte[] fullRecord(int rssi, byte[] advertise, byte[] scanResponse) {
+        byte[] record = new byte[11 + 1 + advertise.length + 1 + scanResponse.length];
+        System.arraycopy(truncatedRecord(rssi, 1), 0, record, 0, 11);
+        int position = 11;
+        record[position++] = (byte) advertise.length;
+        System.arraycopy(advertise, 0, record, position, advertise.length);
+        position += advertise.length;
+        record[position++] = (byte) scanResponse.length;
+        System.arraycopy(scanResponse, 0, record, position, scanResponse.length);
+        return record;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        byte[] result = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, position, part.length);
+            position += part.length;
+        }
+        return result;
+    }
+
+    private static List<ScanResult> readAll(BatchScanReportReader reader) {
+        List<ScanResult> results = new ArrayList<ScanResult>();
+        while (reader.hasNext()) {
+            if (reader.readPage(results, 100, Integer.MAX_VALUE) == 0) break;
+        }
+        return results;
+    }
+
+    @SmallTest
+    public void testTruncatedRecords() {
+        byte[] report = concat(truncatedRecord(-60, 1), truncatedRecord(-70, 2),
+                truncatedRecord(-60, 1));
+        List<ScanResult> results = readAll(
+                newReader(ScanManager.SCAN_RESULT_TYPE_TRUNCATED, 3, report));
+        // The repeated record is reported once.
+        assertEquals(2, results.size());
+        assertEquals("00:11:22:33:44:55", results.get(0).getDevice().getAddress());
+        assertEquals(-60, results.get(0).getRssi());
+        assertEquals(NOW_NANOS - TimeUnit.MILLISECONDS.toNanos(50),
+                results.get(0).getTimestampNanos());
+        assertEquals(-70, results.get(1).getRssi());
+        assertEquals(0, results.get(1).getScanRecord().getBytes().length);
+    }
+
+    @SmallTest
+    public void testFullRecords() {
+        byte[] advertise = { 0x02, 0x01, 0x06 };
+        byte[] scanResponse = { 0x03, 0x09, 'A', 'B' };
+        byte[] report = concat(fullRecord(-50, advertise, scanResponse),
+                fullRecord(-55, advertise, new byte[0]));
+        List<ScanResult> results = readAll(
+                newReader(ScanManager.SCAN_RESULT_TYPE_FULL, 2, report));
+        assertEquals(2, results.size());
+        assertEquals(-50, results.get(0).getRssi());
+        assertTrue(Arrays.equals(concat(advertise, scanResponse),
+                results.get(0).getScanRecord().getBytes()));
+        assertEquals("AB", results.get(0).getScanRecord().getDeviceName());
+        assertEquals(-55, results.get(1).getRssi());
+        assertTrue(Arrays.equals(advertise, results.get(1).getScanRecord().getBytes()));
+    }
+
+    @SmallTest
+    public void testEmptyRecord() {
+        assertFalse(newReader(ScanManager.SCAN_RESULT_TYPE_TRUNCATED, 3, new byte[0])
+                .hasNext());
+        assertFalse(newReader(ScanManager.SCAN_RESULT_TYPE_FULL, 3, new byte[0]).hasNext());
+        assertFalse(newReader(ScanManager.SCAN_RESULT_TYPE_FULL, 3, null).hasNext());
+    }
+
+    @SmallTest
+    public void testTruncatedFinalRecord() {
+        byte[] advertise = { 0x02, 0x01, 0x06 };
+        byte[] complete = fullRecord(-50, advertise, new byte[0]);
+        byte[] last = fullRecord(-60, advertise, new byte[] { 0x03, 0x09, 'A', 'B' });
+        byte[] report = concat(complete, Arrays.copyOf(last, last.length - 2));
+        List<ScanResult> results = readAll(
+                newReader(ScanManager.SCAN_RESULT_TYPE_FULL, 2, report));
+        assertEquals(1, results.size());
+        assertEquals(-50, results.get(0).getRssi());
+
+        // A truncated report stops at its last whole record.
+        report = concat(truncatedRecord(-60, 1), Arrays.copyOf(truncatedRecord(-70, 2), 5));
+        results = readAll(newReader(ScanManager.SCAN_RESULT_TYPE_TRUNCATED, 2, report));
+        assertEquals(1, results.size());
+    }
+}
@@ -0,0 +1,80 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.UUID;
+
+/**
+ * Test cases for {@link BulkWrite}.
+ */
+public class BulkWriteTest extends AndroidTestCase {
+
+    private static final UUID SERVICE = UUID.fromString("0000FE59-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHAR = UUID.fromString("8EC90002-F315-4F60-9FB8-838830DAEA50");
+
+    private static BulkWrite newBulkWrite(int length) {
+        // An MTU of 23 leaves 20 bytes per chunk.
+        return new BulkWrite(1, "00:11:22:33:44:55", 0, 0, SERVICE, 0, CHAR, 0,
+                new byte[length], 23);
+    }
+
+    @SmallTest
+    public void testOneChunkAtATime() {
+        BulkWrite write = newBulkWrite(50);
+        assertEquals(20, write.nextChunk().length);
+        assertNull(write.nextChunk());
+
+        assertTrue(write.claimWriteCallback());
+        assertFalse(write.onChunkWritten(0));
+        assertEquals(20, write.nextChunk().length);
+        assertTrue(write.claimWriteCallback());
+        assertFalse(write.onChunkWritten(0));
+        assertEquals(10, write.nextChunk().length);
+        assertTrue(write.claimWriteCallback());
+        assertTrue(write.onChunkWritten(0));
+        assertTrue(write.isFinished());
+        assertEquals(0, write.getStatus());
+        assertEquals(50, write.getBytesWritten());
+    }
+
+    @SmallTest
+    public void testClientWritesAreNotClaimed() {
+        BulkWrite write = newBulkWrite(50);
+        write.nextChunk();
+        write.onClientWrite();
+        assertTrue(write.claimWriteCallback());
+        write.onChunkWritten(0);
+        write.nextChunk();
+        // The client's write was queued first, its callback comes before the chunk's.
+        assertFalse(write.claimWriteCallback());
+        assertTrue(write.claimWriteCallback());
+        assertFalse(write.claimWriteCallback());
+    }
+
+    @SmallTest
+    public void testFailureStopsTransfer() {
+        BulkWrite write = newBulkWrite(100);
+        write.nextChunk();
+        assertTrue(write.onChunkWritten(0x85));
+        assertNull(write.nextChunk());
+        assertEquals(0x85, write.getStatus());
+        assertEquals(20, write.getBytesWritten());
+    }
+
+    @SmallTest
+    public void testTimeout() {
+        BulkWrite write = newBulkWrite(100);
+        assertFalse(write.onChunkTimeout(0x101));
+        write.nextChunk();
+        assertTrue(write.onChunkTimeout(0x101));
+        assertFalse(write.onChunkTimeout(0x101));
+        assertNull(write.nextChunk());
+        // The late callback of the chunk is still claimed, but not reported again.
+        assertFalse(write.isFinished());
+        assertTrue(write.claimWriteCallback());
+        assertFalse(write.onChunkWritten(0));
+        assertTrue(write.isFinished());
+        assertEquals(0x101, write.getStatus());
+    }
+}
@@ -0,0 +1,63 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link CongestionQueue}.
+ */
+public class CongestionQueueTest extends AndroidTestCase {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @SmallTest
+    public void testFifo() {
+        CongestionQueue queue = new CongestionQueue(2);
+        assertTrue(queue.add(new CallbackInfo(ADDRESS, 1)));
+        assertTrue(queue.add(new CallbackInfo(ADDRESS, 2)));
+        assertEquals(1, queue.poll().status);
+        assertTrue(queue.add(new CallbackInfo(ADDRESS, 3)));
+        assertEquals(2, queue.poll().status);
+        assertEquals(3, queue.poll().status);
+        assertNull(queue.poll());
+        assertEquals(3, queue.getQueuedCount());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(2, queue.getMaxDepth());
+    }
+
+    @SmallTest
+    public void testDropsNotificationsWhenFull() {
+        CongestionQueue queue = new CongestionQueue(3);
+        queue.add(new CallbackInfo(ADDRESS, 1, false));
+        queue.add(new CallbackInfo(ADDRESS, 2, true));
+        queue.add(new CallbackInfo(ADDRESS, 3, true));
+        // A new notification is dropped.
+        assertTrue(queue.add(new CallbackInfo(ADDRESS, 4, true)));
+        // An indication replaces the oldest notification.
+        assertTrue(queue.add(new CallbackInfo(ADDRESS, 5, false)));
+        assertEquals(3, queue.size());
+        assertEquals(3, queue.capacity());
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(1, queue.poll().status);
+        assertEquals(3, queue.poll().status);
+        assertEquals(5, queue.poll().status);
+        assertNull(queue.poll());
+    }
+
+    @SmallTest
+    public void testNeverDropsResponses() {
+        CongestionQueue queue = new CongestionQueue(2);
+        // Wrap around before the buffer is full.
+        queue.add(new CallbackInfo(ADDRESS, 0));
+        queue.poll();
+        assertTrue(queue.add(new CallbackInfo(ADDRESS, 1)));
+        assertTrue(queue.add(new CallbackInfo(ADDRESS, 2)));
+        // No room can be made, the caller delivers the callback itself.
+        assertFalse(queue.add(new CallbackInfo(ADDRESS, 3)));
+        assertEquals(2, queue.size());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(1, queue.poll().status);
+        assertEquals(2, queue.poll().status);
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,62 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.AtomicFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link GattAttributeCache}.
+ */
+public class GattAttributeCacheTest extends AndroidTestCase {
+
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final UUID SERVICE = UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHAR = UUID.fromString("00002A37-0000-1000-8000-00805F9B34FB");
+    private static final UUID DESCR = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    private static List<GattAttributeCache.Attribute> newDatabase(int charProp) {
+        return Arrays.asList(
+                GattAttributeCache.Attribute.service(0, 0, SERVICE),
+                GattAttributeCache.Attribute.characteristic(0, 0, SERVICE, 0, CHAR, charProp),
+                GattAttributeCache.Attribute.descriptor(0, 0, SERVICE, 0, CHAR, 0, DESCR));
+    }
+
+    @SmallTest
+    public void testPutGetRemove() {
+        // Without start() nothing is written to disk.
+        GattAttributeCache cache = new GattAttributeCache(getContext().getCacheDir());
+        assertNull(cache.get(ADDRESS));
+        cache.put(ADDRESS, new ArrayList<GattAttributeCache.Attribute>(newDatabase(0x10)));
+        assertEquals(newDatabase(0x10), cache.get(ADDRESS));
+        assertFalse(newDatabase(0x12).equals(cache.get(ADDRESS)));
+        assertEquals(1, cache.size());
+
+        cache.remove(ADDRESS);
+        assertNull(cache.get(ADDRESS));
+        assertEquals(0, cache.size());
+    }
+
+    @SmallTest
+    public void testFileRoundTrip() throws Exception {
+        File dir = new File(getContext().getCacheDir(), "gatt_cache_test");
+        assertTrue(dir.isDirectory() || dir.mkdirs());
+        GattAttributeCache cache = new GattAttributeCache(dir);
+        List<GattAttributeCache.Attribute> database = new ArrayList<GattAttributeCache.Attribute>(
+                newDatabase(0x10));
+        database.add(GattAttributeCache.Attribute.includedService(0, 0, SERVICE, 0, 1, SERVICE));
+
+        cache.write(ADDRESS, database);
+        AtomicFile file = new AtomicFile(cache.getFile(ADDRESS));
+        try {
+            assertEquals(database, cache.read(file));
+        } finally {
+            file.delete();
+        }
+    }
+}
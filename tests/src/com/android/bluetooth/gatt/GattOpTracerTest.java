@@ -0,0 +1,83 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link GattOpTracer}.
+ */
+public class GattOpTracerTest extends AndroidTestCase {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @SmallTest
+    public void testLatencyHistogram() {
+        GattOpTracer tracer = new GattOpTracer();
+        tracer.begin(1, ADDRESS, GattOpTracer.OP_READ, 1000);
+        tracer.begin(1, ADDRESS, GattOpTracer.OP_READ, 1010);
+        tracer.end(1, GattOpTracer.OP_READ, 0, 1020);
+        tracer.end(1, GattOpTracer.OP_READ, 0, 1300);
+        // Callbacks without a matching call are ignored.
+        tracer.end(1, GattOpTracer.OP_MTU, 0, 1300);
+
+        GattOpTracer.Snapshot snapshot = tracer.snapshot();
+        long[] reads = snapshot.latencies.get(1)[GattOpTracer.OP_READ];
+        // 20ms falls into <=30, 290ms into <=500.
+        assertEquals(1, reads[1]);
+        assertEquals(1, reads[5]);
+        long[] mtu = snapshot.latencies.get(1)[GattOpTracer.OP_MTU];
+        for (long count : mtu) {
+            assertEquals(0, count);
+        }
+        assertEquals(ADDRESS, snapshot.addresses.get(1));
+    }
+
+    @SmallTest
+    public void testKeyedByConnection() {
+        GattOpTracer tracer = new GattOpTracer();
+        tracer.begin(1, ADDRESS, GattOpTracer.OP_DESCRIPTOR_READ, 0);
+        tracer.begin(2, ADDRESS, GattOpTracer.OP_DESCRIPTOR_WRITE, 0);
+        tracer.end(1, GattOpTracer.OP_DESCRIPTOR_READ, 0, 20);
+        tracer.end(2, GattOpTracer.OP_DESCRIPTOR_WRITE, 0, 20);
+
+        GattOpTracer.Snapshot snapshot = tracer.snapshot();
+        // Two clients of the same device are kept apart, as are descriptor reads and writes.
+        assertEquals(2, snapshot.latencies.size());
+        assertEquals(1, snapshot.latencies.get(1)[GattOpTracer.OP_DESCRIPTOR_READ][1]);
+        assertEquals(0, snapshot.latencies.get(1)[GattOpTracer.OP_DESCRIPTOR_WRITE][1]);
+        assertEquals(1, snapshot.latencies.get(2)[GattOpTracer.OP_DESCRIPTOR_WRITE][1]);
+
+        // A reused connection ID starts over.
+        tracer.begin(1, "66:77:88:99:AA:BB", GattOpTracer.OP_READ, 0);
+        tracer.end(1, GattOpTracer.OP_READ, 0, 20);
+        snapshot = tracer.snapshot();
+        assertEquals("66:77:88:99:AA:BB", snapshot.addresses.get(1));
+        assertEquals(0, snapshot.latencies.get(1)[GattOpTracer.OP_DESCRIPTOR_READ][1]);
+    }
+
+    @SmallTest
+    public void testSlowest() {
+        GattOpTracer tracer = new GattOpTracer();
+        for (int i = 0; i < GattOpTracer.MAX_SLOWEST + 5; ++i) {
+            tracer.begin(1, ADDRESS, GattOpTracer.OP_WRITE, 0);
+            tracer.end(1, GattOpTracer.OP_WRITE, 0, i);
+        }
+        GattOpTracer.Snapshot snapshot = tracer.snapshot();
+        assertEquals(GattOpTracer.MAX_SLOWEST, snapshot.slowest.size());
+        assertEquals(GattOpTracer.MAX_SLOWEST + 4, snapshot.slowest.get(0).latencyMillis);
+
+        // Operations outside the recent window are dropped.
+        tracer.begin(1, ADDRESS, GattOpTracer.OP_WRITE, GattOpTracer.RECENT_WINDOW_MILLIS * 2);
+        tracer.end(1, GattOpTracer.OP_WRITE, 0, GattOpTracer.RECENT_WINDOW_MILLIS * 2 + 1);
+        assertEquals(1, tracer.snapshot().slowest.size());
+    }
+
+    @SmallTest
+    public void testRemoveConnection() {
+        GattOpTracer tracer = new GattOpTracer();
+        tracer.begin(1, ADDRESS, GattOpTracer.OP_DISCOVERY, 0);
+        tracer.removeConnection(1);
+        tracer.end(1, GattOpTracer.OP_DISCOVERY, 0, 100);
+        assertTrue(tracer.snapshot().latencies.isEmpty());
+    }
+}
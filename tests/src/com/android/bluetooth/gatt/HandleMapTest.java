@@ -0,0 +1,51 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.UUID;
+
+/**
+ * Test cases for {@link HandleMap}.
+ */
+public class HandleMapTest extends AndroidTestCase {
+
+    private static final UUID SERVICE = UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHAR = UUID.fromString("00002A37-0000-1000-8000-00805F9B34FB");
+
+    @SmallTest
+    public void testLookups() {
+        HandleMap map = new HandleMap();
+        map.addService(1, 40, SERVICE, 0, 0, false);
+        map.addCharacteristic(1, 42, CHAR, 40);
+        map.addDescriptor(1, 43, CHAR, 40);
+        map.addService(2, 50, SERVICE, 0, 1, false);
+        map.addCharacteristic(2, 52, CHAR, 50);
+
+        assertEquals(40, map.getServiceHandle(SERVICE, 0, 0));
+        assertEquals(50, map.getServiceHandle(SERVICE, 0, 1));
+        assertEquals(52, map.getCharacteristicHandle(50, CHAR, 0));
+        assertEquals(42, map.getByHandle(43).charHandle);
+
+        map.addRequest(7, 42);
+        assertEquals(HandleMap.TYPE_CHARACTERISTIC, map.getByRequestId(7).type);
+
+        map.setStarted(1, 40, true);
+        assertTrue(map.getByHandle(40).started);
+    }
+
+    @SmallTest
+    public void testDeleteService() {
+        HandleMap map = new HandleMap();
+        map.addService(1, 40, SERVICE, 0, 0, false);
+        map.addCharacteristic(1, 42, CHAR, 40);
+        map.addService(2, 50, SERVICE, 0, 1, false);
+
+        map.deleteService(1, 40);
+        assertNull(map.getByHandle(40));
+        assertNull(map.getByHandle(42));
+        assertEquals(0, map.getServiceHandle(SERVICE, 0, 0));
+        assertEquals(50, map.getServiceHandle(SERVICE, 0, 1));
+        assertEquals(1, map.getEntries().size());
+    }
+}
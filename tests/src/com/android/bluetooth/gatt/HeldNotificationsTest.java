@@ -0,0 +1,34 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.List;
+
+/**
+ * Test cases for {@link HeldNotifications}.
+ */
+public class HeldNotificationsTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testLatestValueWins() {
+        HeldNotifications held = new HeldNotifications();
+        assertFalse(held.hold(1, 5, 0x20, new byte[] { 1 }));
+        assertFalse(held.hold(1, 5, 0x30, new byte[] { 2 }));
+        assertTrue(held.hold(1, 5, 0x20, new byte[] { 3 }));
+        assertFalse(held.hold(2, 5, 0x20, new byte[] { 4 }));
+        assertEquals(3, held.size());
+        assertEquals(1, held.getReplacedCount());
+
+        List<HeldNotifications.Entry> entries = held.release(1);
+        assertEquals(2, entries.size());
+        // Order of first hold, with the latest value.
+        assertEquals(0x20, entries.get(0).handle);
+        assertEquals(3, entries.get(0).value[0]);
+        assertEquals(0x30, entries.get(1).handle);
+        assertTrue(held.release(1).isEmpty());
+
+        held.remove(2);
+        assertEquals(0, held.size());
+    }
+}
@@ -0,0 +1,103 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link LinkTuner}.
+ */
+public class LinkTunerTest extends AndroidTestCase {
+
+    private static final int CONN_ID = 5;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private static class FakeCallback implements LinkTuner.Callback {
+        final List<Integer> mtus = new ArrayList<Integer>();
+        final List<Integer> priorities = new ArrayList<Integer>();
+        boolean busy;
+
+        @Override
+        public boolean requestMtu(int connId, int mtu) {
+            if (busy) return false;
+            mtus.add(mtu);
+            return true;
+        }
+
+        @Override
+        public void requestConnectionPriority(int clientIf, String address, int priority) {
+            priorities.add(priority);
+        }
+    }
+
+    // Boost at 1000 B/s, idle below 100 B/s for 2 seconds, MTU 247.
+    private static LinkTuner newTuner(FakeCallback callback) {
+        LinkTuner tuner = new LinkTuner(callback, 1000, 100, 2, 247);
+        tuner.onConnected(1, CONN_ID, ADDRESS);
+        return tuner;
+    }
+
+    @SmallTest
+    public void testBoostAndRelax() {
+        FakeCallback callback = new FakeCallback();
+        LinkTuner tuner = newTuner(callback);
+        tuner.onTraffic(CONN_ID, 2000);
+        tuner.evaluate();
+        assertEquals(1, callback.mtus.size());
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, (int) callback.priorities.get(0));
+
+        tuner.evaluate();
+        assertEquals(1, callback.priorities.size());
+        tuner.evaluate();
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED,
+                (int) callback.priorities.get(1));
+        assertEquals(1, callback.mtus.size());
+    }
+
+    @SmallTest
+    public void testMtuRetriedWhileBusy() {
+        FakeCallback callback = new FakeCallback();
+        LinkTuner tuner = newTuner(callback);
+        callback.busy = true;
+        tuner.onTraffic(CONN_ID, 2000);
+        tuner.evaluate();
+        assertTrue(callback.mtus.isEmpty());
+
+        callback.busy = false;
+        tuner.onTraffic(CONN_ID, 2000);
+        tuner.evaluate();
+        assertEquals(1, callback.mtus.size());
+    }
+
+    @SmallTest
+    public void testAppMtuStillRelaxes() {
+        FakeCallback callback = new FakeCallback();
+        LinkTuner tuner = newTuner(callback);
+        tuner.onAppMtu(CONN_ID);
+        tuner.onTraffic(CONN_ID, 2000);
+        tuner.evaluate();
+        assertTrue(callback.mtus.isEmpty());
+        assertEquals(1, callback.priorities.size());
+
+        tuner.evaluate();
+        tuner.evaluate();
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED,
+                (int) callback.priorities.get(1));
+    }
+
+    @SmallTest
+    public void testAppConnectionPriorityPins() {
+        FakeCallback callback = new FakeCallback();
+        LinkTuner tuner = newTuner(callback);
+        tuner.onAppConnectionPriority(CONN_ID);
+        tuner.onTraffic(CONN_ID, 2000);
+        tuner.evaluate();
+        tuner.evaluate();
+        tuner.evaluate();
+        assertTrue(callback.priorities.isEmpty());
+        assertTrue(callback.mtus.isEmpty());
+    }
+}
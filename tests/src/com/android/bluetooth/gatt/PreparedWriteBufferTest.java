@@ -0,0 +1,70 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link PreparedWriteBuffer}.
+ */
+public class PreparedWriteBufferTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testAssemble() {
+        PreparedWriteBuffer buffer = new PreparedWriteBuffer(512, 4096);
+        assertEquals(0, buffer.prepare(1, 0x2A, 0, new byte[] {1, 2, 3}));
+        assertEquals(0, buffer.prepare(1, 0x2A, 3, new byte[] {4, 5}));
+        assertEquals(0, buffer.prepare(2, 0x2A, 0, new byte[] {9}));
+
+        PreparedWriteBuffer.Execution execution = buffer.execute(1);
+        assertEquals(0, execution.status);
+        List<PreparedWriteBuffer.Value> values = execution.values;
+        assertEquals(1, values.size());
+        assertEquals(0x2A, values.get(0).handle);
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3, 4, 5}, values.get(0).data));
+        assertFalse(buffer.hasPending(1));
+        assertTrue(buffer.hasPending(2));
+    }
+
+    @SmallTest
+    public void testErrorsReportedOnExecute() {
+        PreparedWriteBuffer buffer = new PreparedWriteBuffer(4, 64);
+        // Only a full queue is refused at prepare time.
+        assertEquals(0, buffer.prepare(1, 0x10, 0, new byte[2]));
+        assertEquals(0, buffer.prepare(1, 0x11, 0, new byte[5]));
+        PreparedWriteBuffer.Execution execution = buffer.execute(1);
+        assertEquals(PreparedWriteBuffer.ATT_INVALID_ATTRIBUTE_LENGTH, execution.status);
+        assertEquals(0x11, execution.handle);
+        assertTrue(execution.values.isEmpty());
+        assertFalse(buffer.hasPending(1));
+
+        assertEquals(0, buffer.prepare(1, 0x10, 0, new byte[2]));
+        assertEquals(0, buffer.prepare(1, 0x10, 3, new byte[1]));
+        execution = buffer.execute(1);
+        assertEquals(PreparedWriteBuffer.ATT_INVALID_OFFSET, execution.status);
+        assertEquals(0x10, execution.handle);
+    }
+
+    @SmallTest
+    public void testQueueFull() {
+        PreparedWriteBuffer buffer = new PreparedWriteBuffer(4, 6);
+        assertEquals(0, buffer.prepare(1, 0x10, 0, new byte[2]));
+        assertEquals(0, buffer.prepare(1, 0x11, 0, new byte[4]));
+        assertEquals(PreparedWriteBuffer.ATT_PREPARE_QUEUE_FULL,
+                buffer.prepare(1, 0x10, 2, new byte[1]));
+        // Other connections have their own queue.
+        assertEquals(0, buffer.prepare(2, 0x10, 0, new byte[1]));
+        assertEquals(2, buffer.execute(1).values.size());
+    }
+
+    @SmallTest
+    public void testAbort() {
+        PreparedWriteBuffer buffer = new PreparedWriteBuffer(512, 4096);
+        buffer.prepare(1, 0x2A, 0, new byte[] {1});
+        buffer.abort(1);
+        assertFalse(buffer.hasPending(1));
+        assertTrue(buffer.execute(1).values.isEmpty());
+    }
+}
@@ -0,0 +1,110 @@
+package com.android.bluetooth.gatt;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanCommandQueue}.
+ */
+public class ScanCommandQueueTest extends AndroidTestCase {
+
+    private final List<String> mIssued = new ArrayList<String>();
+
+    private static final int CLIENT_IF = 5;
+
+    private ScanCommandQueue.Command newCommand(final String name, int clientIf, int ack,
+            boolean exclusive) {
+        return new ScanCommandQueue.Command(name, clientIf, ack, exclusive) {
+            @Override
+            boolean issue() {
+                mIssued.add(name);
+                return true;
+            }
+        };
+    }
+
+    private ScanCommandQueue newQueue(int window) {
+        return new ScanCommandQueue(new Handler(Looper.getMainLooper()), window, 60000);
+    }
+
+    @SmallTest
+    public void testWindow() {
+        ScanCommandQueue queue = newQueue(2);
+        queue.add(newCommand("a", CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, false));
+        queue.add(newCommand("b", CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, false));
+        queue.add(newCommand("c", CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, false));
+        assertEquals(2, queue.getInFlightCount());
+        assertEquals(2, mIssued.size());
+
+        queue.onAck(CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, 0);
+        assertEquals(3, mIssued.size());
+        queue.onAck(CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, 0);
+        queue.onAck(CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, 0);
+        assertTrue(queue.isIdle());
+        queue.clear();
+    }
+
+    @SmallTest
+    public void testBarriers() {
+        ScanCommandQueue queue = newQueue(4);
+        queue.add(newCommand("filter", CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, false));
+        queue.add(newCommand("scan enable", 0, ScanCommandQueue.ACK_NONE, true));
+        queue.add(newCommand("batch", CLIENT_IF, ScanCommandQueue.ACK_BATCH_STORAGE, true));
+        queue.add(newCommand("filter", CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, false));
+        assertEquals(1, mIssued.size());
+
+        queue.onAck(CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, 0);
+        // The scan enable needs no acknowledgement, the batch command runs alone.
+        assertEquals(3, mIssued.size());
+        assertEquals(1, queue.getInFlightCount());
+
+        queue.onAck(CLIENT_IF, ScanCommandQueue.ACK_BATCH_STORAGE, 0x0C);
+        assertEquals(4, mIssued.size());
+        queue.onAck(CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, 0);
+        assertTrue(queue.isIdle());
+        queue.clear();
+    }
+
+    @SmallTest
+    public void testAckMatchesClientAndCallback() {
+        ScanCommandQueue queue = newQueue(4);
+        queue.add(newCommand("filter 5", CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, false));
+        queue.add(newCommand("params 6", 6, ScanCommandQueue.ACK_FILTER_PARAMS, false));
+        assertEquals(2, queue.getInFlightCount());
+
+        // An acknowledgement nothing waits for completes nothing.
+        queue.onAck(7, ScanCommandQueue.ACK_FILTER_CONFIG, 0);
+        assertEquals(2, queue.getInFlightCount());
+
+        queue.onAck(6, ScanCommandQueue.ACK_FILTER_PARAMS, 0);
+        assertEquals(1, queue.getInFlightCount());
+        queue.onAck(CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, 0);
+        assertTrue(queue.isIdle());
+        queue.clear();
+    }
+
+    @SmallTest
+    public void testLateAckDropped() throws Exception {
+        ScanCommandQueue queue = new ScanCommandQueue(new Handler(Looper.getMainLooper()), 1,
+                500);
+        queue.add(newCommand("first", CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, false));
+        queue.add(newCommand("second", CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, false));
+        // The first command times out on the main looper, the second one is issued.
+        for (int i = 0; i < 200 && mIssued.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, mIssued.size());
+
+        // The late acknowledgement of the first command does not complete the second.
+        queue.onAck(CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, 0);
+        assertEquals(1, queue.getInFlightCount());
+        queue.onAck(CLIENT_IF, ScanCommandQueue.ACK_FILTER_CONFIG, 0);
+        assertTrue(queue.isIdle());
+        queue.clear();
+    }
+}
@@ -0,0 +1,39 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link ScanDedupCache}.
+ */
+public class ScanDedupCacheTest extends AndroidTestCase {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final byte[] ADV_DATA = new byte[] { 0x02, 0x01, 0x06 };
+
+    @SmallTest
+    public void testSuppression() {
+        ScanDedupCache cache = new ScanDedupCache(1000, 10, 16);
+        assertTrue(cache.shouldReport(ADDRESS, ADV_DATA, -60, 0));
+        // Same payload, small RSSI change within the window.
+        assertFalse(cache.shouldReport(ADDRESS, ADV_DATA, -65, 100));
+        assertEquals(1, cache.getSuppressedCount());
+        // Large RSSI change.
+        assertTrue(cache.shouldReport(ADDRESS, ADV_DATA, -75, 200));
+        // Changed payload.
+        assertTrue(cache.shouldReport(ADDRESS, new byte[] { 0x02, 0x01, 0x04 }, -75, 300));
+        // Window elapsed.
+        assertTrue(cache.shouldReport(ADDRESS, new byte[] { 0x02, 0x01, 0x04 }, -75, 1300));
+    }
+
+    @SmallTest
+    public void testEviction() {
+        ScanDedupCache cache = new ScanDedupCache(1000, 10, 2);
+        assertTrue(cache.shouldReport("00:00:00:00:00:01", ADV_DATA, -60, 0));
+        assertTrue(cache.shouldReport("00:00:00:00:00:02", ADV_DATA, -60, 0));
+        assertTrue(cache.shouldReport("00:00:00:00:00:03", ADV_DATA, -60, 0));
+        assertEquals(2, cache.size());
+        // The first device was evicted and is reported again.
+        assertTrue(cache.shouldReport("00:00:00:00:00:01", ADV_DATA, -60, 10));
+    }
+}
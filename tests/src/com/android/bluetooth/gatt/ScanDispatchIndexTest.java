@@ -0,0 +1,67 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanDispatchIndex}.
+ */
+public class ScanDispatchIndexTest extends AndroidTestCase {
+
+    private static final ScanSettings SETTINGS = new ScanSettings.Builder().build();
+    private static final ParcelUuid HEART_RATE =
+            ParcelUuid.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+
+    // Manufacturer data for company 0x004C and a 16-bit heart rate service UUID.
+    private static final byte[] ADV_DATA = new byte[] {
+            0x05, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15,
+            0x03, 0x03, 0x0D, 0x18 };
+
+    @SmallTest
+    public void testCandidates() {
+        ScanClient matchAll = new ScanClient(1, false, SETTINGS, null);
+        ScanClient byAddress = newClient(2,
+                new ScanFilter.Builder().setDeviceAddress("00:11:22:33:44:55").build());
+        ScanClient byManufacturer = newClient(3,
+                new ScanFilter.Builder().setManufacturerData(0x004C, new byte[0]).build());
+        ScanClient byUuid = newClient(4,
+                new ScanFilter.Builder().setServiceUuid(HEART_RATE).build());
+        ScanClient otherManufacturer = newClient(5,
+                new ScanFilter.Builder().setManufacturerData(0x0006, new byte[0]).build());
+
+        ScanDispatchIndex index = new ScanDispatchIndex(Arrays.asList(
+                matchAll, byAddress, byManufacturer, byUuid, otherManufacturer));
+        List<ScanClient> candidates = index.getCandidates("66:77:88:99:AA:BB",
+                ScanRecord.parseFromBytes(ADV_DATA));
+
+        assertTrue(candidates.contains(matchAll));
+        assertTrue(candidates.contains(byManufacturer));
+        assertTrue(candidates.contains(byUuid));
+        assertFalse(candidates.contains(byAddress));
+        assertFalse(candidates.contains(otherManufacturer));
+
+        candidates = index.getCandidates("00:11:22:33:44:55", null);
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.contains(byAddress));
+    }
+
+    @SmallTest
+    public void testEmpty() {
+        assertTrue(ScanDispatchIndex.EMPTY.isEmpty());
+        assertTrue(ScanDispatchIndex.EMPTY.getCandidates("00:11:22:33:44:55", null).isEmpty());
+    }
+
+    private static ScanClient newClient(int clientIf, ScanFilter filter) {
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        filters.add(filter);
+        return new ScanClient(clientIf, false, SETTINGS, filters);
+    }
+}
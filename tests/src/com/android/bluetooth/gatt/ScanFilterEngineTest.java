@@ -0,0 +1,130 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterEngine}.
+ */
+public class ScanFilterEngineTest extends AndroidTestCase {
+
+    private static final ScanSettings SETTINGS = new ScanSettings.Builder().build();
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String OTHER_ADDRESS = "66:77:88:99:AA:BB";
+    private static final ParcelUuid HEART_RATE =
+            ParcelUuid.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final ParcelUuid BATTERY =
+            ParcelUuid.fromString("0000180F-0000-1000-8000-00805F9B34FB");
+    private static final ParcelUuid EDDYSTONE =
+            ParcelUuid.fromString("0000FEAA-0000-1000-8000-00805F9B34FB");
+    // Matches any 16-bit UUID 0x18xx.
+    private static final ParcelUuid UUID_MASK =
+            ParcelUuid.fromString("FFFFFF00-FFFF-FFFF-FFFF-FFFFFFFFFFFF");
+
+    // Manufacturer data of company 0x004C, the heart rate service UUID and the name "HR".
+    private static final byte[] ADV_HEART_RATE = new byte[] {
+            0x06, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15, (byte) 0xAA,
+            0x03, 0x03, 0x0D, 0x18,
+            0x03, 0x09, 0x48, 0x52 };
+    // Service data of 0xFEAA and the battery service UUID.
+    private static final byte[] ADV_SERVICE_DATA = new byte[] {
+            0x06, 0x16, (byte) 0xAA, (byte) 0xFE, 0x10, 0x20, 0x30,
+            0x03, 0x03, 0x0F, 0x18 };
+    // Manufacturer data of company 0x0006.
+    private static final byte[] ADV_OTHER_MANUFACTURER = new byte[] {
+            0x04, (byte) 0xFF, 0x06, 0x00, 0x01 };
+
+    @SmallTest
+    public void testMatchesLikeScanFilter() {
+        List<ScanFilter> filters = Arrays.asList(
+                new ScanFilter.Builder().build(),
+                new ScanFilter.Builder().setDeviceAddress(ADDRESS).build(),
+                new ScanFilter.Builder().setDeviceAddress(OTHER_ADDRESS).build(),
+                new ScanFilter.Builder().setDeviceName("HR").build(),
+                new ScanFilter.Builder().setDeviceName("XX").build(),
+                new ScanFilter.Builder().setServiceUuid(HEART_RATE).build(),
+                new ScanFilter.Builder().setServiceUuid(BATTERY).build(),
+                new ScanFilter.Builder().setServiceUuid(HEART_RATE, UUID_MASK).build(),
+                new ScanFilter.Builder().setServiceData(EDDYSTONE, new byte[] { 0x10, 0x20 })
+                        .build(),
+                new ScanFilter.Builder().setServiceData(EDDYSTONE, new byte[] { 0x10, 0x21 },
+                        new byte[] { (byte) 0xFF, 0x00 }).build(),
+                new ScanFilter.Builder().setServiceData(EDDYSTONE, new byte[] { 0x11 })
+                        .build(),
+                new ScanFilter.Builder().setManufacturerData(0x004C, new byte[] { 0x02, 0x15 })
+                        .build(),
+                new ScanFilter.Builder().setManufacturerData(0x004C, new byte[] { 0x02, 0x00 },
+                        new byte[] { (byte) 0xFF, 0x00 }).build(),
+                new ScanFilter.Builder().setManufacturerData(0x004C, new byte[] { 0x03 })
+                        .build(),
+                new ScanFilter.Builder().setManufacturerData(0x0006, new byte[0]).build(),
+                new ScanFilter.Builder().setDeviceAddress(ADDRESS)
+                        .setManufacturerData(0x004C, new byte[] { 0x02 }).build());
+        List<ScanResult> results = Arrays.asList(
+                newResult(ADDRESS, ADV_HEART_RATE),
+                newResult(OTHER_ADDRESS, ADV_HEART_RATE),
+                newResult(ADDRESS, ADV_SERVICE_DATA),
+                newResult(OTHER_ADDRESS, ADV_OTHER_MANUFACTURER),
+                new ScanResult(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS),
+                        null, -60, 0));
+
+        List<ScanClient> clients = new ArrayList<ScanClient>();
+        for (int i = 0; i < filters.size(); ++i) {
+            clients.add(newClient(i + 1, filters.get(i)));
+        }
+        ScanFilterEngine engine = new ScanFilterEngine(clients);
+        assertEquals(filters.size(), engine.size());
+        for (ScanResult result : results) {
+            byte[] memo = engine.newMemo();
+            for (int i = 0; i < filters.size(); ++i) {
+                assertEquals("filter " + i + " on " + result,
+                        Boolean.valueOf(filters.get(i).matches(result)),
+                        engine.matches(clients.get(i), result, memo));
+            }
+        }
+    }
+
+    @SmallTest
+    public void testEqualFiltersShareCompiledFilter() {
+        // Equal content built from different arrays.
+        ScanClient first = newClient(1, new ScanFilter.Builder()
+                .setManufacturerData(0x004C, new byte[] { 0x02, 0x15 }).build());
+        ScanClient second = newClient(2, new ScanFilter.Builder()
+                .setManufacturerData(0x004C, new byte[] { 0x02, 0x15 }).build());
+        ScanClient other = newClient(3, new ScanFilter.Builder()
+                .setManufacturerData(0x004C, new byte[] { 0x02, 0x16 }).build());
+        ScanFilterEngine engine = new ScanFilterEngine(Arrays.asList(first, second, other));
+        assertEquals(2, engine.size());
+    }
+
+    @SmallTest
+    public void testUnknownClient() {
+        ScanFilterEngine engine = new ScanFilterEngine(new ArrayList<ScanClient>());
+        ScanClient client = newClient(1, new ScanFilter.Builder().setDeviceName("HR").build());
+        assertNull(engine.matches(client, newResult(ADDRESS, ADV_HEART_RATE),
+                engine.newMemo()));
+        assertEquals(Boolean.TRUE, engine.matches(new ScanClient(2, false, SETTINGS, null),
+                newResult(ADDRESS, ADV_HEART_RATE), engine.newMemo()));
+    }
+
+    private static ScanResult newResult(String address, byte[] advData) {
+        return new ScanResult(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address),
+                ScanRecord.parseFromBytes(advData), -60, 0);
+    }
+
+    private static ScanClient newClient(int clientIf, ScanFilter filter) {
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        filters.add(filter);
+        return new ScanClient(clientIf, false, SETTINGS, filters);
+    }
+}
@@ -0,0 +1,78 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterSlotAllocator}.
+ */
+public class ScanFilterSlotAllocatorTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testSharedFilters() {
+        ScanFilterSlotAllocator allocator = new ScanFilterSlotAllocator();
+        allocator.init(3, 5);
+        assertEquals(2, allocator.getFreeCount());
+
+        List<ScanFilterSlotAllocator.Key> keys = Arrays.asList(newKey("beacon", true));
+        assertEquals(1, allocator.allocate(1, keys).size());
+        // Same filter from another client shares the index.
+        assertEquals(0, allocator.allocate(2, Arrays.asList(newKey("beacon", true))).size());
+        assertEquals(1, allocator.getFreeCount());
+        assertEquals(1, allocator.getUsedCount());
+
+        assertTrue(allocator.release(1).isEmpty());
+        assertEquals(1, allocator.release(2).size());
+        assertEquals(2, allocator.getFreeCount());
+    }
+
+    @SmallTest
+    public void testUnshareableFilters() {
+        ScanFilterSlotAllocator allocator = new ScanFilterSlotAllocator();
+        allocator.init(3, 5);
+        assertEquals(1, allocator.allocate(1, Arrays.asList(newKey("tag", false))).size());
+        assertEquals(1, allocator.allocate(2, Arrays.asList(newKey("tag", false))).size());
+        assertEquals(0, allocator.getFreeCount());
+        assertEquals(1, allocator.getExclusiveSlotCount(1));
+
+        assertNull(allocator.allocate(3, Arrays.asList(newKey("other", true))));
+        assertEquals(1, allocator.release(1).size());
+        assertNotNull(allocator.allocate(3, Arrays.asList(newKey("other", true))));
+    }
+
+    @SmallTest
+    public void testSpillAndRestore() {
+        ScanFilterSlotAllocator allocator = new ScanFilterSlotAllocator();
+        allocator.init(3, 4);
+        allocator.allocate(1, Arrays.asList(newKey("victim", true)));
+        List<ScanFilterSlotAllocator.Key> keys = Arrays.asList(newKey("new", true));
+        assertFalse(allocator.canAllocate(keys));
+
+        assertEquals(Arrays.asList(3), allocator.spill(1));
+        assertTrue(allocator.isSpilled(1));
+        assertEquals(0, allocator.getExclusiveSlotCount(1));
+        assertEquals(1, allocator.allocate(2, keys).size());
+
+        // Once the other client is gone the spilled client gets its index back.
+        assertEquals(1, allocator.release(2).size());
+        assertTrue(allocator.getSpilledClients().contains(1));
+        assertEquals(1, allocator.allocate(1, Arrays.asList(newKey("victim", true))).size());
+        assertFalse(allocator.isSpilled(1));
+        assertTrue(allocator.getSpilledClients().isEmpty());
+
+        // Releasing a spilled client forgets it.
+        allocator.spill(1);
+        allocator.release(1);
+        assertFalse(allocator.isSpilled(1));
+    }
+
+    private static ScanFilterSlotAllocator.Key newKey(String name, boolean shareable) {
+        ScanFilterQueue queue = new ScanFilterQueue();
+        queue.addName(name);
+        return new ScanFilterSlotAllocator.Key(queue.getEntries(), queue.getFeatureSelection(),
+                0, shareable);
+    }
+}
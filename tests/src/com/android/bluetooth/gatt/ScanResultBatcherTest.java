@@ -0,0 +1,34 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanResult;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link ScanResultBatcher}.
+ */
+public class ScanResultBatcherTest extends AndroidTestCase {
+
+    private static ScanResult newResult(int rssi) {
+        return new ScanResult(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
+                "00:11:22:33:44:55"), null, rssi, 0);
+    }
+
+    @SmallTest
+    public void testCapacity() {
+        ScanResultBatcher batcher = new ScanResultBatcher(1000, 2);
+        assertEquals(ScanResultBatcher.ADDED, batcher.add(newResult(-60)));
+        assertEquals(ScanResultBatcher.ADDED_FULL, batcher.add(newResult(-61)));
+        // The flush is late, the batch does not grow past its maximum size.
+        assertEquals(ScanResultBatcher.DROPPED, batcher.add(newResult(-62)));
+        assertEquals(ScanResultBatcher.DROPPED, batcher.add(newResult(-63)));
+        assertEquals(2, batcher.size());
+
+        assertEquals(2, batcher.drain().size());
+        assertEquals(0, batcher.size());
+        assertEquals(ScanResultBatcher.ADDED, batcher.add(newResult(-64)));
+        assertEquals(1, batcher.drain().size());
+        assertTrue(batcher.drain().isEmpty());
+    }
+}
@@ -0,0 +1,48 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link ScanStats}.
+ */
+public class ScanStatsTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testHistogram() {
+        ScanStats.Histogram histogram = new ScanStats.Histogram(new long[] { 0, 10, 100 });
+        histogram.add(0);
+        histogram.add(10);
+        histogram.add(11);
+        histogram.add(1000);
+        assertTrue(Arrays.equals(new long[] { 1, 1, 1, 1 }, histogram.getCounts()));
+    }
+
+    @SmallTest
+    public void testSnapshot() {
+        ScanStats stats = new ScanStats();
+        stats.onAdvertisementReceived();
+        stats.onAdvertisementReceived();
+        stats.onAdvertisementFiltered();
+        stats.onDispatched(1);
+        stats.onDispatched(1);
+        stats.onDispatched(2);
+        stats.setFilterSlots(3, 13);
+        stats.onBatchResultsDropped(5);
+
+        ScanStats.Snapshot snapshot = stats.snapshot();
+        assertEquals(2, snapshot.advertisementsReceived);
+        assertEquals(1, snapshot.advertisementsFiltered);
+        assertEquals(3, snapshot.getDispatchedTotal());
+        assertEquals(Long.valueOf(2), snapshot.dispatchedPerClient.get(1));
+        assertEquals(3, snapshot.filterSlotsUsed);
+        assertEquals(5, snapshot.batchResultsDropped);
+
+        // Later updates do not change an existing snapshot.
+        stats.removeClient(1);
+        assertEquals(3, snapshot.getDispatchedTotal());
+        assertEquals(1, stats.snapshot().getDispatchedTotal());
+    }
+}
@@ -0,0 +1,63 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link SearchQueue}.
+ */
+public class SearchQueueTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testConnectionsInterleaved() {
+        SearchQueue queue = new SearchQueue();
+        queue.add(1, 0, 0, 0x10L, 0x11L);
+        queue.add(2, 0, 0, 0x20L, 0x21L);
+        queue.add(1, 0, 1, 0x12L, 0x13L, 3, 0x14L, 0x15L);
+        queue.add(2, 0, 1, 0x22L, 0x23L, 4, 0x24L, 0x25L);
+
+        // Each connection pops its own entries in the order they were added.
+        SearchQueue.Entry entry = queue.pop(2);
+        assertEquals(2, entry.connId);
+        assertEquals(0x20L, entry.srvcUuidLsb);
+        assertEquals(0, entry.charUuidLsb);
+
+        entry = queue.pop(1);
+        assertEquals(1, entry.connId);
+        assertEquals(0x10L, entry.srvcUuidLsb);
+
+        entry = queue.pop(1);
+        assertEquals(1, entry.connId);
+        assertEquals(1, entry.srvcInstId);
+        assertEquals(3, entry.charInstId);
+        assertEquals(0x14L, entry.charUuidLsb);
+        assertEquals(0x15L, entry.charUuidMsb);
+        assertNull(queue.pop(1));
+        assertTrue(queue.isEmpty(1));
+
+        assertFalse(queue.isEmpty(2));
+        entry = queue.pop(2);
+        assertEquals(2, entry.connId);
+        assertEquals(4, entry.charInstId);
+        assertTrue(queue.isEmpty(2));
+    }
+
+    @SmallTest
+    public void testRemoveConnId() {
+        SearchQueue queue = new SearchQueue();
+        queue.add(1, 0, 0, 0x10L, 0x11L);
+        queue.add(1, 0, 1, 0x12L, 0x13L);
+        queue.add(2, 0, 0, 0x20L, 0x21L);
+
+        // Dropping one connection leaves the other one's search intact.
+        queue.removeConnId(1);
+        assertTrue(queue.isEmpty(1));
+        assertNull(queue.pop(1));
+        assertEquals(0x20L, queue.pop(2).srvcUuidLsb);
+        assertTrue(queue.isEmpty(2));
+
+        queue.add(3, 0, 0, 0x30L, 0x31L);
+        queue.clear();
+        assertTrue(queue.isEmpty(3));
+    }
+}
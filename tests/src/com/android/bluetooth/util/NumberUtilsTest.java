@@ -40,4 +40,12 @@ public class NumberUtilsTest extends AndroidTestCase {
         assertEquals(197121, NumberUtils.littleEndianByteArrayToInt(new byte[] {
                 1, 2, 3 }));
     }
+
+    @SmallTest
+    public void testLittleEndianByteArrayToIntWithOffset() {
+        assertEquals(513, NumberUtils.littleEndianByteArrayToInt(new byte[] {
+                9, 1, 2, 9 }, 1, 2));
+        assertEquals(0, NumberUtils.littleEndianByteArrayToInt(new byte[] {
+                9 }, 1, 0));
+    }
 }